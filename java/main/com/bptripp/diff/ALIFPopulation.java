@@ -0,0 +1,532 @@
+/*
+ * Created on 17-Oct-26
+ */
+package com.bptripp.diff;
+
+import java.io.Serializable;
+
+import ca.nengo.math.PDF;
+import ca.nengo.math.PDFTools;
+import ca.nengo.model.InstantaneousOutput;
+import ca.nengo.model.Node;
+import ca.nengo.model.SimulationMode;
+import ca.nengo.model.StructuralException;
+import ca.nengo.model.Units;
+import ca.nengo.model.impl.NodeFactory;
+import ca.nengo.model.impl.RealOutputImpl;
+import ca.nengo.model.impl.SpikeOutputImpl;
+import ca.nengo.model.neuron.SpikeGenerator;
+import ca.nengo.model.neuron.impl.LinearSynapticIntegrator;
+import ca.nengo.model.neuron.impl.SpikingNeuron;
+
+/**
+ * State and parameters of a population of adapting LIF (ALIF) neurons, held in primitive arrays
+ * (one slot per neuron) rather than in a separate spike generator object per neuron.
+ *
+ * The model is the same as that of ALIFNeuronFactory: tauRC dV/dt = J - N - V, with a refractory
+ * period tauRef after each spike, and an adaptation current N that is incremented by incN at each
+ * spike and decays with time constant tauN. The membrane is integrated as in ALIFSpikeGenerator:
+ * V is clamped at zero, the spike time within a step is interpolated from the overshoot of threshold,
+ * and the refractory period runs from that time, so that the membrane resumes integrating part way
+ * through a step. In RATE mode, the rate is the LIF rate at current J-N, and
+ * dN/dt = -N/tauN + incN*rate. In CONSTANT_RATE mode the unadapted LIF rate is returned (this is what
+ * AdaptingNetwork.getSlope(...) expects).
+ *
+ * Neurons are SpikingNeurons whose generators are views of population slots (see Factory), so an
+ * NEFEnsemble of these neurons has the usual decoded origins and terminations. Nengo gives a
+ * SpikeGenerator its neuron's current only when that neuron runs, and uses the spike as soon as it is
+ * returned (e.g. to collect spikes), so each view integrates its own slot's membrane, over the
+ * population's arrays. The adaptation currents of the whole population, which don't depend on input,
+ * are advanced in one loop per step, which runs when the first view is called in the next step (before
+ * any membrane uses N), so the result is the same as updating each neuron's adaptation as it spikes.
+ * Parameters of the whole population can be set in one pass (see setAdaptation(...)).
+ *
+ * The views of a population must all run from one thread. This holds for the neurons of one ensemble,
+ * which run in turn even when Nengo runs ensembles in parallel, but not for ensembles that share a
+ * population (e.g. two ensembles made by the same Factory) if they are run on different threads. Views
+ * check this at each step and throw an IllegalStateException if another thread is running the population.
+ * Cloned views (e.g. in a cloned ensemble) are put in a copy of the population (see Generator.clone()),
+ * so a clone doesn't share state or a thread with the original.
+ */
+public class ALIFPopulation implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private int mySize;
+	private float[] myV;
+	private float[] myTimeSinceSpike;
+	private float[] myN;
+	private float[] myActivity; //spikes, or rate * dt, in the current step
+	private float[] myIncN;
+	private float[] myTauN;
+	private float[] myTauRC;
+	private float[] myTauRef;
+
+	private float myStepStart; //start time of the step whose activity is recorded (NaN if none)
+	private float myStepLength;
+	private transient Thread myStepThread; //thread that is running the current step
+
+	private transient ALIFPopulation myCloneTarget; //copy into which views are currently being cloned
+	private transient boolean[] myClaimed; //slots of this copy that have been claimed by cloned views
+
+	public ALIFPopulation() {
+		mySize = 0;
+		myV = new float[16];
+		myTimeSinceSpike = new float[16];
+		myN = new float[16];
+		myActivity = new float[16];
+		myIncN = new float[16];
+		myTauN = new float[16];
+		myTauRC = new float[16];
+		myTauRef = new float[16];
+		myStepStart = Float.NaN;
+	}
+
+	/**
+	 * @param incN Increment of adaptation current with each spike
+	 * @param tauN Time constant of adaptation current decay
+	 * @param tauRC Membrane time constant
+	 * @param tauRef Refractory period
+	 * @return Index of new slot
+	 */
+	public synchronized int add(float incN, float tauN, float tauRC, float tauRef) {
+		if (mySize == myV.length) {
+			myV = grow(myV);
+			myTimeSinceSpike = grow(myTimeSinceSpike);
+			myN = grow(myN);
+			myActivity = grow(myActivity);
+			myIncN = grow(myIncN);
+			myTauN = grow(myTauN);
+			myTauRC = grow(myTauRC);
+			myTauRef = grow(myTauRef);
+		}
+		myIncN[mySize] = incN;
+		myTauN[mySize] = tauN;
+		myTauRC[mySize] = tauRC;
+		myTauRef[mySize] = tauRef;
+		myTimeSinceSpike[mySize] = tauRef;
+		return mySize++;
+	}
+
+	/**
+	 * @return Number of slots
+	 */
+	public int getSize() {
+		return mySize;
+	}
+
+	/**
+	 * @param index Slot index
+	 * @return Increment of adaptation current with each spike
+	 */
+	public float getIncN(int index) {
+		return myIncN[index];
+	}
+
+	/**
+	 * @param index Slot index
+	 * @param incN Increment of adaptation current with each spike
+	 */
+	public void setIncN(int index, float incN) {
+		myIncN[index] = incN;
+	}
+
+	/**
+	 * @param index Slot index
+	 * @return Time constant of adaptation current decay
+	 */
+	public float getTauN(int index) {
+		return myTauN[index];
+	}
+
+	/**
+	 * @param index Slot index
+	 * @param tauN Time constant of adaptation current decay
+	 */
+	public void setTauN(int index, float tauN) {
+		myTauN[index] = tauN;
+	}
+
+	/**
+	 * @param index Slot index
+	 * @return Membrane time constant
+	 */
+	public float getTauRC(int index) {
+		return myTauRC[index];
+	}
+
+	/**
+	 * @param index Slot index
+	 * @return Refractory period
+	 */
+	public float getTauRef(int index) {
+		return myTauRef[index];
+	}
+
+	/**
+	 * @param index Slot index
+	 * @return Value of adaptation current (as of the start of the last step run)
+	 */
+	public float getN(int index) {
+		return myN[index];
+	}
+
+	/**
+	 * Sets adaptation parameters of all slots.
+	 *
+	 * @param incN Increment of adaptation current with each spike, for each slot
+	 * @param tauN Time constant of adaptation current decay, for each slot
+	 */
+	public void setAdaptation(float[] incN, float[] tauN) {
+		System.arraycopy(incN, 0, myIncN, 0, mySize);
+		System.arraycopy(tauN, 0, myTauN, 0, mySize);
+	}
+
+	/**
+	 * @param index Slot index
+	 * @param current Driving current
+	 * @return Unadapted LIF rate at given current
+	 */
+	public float getRate(int index, float current) {
+		return current <= 1 ? 0 : 1f / (myTauRef[index] - myTauRC[index] * (float) Math.log(1 - 1/current));
+	}
+
+	/**
+	 * Called by each view as it runs. The first call in a new step advances the adaptation currents of
+	 * all slots over the previous step, from the activity recorded during that step.
+	 *
+	 * @param startTime Start time of the step
+	 * @param endTime End time of the step
+	 * @throws IllegalStateException If another thread is running the step
+	 */
+	public void startStep(float startTime, float endTime) {
+		Thread thread = Thread.currentThread();
+		if (startTime != myStepStart) {
+			if (!Float.isNaN(myStepStart)) {
+				adapt(myStepLength);
+			}
+			myStepStart = startTime;
+			myStepLength = endTime - startTime;
+			myStepThread = thread;
+		} else if (myStepThread == null) {
+			myStepThread = thread; //e.g. restored part way through a step
+		} else if (myStepThread != thread) {
+			throw new IllegalStateException("Views of an ALIFPopulation are running on more than one thread "
+				+ "(ensembles that share a population must run on the same thread)");
+		}
+	}
+
+	//one pass over the population: dN/dt = -N/tauN, plus incN for each spike (or incN*rate)
+	private void adapt(float dt) {
+		for (int i = 0; i < mySize; i++) {
+			myN[i] += myIncN[i] * myActivity[i] - dt * myN[i] / myTauN[i];
+			myActivity[i] = 0;
+		}
+	}
+
+	/**
+	 * Spiking membrane update of one slot, as in ALIFSpikeGenerator. Spikes are recorded for the
+	 * adaptation update (see startStep(...)).
+	 *
+	 * @param index Slot index
+	 * @param dt Step size
+	 * @param current Driving current (constant over the step)
+	 * @return True if the neuron spiked during the step
+	 */
+	public boolean step(int index, float dt, float current) {
+		float tauRef = myTauRef[index];
+		float timeSinceSpike = myTimeSinceSpike[index] + dt;
+		float dV = dt / myTauRC[index] * (current - myN[index] - myV[index]);
+		if (timeSinceSpike < tauRef) {
+			dV = 0;
+		} else if (timeSinceSpike < tauRef + dt) {
+			dV *= (timeSinceSpike - tauRef) / dt; //refractory period ends part way through the step
+		}
+
+		float v = Math.max(0, myV[index] + dV);
+		boolean spiked = false;
+		if (v > 1) {
+			spiked = true;
+			timeSinceSpike = (v - 1) / dV * dt; //threshold was crossed this long before the end of the step
+			v = 0;
+			myActivity[index] += 1;
+		}
+		myV[index] = v;
+		myTimeSinceSpike[index] = timeSinceSpike;
+		return spiked;
+	}
+
+	/**
+	 * Rate-mode update of one slot. The rate is recorded for the adaptation update (see startStep(...)).
+	 *
+	 * @param index Slot index
+	 * @param dt Step size
+	 * @param current Driving current (constant over the step)
+	 * @return Adapted spike rate
+	 */
+	public float stepRate(int index, float dt, float current) {
+		float rate = getRate(index, current - myN[index]);
+		myActivity[index] += rate * dt;
+		return rate;
+	}
+
+	/**
+	 * @param index Slot index
+	 * @param randomize If true, the membrane potential is set randomly between 0 and 1
+	 */
+	public void reset(int index, boolean randomize) {
+		myV[index] = randomize ? (float) PDFTools.random() : 0;
+		myTimeSinceSpike[index] = myTauRef[index];
+		myN[index] = 0;
+		myActivity[index] = 0;
+		myStepStart = Float.NaN;
+	}
+
+	/**
+	 * @param index Slot index of a view that is being cloned
+	 * @return A copy of this population in which the clone should take the same slot. Successive clones of
+	 * 		different slots (e.g. the neurons of a cloned ensemble) share a copy; a clone of a slot that has
+	 * 		already been cloned into the current copy starts a new one.
+	 */
+	public synchronized ALIFPopulation getCloneTarget(int index) {
+		if (myCloneTarget == null || myCloneTarget.myClaimed == null || myCloneTarget.myClaimed[index]) {
+			myCloneTarget = copy();
+			myCloneTarget.myClaimed = new boolean[mySize];
+		}
+		myCloneTarget.myClaimed[index] = true;
+		return myCloneTarget;
+	}
+
+	//a population with the same slots, parameters, and state
+	private ALIFPopulation copy() {
+		ALIFPopulation result = new ALIFPopulation();
+		result.mySize = mySize;
+		result.myV = myV.clone();
+		result.myTimeSinceSpike = myTimeSinceSpike.clone();
+		result.myN = myN.clone();
+		result.myActivity = myActivity.clone();
+		result.myIncN = myIncN.clone();
+		result.myTauN = myTauN.clone();
+		result.myTauRC = myTauRC.clone();
+		result.myTauRef = myTauRef.clone();
+		result.myStepStart = myStepStart;
+		result.myStepLength = myStepLength;
+		return result;
+	}
+
+	private static float[] grow(float[] values) {
+		float[] result = new float[values.length * 2];
+		System.arraycopy(values, 0, result, 0, values.length);
+		return result;
+	}
+
+	/**
+	 * A SpikeGenerator that is a view of one slot of an ALIFPopulation. Clones are views of the same slot
+	 * in a copy of the population (see ALIFPopulation.getCloneTarget(...)).
+	 */
+	public static class Generator implements SpikeGenerator {
+
+		private static final long serialVersionUID = 1L;
+
+		private ALIFPopulation myPopulation;
+		private int myIndex;
+		private SimulationMode myMode;
+
+		/**
+		 * @param population Population in which state and parameters are held
+		 * @param index Slot index
+		 */
+		public Generator(ALIFPopulation population, int index) {
+			myPopulation = population;
+			myIndex = index;
+			myMode = SimulationMode.DEFAULT;
+		}
+
+		/**
+		 * @return Population in which state and parameters are held
+		 */
+		public ALIFPopulation getPopulation() {
+			return myPopulation;
+		}
+
+		/**
+		 * @return Slot index
+		 */
+		public int getIndex() {
+			return myIndex;
+		}
+
+		/**
+		 * @return Increment of adaptation current with each spike
+		 */
+		public float getIncN() {
+			return myPopulation.getIncN(myIndex);
+		}
+
+		/**
+		 * @param incN Increment of adaptation current with each spike
+		 */
+		public void setIncN(float incN) {
+			myPopulation.setIncN(myIndex, incN);
+		}
+
+		/**
+		 * @return Time constant of adaptation current decay
+		 */
+		public float getTauN() {
+			return myPopulation.getTauN(myIndex);
+		}
+
+		/**
+		 * @param tauN Time constant of adaptation current decay
+		 */
+		public void setTauN(float tauN) {
+			myPopulation.setTauN(myIndex, tauN);
+		}
+
+		/**
+		 * @return Membrane time constant
+		 */
+		public float getTauRC() {
+			return myPopulation.getTauRC(myIndex);
+		}
+
+		/**
+		 * @return Refractory period
+		 */
+		public float getTauRef() {
+			return myPopulation.getTauRef(myIndex);
+		}
+
+		/**
+		 * @see ca.nengo.model.neuron.SpikeGenerator#run(float[], float[])
+		 */
+		public InstantaneousOutput run(float[] time, float[] current) {
+			float endTime = time[time.length-1];
+
+			if (myMode.equals(SimulationMode.CONSTANT_RATE)) {
+				float rate = myPopulation.getRate(myIndex, current[current.length-1]);
+				return new RealOutputImpl(new float[]{rate}, Units.SPIKES_PER_S, endTime);
+			}
+
+			myPopulation.startStep(time[0], endTime);
+			if (myMode.equals(SimulationMode.RATE)) {
+				float rate = 0;
+				for (int i = 0; i < time.length-1; i++) {
+					rate = myPopulation.stepRate(myIndex, time[i+1] - time[i], current[i]);
+				}
+				return new RealOutputImpl(new float[]{rate}, Units.SPIKES_PER_S, endTime);
+			} else {
+				boolean spiked = false;
+				for (int i = 0; i < time.length-1; i++) {
+					spiked = myPopulation.step(myIndex, time[i+1] - time[i], current[i]) || spiked;
+				}
+				return new SpikeOutputImpl(new boolean[]{spiked}, Units.SPIKES, endTime);
+			}
+		}
+
+		/**
+		 * @see ca.nengo.model.SimulationMode.ModeConfigurable#getMode()
+		 */
+		public SimulationMode getMode() {
+			return myMode;
+		}
+
+		/**
+		 * RATE and CONSTANT_RATE are supported; other modes default to spiking.
+		 *
+		 * @see ca.nengo.model.SimulationMode.ModeConfigurable#setMode(ca.nengo.model.SimulationMode)
+		 */
+		public void setMode(SimulationMode mode) {
+			if (mode.equals(SimulationMode.RATE) || mode.equals(SimulationMode.CONSTANT_RATE)) {
+				myMode = mode;
+			} else {
+				myMode = SimulationMode.DEFAULT;
+			}
+		}
+
+		/**
+		 * @see ca.nengo.model.Resettable#reset(boolean)
+		 */
+		public void reset(boolean randomize) {
+			myPopulation.reset(myIndex, randomize);
+		}
+
+		/**
+		 * @see java.lang.Object#clone()
+		 */
+		@Override
+		public Generator clone() throws CloneNotSupportedException {
+			Generator result = (Generator) super.clone();
+			result.myPopulation = myPopulation.getCloneTarget(myIndex);
+			return result;
+		}
+	}
+
+	/**
+	 * Makes SpikingNeurons whose spike generators are views of a single ALIFPopulation. Parameters
+	 * are as those of ALIFNeuronFactory.
+	 */
+	public static class Factory implements NodeFactory {
+
+		private static final long serialVersionUID = 1L;
+
+		private PDF myMaxRate;
+		private PDF myIntercept;
+		private PDF myIncN;
+		private float myTauRef;
+		private float myTauRC;
+		private float myTauN;
+		private ALIFPopulation myPopulation;
+
+		/**
+		 * @param maxRate Maximum (unadapted) firing rate distribution
+		 * @param intercept Level of represented value at which neurons begin to fire
+		 * @param incN Increment of adaptation current with each spike
+		 * @param tauRef Refractory period
+		 * @param tauRC Membrane time constant
+		 * @param tauN Time constant of adaptation current decay
+		 */
+		public Factory(PDF maxRate, PDF intercept, PDF incN, float tauRef, float tauRC, float tauN) {
+			myMaxRate = maxRate;
+			myIntercept = intercept;
+			myIncN = incN;
+			myTauRef = tauRef;
+			myTauRC = tauRC;
+			myTauN = tauN;
+			myPopulation = new ALIFPopulation();
+		}
+
+		/**
+		 * @return Population in which the states of the neurons made by this factory are held
+		 */
+		public ALIFPopulation getPopulation() {
+			return myPopulation;
+		}
+
+		/**
+		 * @see ca.nengo.model.impl.NodeFactory#make(java.lang.String)
+		 */
+		public Node make(String name) throws StructuralException {
+			float maxRate = myMaxRate.sample()[0];
+			float intercept = myIntercept.sample()[0];
+
+			//scale and bias that give the unadapted maximum rate at 1 and the given intercept
+			float x = 1f / (1f - (float) Math.exp( (myTauRef - (1f / maxRate)) / myTauRC));
+			float scale = (x - 1f) / (1f - intercept);
+			float bias = 1 - scale * intercept;
+
+			int index = myPopulation.add(myIncN.sample()[0], myTauN, myTauRC, myTauRef);
+			Generator generator = new Generator(myPopulation, index);
+			return new SpikingNeuron(new LinearSynapticIntegrator(.001f, Units.ACU), generator, scale, bias, name);
+		}
+
+		/**
+		 * @see ca.nengo.model.impl.NodeFactory#getTypeDescription()
+		 */
+		public String getTypeDescription() {
+			return "Adapting LIF Neuron (population)";
+		}
+	}
+
+}
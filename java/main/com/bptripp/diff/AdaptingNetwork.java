@@ -12,7 +12,6 @@ import ca.nengo.model.RealOutput;
 import ca.nengo.model.SimulationException;
 import ca.nengo.model.SimulationMode;
 import ca.nengo.model.StructuralException;
-import ca.nengo.model.Noise.Noisy;
 import ca.nengo.model.impl.FunctionInput;
 import ca.nengo.model.impl.NoiseFactory;
 import ca.nengo.model.nef.NEFEnsemble;
@@ -20,8 +19,6 @@ import ca.nengo.model.nef.NEFEnsembleFactory;
 import ca.nengo.model.nef.impl.DecodedTermination;
 import ca.nengo.model.nef.impl.NEFEnsembleFactoryImpl;
 import ca.nengo.model.neuron.Neuron;
-import ca.nengo.model.neuron.impl.ALIFNeuronFactory;
-import ca.nengo.model.neuron.impl.ALIFSpikeGenerator;
 import ca.nengo.model.neuron.impl.SpikingNeuron;
 import ca.nengo.util.MU;
 
@@ -62,10 +59,11 @@ public class AdaptingNetwork extends DifferentiatorNetwork {
 		addProjection(getInput().getOrigin(FunctionInput.ORIGIN_NAME), getInputEnsemble().getTermination("input"));
 		
 		NEFEnsembleFactory aef = getALIFEnsembleFactory();		
-		myAdapting = aef.make("adapting", nAdapting, 1, "adapting_diff_"+nAdapting, false);
+		myAdapting = aef.make("adapting", nAdapting, 1, "adapting_population_diff_"+nAdapting, false);
 		addNode(myAdapting);
 		
 		NEFEnsembleFactory ef = new NEFEnsembleFactoryImpl();		
+		ef.setApproximatorFactory(new CachingApproximatorFactory());
 		myCompensating = ef.make("compensating", nCompensating, 1);
 		myCompensating.addDecodedTermination("input", MU.I(1), tauPSC, false);
 		addNode(myCompensating);
@@ -101,7 +99,7 @@ public class AdaptingNetwork extends DifferentiatorNetwork {
 
 		enableParisien(myInputAdaptingProjection, nAdapting);
 		enableParisien(myInputCompensatingProjection, nCompensating);
-		myAdaptingOutputProjection.addBias(nOutput, TAU_INTERNEURONS, myAdaptingOutputProjection.getTermination().getTau(), true, false);
+		enableParisien(myAdaptingOutputProjection, nOutput, false);
 		enableParisien(myCompensatingOutputProjection, nOutput);
 	}
 	
@@ -110,39 +108,48 @@ public class AdaptingNetwork extends DifferentiatorNetwork {
 	 * @see ca.bpt.diff.DifferentiatorNetwork#disableParisien()
 	 */
 	public void disableParisien() {
-		myInputAdaptingProjection.removeBias();
-		myInputCompensatingProjection.removeBias();
-		myAdaptingOutputProjection.removeBias();
-		myCompensatingOutputProjection.removeBias();
+		disableParisien(myInputAdaptingProjection);
+		disableParisien(myInputCompensatingProjection);
+		disableParisien(myAdaptingOutputProjection);
+		disableParisien(myCompensatingOutputProjection);
 	}
 	
 	/**
-	 * @return factory for NEFEnsembles composed of adapting LIF neurons
+	 * @return factory for NEFEnsembles composed of adapting LIF neurons (the neurons of each ensemble share 
+	 * 		an ALIFPopulation)
 	 */
 	public static NEFEnsembleFactory getALIFEnsembleFactory() {
 		NEFEnsembleFactory result = new NEFEnsembleFactoryImpl();
+		result.setApproximatorFactory(new CachingApproximatorFactory());
 		float incN = .05f;
 		float tauN = .2f;
-		result.setNodeFactory(new ALIFNeuronFactory(new IndicatorPDF(200, 400), new IndicatorPDF(-2.5f, -1.5f), new IndicatorPDF(incN), .0005f, .02f, tauN));
+		result.setNodeFactory(new ALIFPopulation.Factory(new IndicatorPDF(200, 400), new IndicatorPDF(-2.5f, -1.5f), new IndicatorPDF(incN), .0005f, .02f, tauN));
 		return result;
 	}
 	
 	@Override
 	public void setTau(float tau) {
 		Node[] neurons = myAdapting.getNodes();
+		ALIFPopulation population = ((ALIFPopulation.Generator) ((SpikingNeuron) neurons[0]).getGenerator()).getPopulation();
+		float[] incN = new float[population.getSize()];
+		float[] tauN = new float[population.getSize()];
+		for (int i = 0; i < population.getSize(); i++) {
+			incN[i] = population.getIncN(i);
+			tauN[i] = population.getTauN(i);
+		}
+		
 		for (int i = 0; i < neurons.length; i++) {
 			SpikingNeuron neuron = (SpikingNeuron) neurons[i];
-			ALIFSpikeGenerator generator = (ALIFSpikeGenerator) neuron.getGenerator();
+			int index = ((ALIFPopulation.Generator) neuron.getGenerator()).getIndex();
 			
 			float alpha = getSlope(neuron) / neuron.getScale();
 			float b = neuron.getBias();
 			float c = neuron.getScale();
 			
-			float tauN = tau/2 * (b/c + 1);
-			float A_N = (1/tau - 1/tauN) / alpha;
-			generator.setIncN(A_N);
-			generator.setTauN(tauN);
+			tauN[index] = tau/2 * (b/c + 1);
+			incN[index] = (1/tau - 1/tauN[index]) / alpha; //A_N
 		}
+		population.setAdaptation(incN, tauN);
 
 		try {
 			setCompensation(tau);
@@ -201,9 +208,9 @@ public class AdaptingNetwork extends DifferentiatorNetwork {
 	@Override
 	public void clearErrors() {
 		try {
-			((Noisy) getInputEnsemble().getOrigin(NEFEnsemble.X)).setNoise(new NoiseFactory.NoiseImplNull());
-			((Noisy) myAdapting.getOrigin(NEFEnsemble.X)).setNoise(new NoiseFactory.NoiseImplNull());
-			((Noisy) myCompensating.getOrigin(COMPENSATING)).setNoise(new NoiseFactory.NoiseImplNull());
+			setNoise(getInputEnsemble().getOrigin(NEFEnsemble.X), new NoiseFactory.NoiseImplNull());
+			setNoise(myAdapting.getOrigin(NEFEnsemble.X), new NoiseFactory.NoiseImplNull());
+			setNoise(myCompensating.getOrigin(COMPENSATING), new NoiseFactory.NoiseImplNull());
 		} catch (StructuralException e) {
 			throw new RuntimeException(e);
 		}		
@@ -214,9 +221,9 @@ public class AdaptingNetwork extends DifferentiatorNetwork {
 		int nAdapting = Math.round(nDiff*myPropAdapting);
 		int nCompensating = Math.round(nDiff*(1-myPropAdapting));
 		try {
-			((Noisy) getInputEnsemble().getOrigin(NEFEnsemble.X)).setNoise(makeDistortion(nInput));
-			((Noisy) myAdapting.getOrigin(NEFEnsemble.X)).setNoise(makeDistortion(nAdapting));
-			((Noisy) myCompensating.getOrigin(COMPENSATING)).setNoise(makeDistortion(nCompensating));
+			setNoise(getInputEnsemble().getOrigin(NEFEnsemble.X), makeDistortion(nInput));
+			setNoise(myAdapting.getOrigin(NEFEnsemble.X), makeDistortion(nAdapting));
+			setNoise(myCompensating.getOrigin(COMPENSATING), makeDistortion(nCompensating));
 		} catch (StructuralException e) {
 			throw new RuntimeException(e);
 		}
@@ -227,9 +234,9 @@ public class AdaptingNetwork extends DifferentiatorNetwork {
 		int nAdapting = Math.round(nDiff*myPropAdapting);
 		int nCompensating = Math.round(nDiff*(1-myPropAdapting));
 		try {
-			((Noisy) getInputEnsemble().getOrigin(NEFEnsemble.X)).setNoise(makeNoise(nInput));
-			((Noisy) myAdapting.getOrigin(NEFEnsemble.X)).setNoise(makeNoise(nAdapting));
-			((Noisy) myCompensating.getOrigin(COMPENSATING)).setNoise(makeNoise(nCompensating));
+			setNoise(getInputEnsemble().getOrigin(NEFEnsemble.X), makeNoise(nInput));
+			setNoise(myAdapting.getOrigin(NEFEnsemble.X), makeNoise(nAdapting));
+			setNoise(myCompensating.getOrigin(COMPENSATING), makeNoise(nCompensating));
 		} catch (StructuralException e) {
 			throw new RuntimeException(e);
 		}
@@ -0,0 +1,195 @@
+/*
+ * Created on 17-Oct-26
+ */
+package com.bptripp.diff;
+
+import java.util.Arrays;
+
+import ca.nengo.math.Function;
+import ca.nengo.model.SimulationException;
+import ca.nengo.model.StructuralException;
+import ca.nengo.model.Units;
+import ca.nengo.util.TimeSeries;
+import ca.nengo.util.impl.TimeSeriesImpl;
+
+/**
+ * Simulates a DifferentiatorNetwork in DIRECT mode with adaptive step sizes, rather than with the fixed
+ * step that the fastest dynamics (TAU_INTERNEURONS, TAU_IO) need throughout a run. The network's
+ * LinearModel is integrated with the Bogacki-Shampine 3(2) pair, whose embedded second-order solution
+ * gives an estimate of the local error. Steps are accepted if the error of each state is within
+ * tolerance * (1 + |state|), and step sizes grow through slow stretches of the input and shrink where it
+ * changes quickly. Results are resampled onto a uniform output grid by cubic Hermite interpolation
+ * (using the derivatives at each end of each step), so they can be analysed like probe data.
+ *
+ * Runs are noise-free: the models' noise inputs are piecewise-constant random processes that an
+ * adaptive integrator can't resolve, so networks with noise are rejected (see clearErrors()). Results
+ * are exact (to within tolerance) for networks that are linear in DIRECT mode. The LinearModel only
+ * approximates networks with nonlinear DIRECT-mode origins (such as the bias-compensating origins of
+ * AdaptingNetwork and DepressionNetwork) near zero, so these networks are rejected too (see
+ * LinearModel.getNonlinearOrigins()); run them with fixed steps instead.
+ */
+public class AdaptiveRunner {
+
+	private float myTolerance = 1e-4f;
+	private float myOutputStep = .001f;
+	private float myMaxStep = .01f;
+
+	private int myAcceptedSteps;
+	private int myRejectedSteps;
+
+	/**
+	 * @param tolerance Error tolerance of each step, relative to 1 + |state|
+	 * @param outputStep Interval of the uniform output grid (s)
+	 * @param maxStep Largest step (s), which keeps steps from skipping over brief input features
+	 */
+	public void setParameters(float tolerance, float outputStep, float maxStep) {
+		myTolerance = tolerance;
+		myOutputStep = outputStep;
+		myMaxStep = maxStep;
+	}
+
+	/**
+	 * @return Number of steps accepted in the last run
+	 */
+	public int getAcceptedSteps() {
+		return myAcceptedSteps;
+	}
+
+	/**
+	 * @return Number of steps rejected in the last run
+	 */
+	public int getRejectedSteps() {
+		return myRejectedSteps;
+	}
+
+	/**
+	 * @param network Network to simulate, from rest
+	 * @param startTime Simulation time at which to start (s)
+	 * @param endTime Simulation time at which to stop (s)
+	 * @return Input, decoded input ensemble, and decoded output on the output grid
+	 * @throws SimulationException If the network has noise or nonlinear origins, or can't be modelled
+	 */
+	public TimeSeries[] run(DifferentiatorNetwork network, float startTime, float endTime) throws SimulationException {
+		final LinearModel model;
+		try {
+			model = network.getLinearModel();
+		} catch (StructuralException e) {
+			throw new SimulationException(e);
+		}
+		if (model.getNoises().length > 0) {
+			throw new SimulationException("Adaptive runs are noise-free; clear noise from " + network.getName() + " first");
+		}
+		String[] nonlinear = model.getNonlinearOrigins();
+		if (nonlinear.length > 0) {
+			throw new SimulationException("Adaptive runs need a network that is linear in DIRECT mode; "
+				+ network.getName() + " has nonlinear origins " + Arrays.toString(nonlinear));
+		}
+
+		float[][] A = model.getA();
+		float[][] B = model.getB();
+		float[][] C = model.getC();
+		Function input = network.getInput().getFunctions()[0];
+		int n = A.length;
+
+		int points = (int) Math.floor((endTime - startTime) / myOutputStep + 1e-6) + 1;
+		float[] times = new float[points];
+		float[][] inputValues = new float[points][1];
+		float[][] ensembleValues = new float[points][1];
+		float[][] outputValues = new float[points][1];
+		for (int i = 0; i < points; i++) {
+			times[i] = startTime + i * myOutputStep;
+		}
+
+		double[] x = new double[n];
+		double[] k1 = derivative(A, B, x, input, startTime);
+		double[] k2, k3, k4;
+		double[] y = new double[n];
+		double t = startTime;
+		double h = Math.min(myMaxStep, myOutputStep);
+		int next = 0;
+		myAcceptedSteps = 0;
+		myRejectedSteps = 0;
+
+		while (next < points) {
+			boolean atEnd = endTime - t < 1e-9;
+			while (next < points && (atEnd || times[next] <= t + 1e-9)) { //at start, at end, or if the grid lands on t
+				record(C, x, k1, x, k1, t, 0, input, times[next], next, inputValues, ensembleValues, outputValues);
+				next++;
+			}
+			if (next >= points) break;
+
+			h = Math.min(h, Math.min(myMaxStep, endTime - t));
+
+			for (int i = 0; i < n; i++) y[i] = x[i] + h/2 * k1[i];
+			k2 = derivative(A, B, y, input, t + h/2);
+			for (int i = 0; i < n; i++) y[i] = x[i] + 3*h/4 * k2[i];
+			k3 = derivative(A, B, y, input, t + 3*h/4);
+			for (int i = 0; i < n; i++) y[i] = x[i] + h * (2./9*k1[i] + 1./3*k2[i] + 4./9*k3[i]);
+			k4 = derivative(A, B, y, input, t + h);
+
+			double error = 0;
+			for (int i = 0; i < n; i++) {
+				double e = h * (-5./72*k1[i] + 1./12*k2[i] + 1./9*k3[i] - 1./8*k4[i]);
+				error = Math.max(error, Math.abs(e) / (myTolerance * (1 + Math.max(Math.abs(x[i]), Math.abs(y[i])))));
+			}
+
+			if (error <= 1) {
+				while (next < points && times[next] <= t + h + 1e-9) {
+					record(C, x, k1, y, k4, t, h, input, times[next], next, inputValues, ensembleValues, outputValues);
+					next++;
+				}
+				t += h;
+				double[] swap = x; x = y; y = swap;
+				k1 = k4; //first same as last
+				myAcceptedSteps++;
+			} else {
+				myRejectedSteps++;
+			}
+			h *= Math.min(5, Math.max(.2, .9 * Math.pow(Math.max(error, 1e-10), -1./3)));
+		}
+
+		Units[] units = new Units[]{Units.UNK};
+		return new TimeSeries[]{
+			new TimeSeriesImpl(times, inputValues, units),
+			new TimeSeriesImpl(times, ensembleValues, units),
+			new TimeSeriesImpl(times, outputValues, units)};
+	}
+
+	//dx/dt = A x + B [u 0 ... 0] (noise inputs are zero)
+	private static double[] derivative(float[][] A, float[][] B, double[] x, Function input, double t) {
+		double u = input.map(new float[]{(float) t});
+		double[] result = new double[x.length];
+		for (int i = 0; i < x.length; i++) {
+			double sum = B[i][0] * u;
+			for (int j = 0; j < x.length; j++) {
+				sum += A[i][j] * x[j];
+			}
+			result[i] = sum;
+		}
+		return result;
+	}
+
+	//cubic Hermite interpolation of outputs within a step from t0 (state x0, derivative f0) to t0 + h (x1, f1)
+	private static void record(float[][] C, double[] x0, double[] f0, double[] x1, double[] f1, double t0, double h,
+			Function input, float time, int index, float[][] inputValues, float[][] ensembleValues, float[][] outputValues) {
+		double s = h > 0 ? (time - t0) / h : 0;
+		double h00 = 2*s*s*s - 3*s*s + 1;
+		double h10 = s*s*s - 2*s*s + s;
+		double h01 = -2*s*s*s + 3*s*s;
+		double h11 = s*s*s - s*s;
+
+		inputValues[index][0] = input.map(new float[]{time});
+		ensembleValues[index][0] = (float) interpolate(C[LinearModel.INPUT_ENSEMBLE], x0, f0, x1, f1, h, h00, h10, h01, h11);
+		outputValues[index][0] = (float) interpolate(C[LinearModel.OUTPUT], x0, f0, x1, f1, h, h00, h10, h01, h11);
+	}
+
+	private static double interpolate(float[] c, double[] x0, double[] f0, double[] x1, double[] f1, double h,
+			double h00, double h10, double h01, double h11) {
+		double result = 0;
+		for (int i = 0; i < c.length; i++) {
+			result += c[i] * (h00*x0[i] + h10*h*f0[i] + h01*x1[i] + h11*h*f1[i]);
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,306 @@
+/*
+ * Created on 17-Oct-26
+ */
+package com.bptripp.diff;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import ca.nengo.model.SimulationException;
+import ca.nengo.model.SimulationMode;
+import ca.nengo.model.StructuralException;
+
+/**
+ * Measures the speed of each DifferentiatorNetwork subclass, at the sizes used in loadNetworks.py,
+ * so that the effects of changes on performance can be tracked.
+ *
+ * Four kinds of benchmark are run on each network: construction time; latency of setTau(...), both cold
+ * (with CompensationCache and CachingApproximatorFactory cleared and their directories unset, so that
+ * compensation and any decoders that setTau(...) solves are found from scratch) and warm (with
+ * compensation curves cached), and latency of enableParisien(...) (including application of the
+ * conversion, which is otherwise deferred until the next run); per-step synaptic cost with Parisien
+ * conversion as in the scripts (.25), as simulated (factored) and as it would be with explicit weights;
+ * and simulation throughput (simulated steps per second of wall time) in each of the DEFAULT,
+ * CONSTANT_RATE, RATE, and DIRECT modes, on a freshly built network, so that earlier benchmarks don't
+ * affect it. Each benchmark has warmup iterations, which are discarded, followed by measured
+ * iterations. Results are written as a JSON array with one record per benchmark (similar to JMH's JSON
+ * output), so that results from different releases can be compared.
+ *
+ * Usage: java com.bptripp.diff.Benchmark [output file] [networks...], where networks are any of
+ * interneuron, dualTC, feedback, adapting, and depressing (default all).
+ */
+public class Benchmark {
+
+	public static final String[] NETWORKS = new String[]{"interneuron", "dualTC", "feedback", "adapting", "depressing"};
+	public static final SimulationMode[] MODES = new SimulationMode[]{SimulationMode.DEFAULT,
+		SimulationMode.CONSTANT_RATE, SimulationMode.RATE, SimulationMode.DIRECT};
+
+	private static final float PARISIEN_PROPORTION = .25f; //as in the scripts
+
+	private int myWarmupIterations = 2;
+	private int myIterations = 5;
+	private float mySimulationTime = .2f;
+	private int myConstructionIterations = 1;
+	private List<Result> myResults = new ArrayList<Result>();
+
+	/**
+	 * @param warmupIterations Number of iterations of each simulation or latency benchmark to discard
+	 * @param iterations Number of iterations of each simulation or latency benchmark to measure
+	 * @param simulationTime Simulation time (s) of each simulation benchmark iteration
+	 * @param constructionIterations Number of times each network is constructed (construction is slow,
+	 * 		and is not warmed up separately)
+	 */
+	public void setIterations(int warmupIterations, int iterations, float simulationTime, int constructionIterations) {
+		myWarmupIterations = warmupIterations;
+		myIterations = iterations;
+		mySimulationTime = simulationTime;
+		myConstructionIterations = constructionIterations;
+	}
+
+	/**
+	 * @return Results of benchmarks run so far
+	 */
+	public List<Result> getResults() {
+		return myResults;
+	}
+
+	/**
+	 * @param name One of NETWORKS
+	 * @return A new network, configured as in loadNetworks.py
+	 * @throws StructuralException
+	 */
+	public static DifferentiatorNetwork makeNetwork(String name) throws StructuralException {
+		DifferentiatorNetwork result = null;
+
+		if (name.equals("interneuron")) {
+			result = new InterneuronNetwork(.1f, 2000);
+		} else if (name.equals("dualTC")) {
+			result = new DualTCNetwork(.005f, .1f, true);
+		} else if (name.equals("feedback")) {
+			result = new FeedbackNetwork(new int[]{1000, 1000}, .1f,
+					new float[][]{new float[]{-8.8858f, 8.8858f}, new float[]{-8.8858f, -8.8858f}},
+					new float[][]{new float[]{27.4892f}, new float[]{-27.4892f}},
+					new float[][]{new float[]{5.7446f, 0}});
+		} else if (name.equals("adapting")) {
+			result = new AdaptingNetwork(1600, 400, .005f);
+		} else if (name.equals("depressing")) {
+			result = new DepressionNetwork(2000);
+		} else {
+			throw new IllegalArgumentException("Unknown network: " + name);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Runs all benchmarks on one network.
+	 *
+	 * @param name One of NETWORKS
+	 * @throws StructuralException
+	 * @throws SimulationException
+	 */
+	public void run(String name) throws StructuralException, SimulationException {
+		DifferentiatorNetwork network = null;
+		float[] construction = new float[myConstructionIterations];
+		for (int i = 0; i < myConstructionIterations; i++) {
+			long start = System.nanoTime();
+			network = makeNetwork(name);
+			construction[i] = (System.nanoTime() - start) / 1e6f;
+		}
+		myResults.add(new Result("construction", name, null, "ms", construction));
+
+		File directory = CompensationCache.getDirectory();
+		File decoderDirectory = CachingApproximatorFactory.getDirectory();
+		float[] tau = new float[myIterations];
+		try {
+			CompensationCache.setDirectory(null);
+			CachingApproximatorFactory.setDirectory(null);
+			for (int i = -myWarmupIterations; i < myIterations; i++) {
+				CompensationCache.clear();
+				CachingApproximatorFactory.clear();
+				long start = System.nanoTime();
+				network.setTau(.1f);
+				if (i >= 0) tau[i] = (System.nanoTime() - start) / 1e6f;
+			}
+		} finally {
+			CompensationCache.setDirectory(directory);
+			CachingApproximatorFactory.setDirectory(decoderDirectory);
+		}
+		myResults.add(new Result("setTau", name, null, "ms", tau));
+
+		float[] cachedTau = new float[myIterations];
+		for (int i = -myWarmupIterations; i < myIterations; i++) {
+			long start = System.nanoTime();
+			network.setTau(.1f);
+			if (i >= 0) cachedTau[i] = (System.nanoTime() - start) / 1e6f;
+		}
+		myResults.add(new Result("setTauCached", name, null, "ms", cachedTau));
+
+		float[] parisien = new float[myIterations];
+		for (int i = -myWarmupIterations; i < myIterations; i++) {
+			long start = System.nanoTime();
+			network.enableParisien(PARISIEN_PROPORTION);
+			network.applyParisien();
+			if (i >= 0) parisien[i] = (System.nanoTime() - start) / 1e6f;
+			network.disableParisien();
+			network.applyParisien();
+		}
+		myResults.add(new Result("enableParisien", name, null, "ms", parisien));
+		
+		network.enableParisien(PARISIEN_PROPORTION);
+		long[] cost = network.getSynapticCost();
+		myResults.add(new Result("synapticCost", name, null, "ops/step", new float[]{cost[0]}));
+		myResults.add(new Result("denseSynapticCost", name, null, "ops/step", new float[]{cost[1]}));
+
+		network = makeNetwork(name);
+		for (int i = 0; i < MODES.length; i++) {
+			myResults.add(new Result("simulation", name, MODES[i], "steps/s", measureSteps(network, MODES[i])));
+		}
+	}
+
+	//steps per second of wall time in each measured iteration
+	private float[] measureSteps(DifferentiatorNetwork network, SimulationMode mode) throws SimulationException {
+		network.setMode(mode);
+		int steps = Math.round(mySimulationTime / network.getStepSize());
+
+		float[] result = new float[myIterations];
+		for (int i = -myWarmupIterations; i < myIterations; i++) {
+			network.reset(false);
+			long start = System.nanoTime();
+			network.run(0, mySimulationTime);
+			if (i >= 0) result[i] = steps / ((System.nanoTime() - start) / 1e9f);
+		}
+		return result;
+	}
+
+	/**
+	 * @param destination File to which to write results as JSON
+	 * @throws IOException
+	 */
+	public void write(File destination) throws IOException {
+		Writer writer = new FileWriter(destination);
+		try {
+			writer.write("[\n");
+			for (int i = 0; i < myResults.size(); i++) {
+				writer.write(myResults.get(i).toJSON());
+				writer.write(i < myResults.size() - 1 ? ",\n" : "\n");
+			}
+			writer.write("]\n");
+		} finally {
+			writer.close();
+		}
+	}
+
+	public static void main(String[] args) throws StructuralException, SimulationException, IOException {
+		File destination = new File(args.length > 0 ? args[0] : "benchmark.json");
+		String[] networks = NETWORKS;
+		if (args.length > 1) {
+			networks = new String[args.length - 1];
+			System.arraycopy(args, 1, networks, 0, networks.length);
+		}
+
+		Benchmark benchmark = new Benchmark();
+		for (int i = 0; i < networks.length; i++) {
+			benchmark.run(networks[i]);
+		}
+		for (Result result : benchmark.getResults()) {
+			System.out.println(result);
+		}
+		benchmark.write(destination);
+	}
+
+	/**
+	 * Measurements from one benchmark.
+	 */
+	public static class Result {
+
+		private String myBenchmark;
+		private String myNetwork;
+		private SimulationMode myMode;
+		private String myUnit;
+		private float[] mySamples;
+
+		/**
+		 * @param benchmark Name of benchmark
+		 * @param network Name of network
+		 * @param mode Simulation mode (null if not applicable)
+		 * @param unit Unit of measurement
+		 * @param samples Measurement from each iteration
+		 */
+		public Result(String benchmark, String network, SimulationMode mode, String unit, float[] samples) {
+			myBenchmark = benchmark;
+			myNetwork = network;
+			myMode = mode;
+			myUnit = unit;
+			mySamples = samples;
+		}
+
+		/**
+		 * @return Mean of samples
+		 */
+		public float getScore() {
+			float sum = 0;
+			for (int i = 0; i < mySamples.length; i++) {
+				sum += mySamples[i];
+			}
+			return sum / mySamples.length;
+		}
+
+		/**
+		 * @return Sample standard deviation (0 if there is only one sample)
+		 */
+		public float getError() {
+			if (mySamples.length < 2) return 0;
+
+			float mean = getScore();
+			float sum = 0;
+			for (int i = 0; i < mySamples.length; i++) {
+				sum += (mySamples[i] - mean) * (mySamples[i] - mean);
+			}
+			return (float) Math.sqrt(sum / (mySamples.length - 1));
+		}
+
+		/**
+		 * @return Measurement from each iteration
+		 */
+		public float[] getSamples() {
+			return mySamples;
+		}
+
+		/**
+		 * @return This result as a JSON object
+		 */
+		public String toJSON() {
+			StringBuffer buffer = new StringBuffer();
+			buffer.append("  {\"benchmark\": \"").append(myBenchmark).append('"');
+			buffer.append(", \"network\": \"").append(myNetwork).append('"');
+			buffer.append(", \"mode\": ").append(myMode == null ? "null" : "\"" + myMode + "\"");
+			buffer.append(", \"unit\": \"").append(myUnit).append('"');
+			buffer.append(", \"score\": ").append(format(getScore()));
+			buffer.append(", \"error\": ").append(format(getError()));
+			buffer.append(", \"samples\": [");
+			for (int i = 0; i < mySamples.length; i++) {
+				if (i > 0) buffer.append(", ");
+				buffer.append(format(mySamples[i]));
+			}
+			buffer.append("]}");
+			return buffer.toString();
+		}
+
+		@Override
+		public String toString() {
+			return myBenchmark + " " + myNetwork + (myMode == null ? "" : " " + myMode)
+				+ ": " + format(getScore()) + " +/- " + format(getError()) + " " + myUnit;
+		}
+
+		private static String format(float value) {
+			return String.format(Locale.US, "%.4g", value);
+		}
+	}
+
+}
@@ -0,0 +1,258 @@
+/*
+ * Created on 17-Oct-26
+ */
+package com.bptripp.diff;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import ca.nengo.math.ApproximatorFactory;
+import ca.nengo.math.Function;
+import ca.nengo.math.LinearApproximator;
+import ca.nengo.math.impl.WeightedCostApproximator;
+
+/**
+ * An ApproximatorFactory that caches decoders, so that they aren't re-solved each time the networks
+ * are built. Decoders that aren't cached are found by Nengo's WeightedCostApproximator (with the same
+ * noise level that NEFEnsembleFactoryImpl uses by default), so they are the same decoders that an
+ * ensemble would have without the cache.
+ *
+ * Decoders are keyed by content rather than by name: a hash of the evaluation points, the neuron outputs
+ * (which reflect encoders and all neuron parameters), the noise level, and the target function's values
+ * at the evaluation points. The WeightedCostApproximator (which inverts the Gram matrix) is only made when
+ * an ensemble has an origin whose decoders aren't cached, and is then reused for the ensemble's other
+ * origins. Decoders are kept in memory and, unless the directory is set to null, in small files that
+ * persist between sessions (as in CompensationCache). Ensembles that are built with random parameters in
+ * each session (e.g. those without a storage name) get new keys each time, so the directory holds at most
+ * MAX_STORED_DECODERS files, and the least recently used are deleted beyond this.
+ */
+public class CachingApproximatorFactory implements ApproximatorFactory {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Maximum number of decoder files kept in the directory
+	 */
+	public static int MAX_STORED_DECODERS = 2000;
+
+	private static final String EXTENSION = ".dec";
+
+	//part of each key, so that decoders stored by earlier versions aren't reused
+	//(version 1 found decoders with a separate ridge-regression solver)
+	private static final int VERSION = 2;
+
+	private static Map<String, float[]> ourDecoders = new HashMap<String, float[]>();
+	private static File ourDirectory = new File("decoder_cache");
+	private static Map<String, File> ourStored; //decoder files in ourDirectory, least recently used first (null until listed)
+
+	private float myNoise;
+
+	/**
+	 * Uses noise of 0.1, as NEFEnsembleFactoryImpl does by default.
+	 */
+	public CachingApproximatorFactory() {
+		this(.1f);
+	}
+
+	/**
+	 * @param noise Noise level for regularization, as a fraction of the maximum neuron output
+	 * 		(see WeightedCostApproximator)
+	 */
+	public CachingApproximatorFactory(float noise) {
+		myNoise = noise;
+	}
+
+	/**
+	 * @return Noise level for regularization, as a fraction of the maximum neuron output
+	 */
+	public float getNoise() {
+		return myNoise;
+	}
+
+	/**
+	 * @return Directory in which decoders are stored (null if decoders are only kept in memory)
+	 */
+	public static synchronized File getDirectory() {
+		return ourDirectory;
+	}
+
+	/**
+	 * @param directory Directory in which decoders are stored (null to keep decoders only in memory)
+	 */
+	public static synchronized void setDirectory(File directory) {
+		ourDirectory = directory;
+		ourStored = null;
+	}
+
+	/**
+	 * Clears decoders from memory (stored files are not deleted).
+	 */
+	public static synchronized void clear() {
+		ourDecoders.clear();
+	}
+
+	/**
+	 * @see ca.nengo.math.ApproximatorFactory#getApproximator(float[][], float[][])
+	 */
+	public LinearApproximator getApproximator(float[][] evalPoints, float[][] values) {
+		return new Approximator(evalPoints, values, myNoise);
+	}
+
+	/**
+	 * @see java.lang.Object#clone()
+	 */
+	@Override
+	public ApproximatorFactory clone() throws CloneNotSupportedException {
+		return (ApproximatorFactory) super.clone();
+	}
+
+	private static synchronized float[] getDecoders(String key) {
+		float[] result = ourDecoders.get(key);
+
+		if (result == null && ourDirectory != null) {
+			File file = new File(ourDirectory, key + EXTENSION);
+			if (file.exists()) {
+				try {
+					result = (float[]) Util.deserialize(Util.read(file));
+					ourDecoders.put(key, result);
+					getStored().put(key, file);
+					file.setLastModified(System.currentTimeMillis());
+				} catch (Exception e) {
+					System.err.println("Ignoring unreadable decoder file " + file + ": " + e.getMessage());
+				}
+			}
+		}
+
+		return result;
+	}
+
+	private static synchronized void putDecoders(String key, float[] decoders) {
+		ourDecoders.put(key, decoders);
+
+		if (ourDirectory != null) {
+			try {
+				ourDirectory.mkdirs();
+				FileOutputStream out = new FileOutputStream(new File(ourDirectory, key + EXTENSION));
+				try {
+					out.write(Util.serialize(decoders));
+				} finally {
+					out.close();
+				}
+				getStored().put(key, new File(ourDirectory, key + EXTENSION));
+			} catch (IOException e) {
+				System.err.println("Couldn't store decoders " + key + ": " + e.getMessage());
+			}
+
+			Iterator<File> eldest = getStored().values().iterator();
+			while (getStored().size() > MAX_STORED_DECODERS && eldest.hasNext()) {
+				eldest.next().delete();
+				eldest.remove();
+			}
+		}
+	}
+
+	//decoder files in the directory, in access order (listed by modification time the first time)
+	private static Map<String, File> getStored() {
+		if (ourStored == null) {
+			ourStored = new LinkedHashMap<String, File>(16, .75f, true);
+			File[] files = ourDirectory.listFiles();
+			if (files != null) {
+				Arrays.sort(files, new Comparator<File>() {
+					public int compare(File a, File b) {
+						long difference = a.lastModified() - b.lastModified();
+						return difference < 0 ? -1 : (difference > 0 ? 1 : 0);
+					}
+				});
+				for (File file : files) {
+					String name = file.getName();
+					if (name.endsWith(EXTENSION)) {
+						ourStored.put(name.substring(0, name.length() - EXTENSION.length()), file);
+					}
+				}
+			}
+		}
+		return ourStored;
+	}
+
+	/**
+	 * WeightedCostApproximator with cached decoders.
+	 */
+	public static class Approximator implements LinearApproximator {
+
+		private static final long serialVersionUID = 1L;
+
+		private float[][] myEvalPoints;
+		private float[][] myValues;
+		private float myNoise;
+		private String myKey;
+		private transient LinearApproximator myApproximator; //made when decoders aren't cached
+
+		/**
+		 * @param evalPoints Points at which target functions are evaluated
+		 * @param values Output of each neuron (first index) at each evaluation point (second index)
+		 * @param noise Noise level for regularization, as a fraction of the maximum neuron output
+		 */
+		public Approximator(float[][] evalPoints, float[][] values, float noise) {
+			myEvalPoints = evalPoints;
+			myValues = values;
+			myNoise = noise;
+
+			long hash = Util.HASH_SEED;
+			hash = Util.hash(hash, evalPoints);
+			hash = Util.hash(hash, values);
+			hash = Util.hash(hash, noise);
+			myKey = values.length + "_" + evalPoints.length + "_" + Long.toHexString(hash) + "_v" + VERSION;
+		}
+
+		/**
+		 * @see ca.nengo.math.LinearApproximator#getEvalPoints()
+		 */
+		public float[][] getEvalPoints() {
+			return myEvalPoints;
+		}
+
+		/**
+		 * @see ca.nengo.math.LinearApproximator#getValues()
+		 */
+		public float[][] getValues() {
+			return myValues;
+		}
+
+		/**
+		 * @see ca.nengo.math.LinearApproximator#findCoefficients(ca.nengo.math.Function)
+		 */
+		public float[] findCoefficients(Function target) {
+			long hash = Util.HASH_SEED;
+			for (int k = 0; k < myEvalPoints.length; k++) {
+				hash = Util.hash(hash, target.map(myEvalPoints[k]));
+			}
+			String key = myKey + "_" + Long.toHexString(hash);
+
+			float[] result = CachingApproximatorFactory.getDecoders(key);
+			if (result == null) {
+				if (myApproximator == null) {
+					myApproximator = new WeightedCostApproximator.Factory(myNoise).getApproximator(myEvalPoints, myValues);
+				}
+				result = myApproximator.findCoefficients(target);
+				CachingApproximatorFactory.putDecoders(key, result.clone());
+			}
+			return result.clone();
+		}
+
+		/**
+		 * @see java.lang.Object#clone()
+		 */
+		@Override
+		public LinearApproximator clone() throws CloneNotSupportedException {
+			return (LinearApproximator) super.clone();
+		}
+	}
+
+}
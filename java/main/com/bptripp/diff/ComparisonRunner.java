@@ -0,0 +1,369 @@
+/*
+ * Created on 17-Oct-26
+ */
+package com.bptripp.diff;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ca.nengo.math.Function;
+import ca.nengo.model.Noise;
+import ca.nengo.model.RealOutput;
+import ca.nengo.model.SimulationException;
+import ca.nengo.model.StructuralException;
+import ca.nengo.model.Termination;
+import ca.nengo.model.Units;
+import ca.nengo.model.impl.FunctionInput;
+import ca.nengo.model.impl.NetworkImpl;
+import ca.nengo.model.nef.NEFEnsemble;
+import ca.nengo.model.nef.impl.DecodedOrigin;
+import ca.nengo.model.nef.impl.NEFEnsembleFactoryImpl;
+import ca.nengo.util.MU;
+
+/**
+ * Runs several DifferentiatorNetworks in one shared time loop (a replacement for the per-network loops in
+ * simulations.py and similar scripts), so that they are guaranteed to see identical input, and their
+ * outputs are collected in one table with a row per time step.
+ *
+ * The input function and input ensemble are simulated once, in an input stage, and their output is
+ * passed to every network that can share it (see DifferentiatorNetwork.detachInputEnsemble(...));
+ * others, such as DepressionNetwork, keep their own input ensembles and are driven by the same input
+ * function. Each step, the input stage and every network advance on their own threads, and the step
+ * ends when all have finished. As in Nengo's simulator, values cross from the input stage to the
+ * networks at the start of each step, so the networks see the input ensemble's output from the end of
+ * the previous step.
+ *
+ * The given networks are not changed; they are copied, and the copies are run. Copies with duplicate
+ * names are given a numeric suffix, so that each column of the table has a distinct name. All networks
+ * must have the same simulation mode and step size, and the input stage is run with the same ones.
+ *
+ * FilteredNoise (the networks' abstract noise model) draws from its own random streams, but other
+ * random processes draw from the shared PDFTools generator while they run. With more than one thread,
+ * the order of these draws varies from run to run, so results can't be reproduced by seeding PDFTools.
+ * Runs with nThreads = 1 step the input stage and networks in a fixed order, and are reproducible.
+ */
+public class ComparisonRunner {
+
+	private DifferentiatorNetwork[] myNetworks;
+	private NetworkImpl myInputStage;
+	private FunctionInput myInput;
+	private NEFEnsemble myInputEnsemble;
+	private List<List<String[]>> myExposed; //for each network, [input-stage origin, exposed termination] (null if not shared)
+	private int myNThreads;
+
+	/**
+	 * Uses one thread per network (and one for the input stage).
+	 *
+	 * @param networks Networks to compare
+	 * @param input Input function
+	 * @throws StructuralException
+	 */
+	public ComparisonRunner(DifferentiatorNetwork[] networks, Function input) throws StructuralException {
+		this(networks, input, networks.length + 1);
+	}
+
+	/**
+	 * @param networks Networks to compare
+	 * @param input Input function
+	 * @param nThreads Number of threads on which to step networks (1 for results that are reproducible with
+	 * 		a given PDFTools seed)
+	 * @throws StructuralException If the networks' simulation modes or step sizes differ
+	 */
+	public ComparisonRunner(DifferentiatorNetwork[] networks, Function input, int nThreads) throws StructuralException {
+		myNThreads = nThreads;
+
+		for (DifferentiatorNetwork network : networks) {
+			if (network.getMode() != networks[0].getMode()) {
+				throw new StructuralException("Networks must have the same simulation mode (" + network.getName()
+					+ " is in " + network.getMode() + " and " + networks[0].getName() + " is in " + networks[0].getMode() + ")");
+			}
+			if (Math.abs(network.getStepSize() - networks[0].getStepSize()) > 1e-4f * networks[0].getStepSize()) {
+				throw new StructuralException("Networks must have the same step size (" + network.getName() + " has "
+					+ network.getStepSize() + " and " + networks[0].getName() + " has " + networks[0].getStepSize() + ")");
+			}
+		}
+
+		int n = networks[0].getInputEnsemble().getNodes().length;
+		myInputStage = new NetworkImpl();
+		myInputStage.setName("input stage");
+		myInputStage.setStepSize(networks[0].getStepSize());
+		myInput = new FunctionInput("external", new Function[]{input}, Units.UNK);
+		myInputStage.addNode(myInput);
+		NEFEnsembleFactoryImpl ef = new NEFEnsembleFactoryImpl();
+		ef.setApproximatorFactory(new CachingApproximatorFactory());
+		myInputEnsemble = ef.make("input", n, 1, "diff_input_"+n, false);
+		myInputEnsemble.addDecodedTermination("input", MU.I(1), DifferentiatorNetwork.TAU_IO, false);
+		myInputStage.addNode(myInputEnsemble);
+		myInputStage.addProjection(myInput.getOrigin(FunctionInput.ORIGIN_NAME), myInputEnsemble.getTermination("input"));
+		myInputStage.setMode(networks[0].getMode());
+
+		myNetworks = new DifferentiatorNetwork[networks.length];
+		myExposed = new ArrayList<List<String[]>>(networks.length);
+		for (int i = 0; i < networks.length; i++) {
+			myNetworks[i] = Util.copy(networks[i]);
+			myNetworks[i].setInputFunction(input);
+			for (int j = 0; j < i; j++) {
+				if (myNetworks[j].getName().equals(myNetworks[i].getName())) {
+					myNetworks[i].setName(myNetworks[i].getName() + " " + (i+1));
+				}
+			}
+
+			List<String[]> exposed = null;
+			if (myNetworks[i].getInputEnsemble().getNodes().length == n) {
+				Noise noise = getNoise(myNetworks[i].getInputEnsemble());
+				try {
+					exposed = myNetworks[i].detachInputEnsemble(myInputEnsemble);
+					if (noise != null && getNoise(myInputEnsemble) == null) {
+						((DecodedOrigin) myInputEnsemble.getOrigin(NEFEnsemble.X)).setNoise(noise);
+					}
+				} catch (StructuralException e) {
+					exposed = null; //runs with its own input ensemble
+				}
+			}
+			myExposed.add(exposed);
+		}
+	}
+
+	//noise on the decoded output of an input ensemble (null if none)
+	private static Noise getNoise(NEFEnsemble ensemble) throws StructuralException {
+		return ensemble.getOrigin(NEFEnsemble.X) instanceof DecodedOrigin
+			? ((DecodedOrigin) ensemble.getOrigin(NEFEnsemble.X)).getNoise() : null;
+	}
+
+	/**
+	 * @return The networks that are run (copies of those given to the constructor)
+	 */
+	public DifferentiatorNetwork[] getNetworks() {
+		return myNetworks;
+	}
+
+	/**
+	 * Resets the input stage and networks, and runs them in lockstep.
+	 *
+	 * @param startTime Simulation time at which to start (s)
+	 * @param endTime Simulation time at which to stop (s)
+	 * @return Aligned table of input, decoded input, and each network's decoded output at each step
+	 * @throws SimulationException
+	 */
+	public Result run(float startTime, float endTime) throws SimulationException {
+		float stepSize = myInputStage.getStepSize();
+		int steps = Math.round((endTime - startTime) / stepSize);
+
+		myInputStage.reset(false);
+		for (DifferentiatorNetwork network : myNetworks) {
+			network.reset(false);
+		}
+
+		String[] names = new String[myNetworks.length + 2];
+		names[0] = "input";
+		names[1] = "input_ensemble";
+		for (int i = 0; i < myNetworks.length; i++) {
+			names[i+2] = myNetworks[i].getName();
+		}
+		Result result = new Result(names, steps);
+
+		ExecutorService executor = Executors.newFixedThreadPool(myNThreads);
+		try {
+			float[] time = new float[2];
+			List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(myNetworks.length + 1);
+			tasks.add(new Step(myInputStage, time));
+			for (DifferentiatorNetwork network : myNetworks) {
+				tasks.add(new Step(network, time));
+			}
+
+			for (int s = 0; s < steps; s++) {
+				time[0] = startTime + s * stepSize;
+				time[1] = time[0] + stepSize;
+				propagate();
+
+				for (Future<Object> future : executor.invokeAll(tasks)) {
+					future.get();
+				}
+
+				float[] row = new float[names.length];
+				row[0] = getValue(myInput.getOrigin(FunctionInput.ORIGIN_NAME).getValues());
+				row[1] = getValue(myInputEnsemble.getOrigin(NEFEnsemble.X).getValues());
+				for (int i = 0; i < myNetworks.length; i++) {
+					row[i+2] = getValue(myNetworks[i].getOutputEnsemble().getOrigin(NEFEnsemble.X).getValues());
+				}
+				result.add(time[1], row);
+			}
+		} catch (StructuralException e) {
+			throw new SimulationException(e);
+		} catch (InterruptedException e) {
+			throw new SimulationException(e);
+		} catch (ExecutionException e) {
+			throw new SimulationException(e);
+		} finally {
+			executor.shutdownNow();
+		}
+
+		return result;
+	}
+
+	//passes input-stage output to the exposed terminations of networks that share it
+	private void propagate() throws StructuralException, SimulationException {
+		for (int i = 0; i < myNetworks.length; i++) {
+			if (myExposed.get(i) == null) continue;
+			for (String[] exposed : myExposed.get(i)) {
+				Termination termination = myNetworks[i].getTermination(exposed[1]);
+				termination.setValues(myInputEnsemble.getOrigin(exposed[0]).getValues());
+			}
+		}
+	}
+
+	private static float getValue(Object output) {
+		return ((RealOutput) output).getValues()[0];
+	}
+
+	//advances one network by one step
+	private static class Step implements Callable<Object> {
+
+		private NetworkImpl myNetwork;
+		private float[] myTime;
+
+		public Step(NetworkImpl network, float[] time) {
+			myNetwork = network;
+			myTime = time;
+		}
+
+		public Object call() throws Exception {
+			myNetwork.run(myTime[0], myTime[1]);
+			return null;
+		}
+	}
+
+	/**
+	 * Values of several signals, aligned in time.
+	 */
+	public static class Result {
+
+		private String[] myNames;
+		private float[] myTimes;
+		private float[][] myValues;
+		private int myRows;
+
+		/**
+		 * @param names Name of each signal (column)
+		 * @param rows Expected number of time steps
+		 */
+		public Result(String[] names, int rows) {
+			myNames = names;
+			myTimes = new float[rows];
+			myValues = new float[rows][];
+		}
+
+		/**
+		 * @param time Time at end of step (s)
+		 * @param values Value of each signal at this time
+		 */
+		public void add(float time, float[] values) {
+			if (myRows == myTimes.length) {
+				float[] times = new float[Math.max(1, 2*myRows)];
+				System.arraycopy(myTimes, 0, times, 0, myRows);
+				myTimes = times;
+				float[][] rows = new float[times.length][];
+				System.arraycopy(myValues, 0, rows, 0, myRows);
+				myValues = rows;
+			}
+			myTimes[myRows] = time;
+			myValues[myRows] = values;
+			myRows++;
+		}
+
+		/**
+		 * @return Name of each signal (column)
+		 */
+		public String[] getNames() {
+			return myNames;
+		}
+
+		/**
+		 * @return Time at end of each step
+		 */
+		public float[] getTimes() {
+			float[] result = new float[myRows];
+			System.arraycopy(myTimes, 0, result, 0, myRows);
+			return result;
+		}
+
+		/**
+		 * @return Value of each signal (second index) at each step (first index)
+		 */
+		public float[][] getValues() {
+			float[][] result = new float[myRows][];
+			System.arraycopy(myValues, 0, result, 0, myRows);
+			return result;
+		}
+
+		/**
+		 * @param name Name of a signal
+		 * @return Value of the signal at each step
+		 */
+		public float[] getValues(String name) {
+			int column = -1;
+			for (int i = 0; i < myNames.length; i++) {
+				if (myNames[i].equals(name)) column = i;
+			}
+			if (column < 0) throw new IllegalArgumentException("No signal named " + name);
+
+			float[] result = new float[myRows];
+			for (int i = 0; i < myRows; i++) {
+				result[i] = myValues[i][column];
+			}
+			return result;
+		}
+
+		/**
+		 * Writes the table as tab-separated text, with a header row of signal names.
+		 *
+		 * @param destination File to write
+		 * @throws IOException
+		 */
+		public void write(File destination) throws IOException {
+			Writer writer = new FileWriter(destination);
+			try {
+				writer.write("time");
+				for (String name : myNames) {
+					writer.write("\t" + name);
+				}
+				writer.write("\n");
+				for (int i = 0; i < myRows; i++) {
+					writer.write(String.format(Locale.US, "%.6g", myTimes[i]));
+					for (int j = 0; j < myValues[i].length; j++) {
+						writer.write(String.format(Locale.US, "\t%.6g", myValues[i][j]));
+					}
+					writer.write("\n");
+				}
+			} finally {
+				writer.close();
+			}
+		}
+
+		/**
+		 * @param exporter Exporter to which the table is appended, as a matrix with a row per step
+		 * 		(time followed by each signal)
+		 * @param name Name of the matrix
+		 * @throws IOException
+		 */
+		public void export(StreamingMatExporter exporter, String name) throws IOException {
+			for (int i = 0; i < myRows; i++) {
+				float[] row = new float[myValues[i].length + 1];
+				row[0] = myTimes[i];
+				System.arraycopy(myValues[i], 0, row, 1, myValues[i].length);
+				exporter.append(name, row);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Created on 17-Oct-26
+ */
+package com.bptripp.diff;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import ca.nengo.dynamics.DynamicalSystem;
+import ca.nengo.model.Node;
+import ca.nengo.model.StructuralException;
+import ca.nengo.model.nef.NEFEnsemble;
+import ca.nengo.model.nef.impl.DecodedOrigin;
+import ca.nengo.model.neuron.impl.ALIFSpikeGenerator;
+import ca.nengo.model.neuron.impl.LIFSpikeGenerator;
+import ca.nengo.model.neuron.impl.SpikingNeuron;
+
+/**
+ * Stores bias compensation curves found by Util.getBiasCompensation(...), so that they don't have to be
+ * re-simulated each time a network's time constant is set, or each time the networks are loaded.
+ *
+ * Curves are keyed by ensemble name, origin name, transient time, simulation mode, and a fingerprint
+ * of the parameters that affect steady-state output (encoders, decoders, neuron bias and scale, spike
+ * generator type, LIF time constants, ALIF adaptation parameters, and synaptic depression parameters). Curves are kept in memory and, unless
+ * the directory is set to null, in small files that persist between sessions.
+ */
+public class CompensationCache {
+
+	private static final String EXTENSION = ".cmp";
+
+	//part of each key, so that curves stored by earlier versions of the calculation aren't reused
+	//(version 1 calculated DIRECT-mode curves from neuron equilibria; version 2 didn't include the
+	//generator type or LIF time constants in the key)
+	private static final int VERSION = 3;
+
+	private static Map<String, float[][]> ourCurves = new HashMap<String, float[][]>();
+	private static File ourDirectory = new File("compensation_cache");
+
+	/**
+	 * @return Directory in which curves are stored (null if curves are only kept in memory)
+	 */
+	public static synchronized File getDirectory() {
+		return ourDirectory;
+	}
+
+	/**
+	 * @param directory Directory in which curves are stored (null to keep curves only in memory)
+	 */
+	public static synchronized void setDirectory(File directory) {
+		ourDirectory = directory;
+	}
+
+	/**
+	 * Clears curves from memory (stored files are not deleted).
+	 */
+	public static synchronized void clear() {
+		ourCurves.clear();
+	}
+
+	/**
+	 * @param ensemble An ensemble for which bias is to be found
+	 * @param origin Name of DecodedOrigin of interest on given ensemble
+	 * @param transientTime Transient time used in finding steady-state output
+	 * @return Key that identifies the compensation curve of the given ensemble and origin in its current state
+	 * @throws StructuralException
+	 */
+	public static String getKey(NEFEnsemble ensemble, String origin, float transientTime) throws StructuralException {
+		long hash = Util.HASH_SEED;
+		hash = Util.hash(hash, ensemble.getEncoders());
+
+		DecodedOrigin o = (DecodedOrigin) ensemble.getOrigin(origin);
+		hash = Util.hash(hash, o.getDecoders());
+
+		Node[] nodes = ensemble.getNodes();
+		for (int i = 0; i < nodes.length; i++) {
+			if (nodes[i] instanceof SpikingNeuron) {
+				SpikingNeuron neuron = (SpikingNeuron) nodes[i];
+				hash = Util.hash(hash, neuron.getBias());
+				hash = Util.hash(hash, neuron.getScale());
+				hash = Util.hash(hash, neuron.getGenerator().getClass().getName());
+				if (neuron.getGenerator() instanceof LIFSpikeGenerator) {
+					LIFSpikeGenerator generator = (LIFSpikeGenerator) neuron.getGenerator();
+					hash = Util.hash(hash, generator.getTauRC());
+					hash = Util.hash(hash, generator.getTauRef());
+				} else if (neuron.getGenerator() instanceof ALIFSpikeGenerator) {
+					ALIFSpikeGenerator generator = (ALIFSpikeGenerator) neuron.getGenerator();
+					hash = Util.hash(hash, generator.getTauRC());
+					hash = Util.hash(hash, generator.getTauRef());
+					hash = Util.hash(hash, generator.getIncN());
+					hash = Util.hash(hash, generator.getTauN());
+				} else if (neuron.getGenerator() instanceof ALIFPopulation.Generator) {
+					ALIFPopulation.Generator generator = (ALIFPopulation.Generator) neuron.getGenerator();
+					hash = Util.hash(hash, generator.getTauRC());
+					hash = Util.hash(hash, generator.getTauRef());
+					hash = Util.hash(hash, generator.getIncN());
+					hash = Util.hash(hash, generator.getTauN());
+				}
+			}
+		}
+
+		if (o.getSTPDynamics() != null) {
+			for (int i = 0; i < nodes.length; i++) {
+				DynamicalSystem dynamics = o.getSTPDynamics(i);
+				if (dynamics instanceof SynapticDepressionDynamics) {
+					hash = Util.hash(hash, ((SynapticDepressionDynamics) dynamics).getTau());
+					hash = Util.hash(hash, ((SynapticDepressionDynamics) dynamics).getProportionReleased());
+				}
+			}
+		}
+
+		String name = (ensemble.getName() + "_" + origin).replaceAll("[^A-Za-z0-9_]", "_");
+		return name + "_" + transientTime + "_" + ensemble.getMode() + "_" + Long.toHexString(hash) + "_v" + VERSION;
+	}
+
+	/**
+	 * @param key Key of a compensation curve (see getKey(...))
+	 * @return Sample inputs and compensation values, [x, compensation], or null if the curve isn't cached
+	 */
+	public static synchronized float[][] get(String key) {
+		float[][] result = ourCurves.get(key);
+
+		if (result == null && ourDirectory != null) {
+			File file = new File(ourDirectory, key + EXTENSION);
+			if (file.exists()) {
+				try {
+					result = (float[][]) Util.deserialize(Util.read(file));
+					ourCurves.put(key, result);
+				} catch (Exception e) {
+					System.err.println("Ignoring unreadable compensation file " + file + ": " + e.getMessage());
+				}
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * @param key Key of a compensation curve (see getKey(...))
+	 * @param x Sample inputs
+	 * @param compensation Compensation value at each sample input
+	 */
+	public static synchronized void put(String key, float[] x, float[] compensation) {
+		float[][] curve = new float[][]{x, compensation};
+		ourCurves.put(key, curve);
+
+		if (ourDirectory != null) {
+			try {
+				ourDirectory.mkdirs();
+				FileOutputStream out = new FileOutputStream(new File(ourDirectory, key + EXTENSION));
+				try {
+					out.write(Util.serialize(curve));
+				} finally {
+					out.close();
+				}
+			} catch (IOException e) {
+				System.err.println("Couldn't store compensation curve " + key + ": " + e.getMessage());
+			}
+		}
+	}
+
+}
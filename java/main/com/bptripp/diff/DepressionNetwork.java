@@ -3,6 +3,8 @@
  */
 package com.bptripp.diff;
 
+import java.util.List;
+
 import ca.nengo.dynamics.DynamicalSystem;
 import ca.nengo.math.Function;
 import ca.nengo.math.impl.IndicatorPDF;
@@ -12,7 +14,6 @@ import ca.nengo.model.RealOutput;
 import ca.nengo.model.SimulationException;
 import ca.nengo.model.SimulationMode;
 import ca.nengo.model.StructuralException;
-import ca.nengo.model.Noise.Noisy;
 import ca.nengo.model.impl.FunctionInput;
 import ca.nengo.model.impl.NoiseFactory;
 import ca.nengo.model.nef.NEFEnsemble;
@@ -26,7 +27,6 @@ import ca.nengo.model.neuron.impl.LIFNeuronFactory;
 import ca.nengo.model.neuron.impl.SpikingNeuron;
 import ca.nengo.util.MU;
 import ca.nengo.util.Probe;
-import ca.nengo.util.TimeSeries;
 
 /**
  * A DifferentiatorNetwork in which differentiation is achieved through short-term synaptic depression. 
@@ -39,9 +39,10 @@ public class DepressionNetwork extends DifferentiatorNetwork {
 	
 	private static final String DEPRESSING = "depressing";
 	private static final String COMPENSATING = "compensating";
+	private static final String DEPRESSION_DYNAMICS = "depression dynamics";
 
 	private NEFEnsemble myDepressingEnsemble;
-	private Probe myInputProbe;
+	private SynapticDepressionPopulation myDepression;
 	private Projection myDepressingProjection;
 	private Projection myCompensatingProjection;
 
@@ -70,7 +71,7 @@ public class DepressionNetwork extends DifferentiatorNetwork {
 		myDepressingEnsemble.addDecodedTermination("input", MU.I(1), TAU_IO, false);
 		addNode(myDepressingEnsemble);
 		try {
-			myInputProbe = getSimulator().addProbe(myDepressingEnsemble.getName(), NEFEnsemble.X, true);
+			getSimulator().addProbe(myDepressingEnsemble.getName(), NEFEnsemble.X, true);
 		} catch (SimulationException e) {
 			throw new RuntimeException(e);
 		}
@@ -79,8 +80,10 @@ public class DepressionNetwork extends DifferentiatorNetwork {
 		int maxPoolSize = 100;
 		float tauRecovery = 0.5f;
 		float proportionReleased = .01f;
-		DynamicalSystem depressionDynamics = new SynapticDepressionDynamics(maxPoolSize, tauRecovery, proportionReleased);
+		myDepression = new SynapticDepressionPopulation(maxPoolSize, tauRecovery, proportionReleased);
+		DynamicalSystem depressionDynamics = new SynapticDepressionDynamics(myDepression);
 		((DecodedOrigin) myDepressingEnsemble.getOrigin(NEFEnsemble.X)).setSTPDynamics(depressionDynamics);
+		addNode(new SynapticDepressionPopulation.Stepper(DEPRESSION_DYNAMICS, myDepression));
 
 		NEFEnsemble output = getOutputEnsemble();
 		float scale = 1f;
@@ -93,6 +96,7 @@ public class DepressionNetwork extends DifferentiatorNetwork {
 	
 	private static NEFEnsembleFactory getLinearFactory() {
 		NEFEnsembleFactory result = new NEFEnsembleFactoryImpl();
+		result.setApproximatorFactory(new CachingApproximatorFactory());
 		result.setNodeFactory(new LIFNeuronFactory(.02f, .0005f, new IndicatorPDF(200, 400), new IndicatorPDF(-2.5f, -1.5f)));
 		return result;
 	}
@@ -111,8 +115,8 @@ public class DepressionNetwork extends DifferentiatorNetwork {
 	
 	@Override
 	public void disableParisien() {
-		myCompensatingProjection.removeBias();
-		myDepressingProjection.removeBias();
+		disableParisien(myCompensatingProjection);
+		disableParisien(myDepressingProjection);
 	}
 
 	@Override
@@ -121,15 +125,43 @@ public class DepressionNetwork extends DifferentiatorNetwork {
 		enableParisien(myCompensatingProjection, n);
 		
 		enableParisien(myDepressingProjection, n, false);
-		DecodedOrigin o = ((DecodedOrigin) myDepressingEnsemble.getOrigin(NEFEnsemble.X));
+	}
+
+	/**
+	 * The bias origin of the depressing projection gets the same synaptic depression as the original origin. 
+	 * Its synapses belong to the same neurons, so they share the original origin's population slots (and 
+	 * its parameters), and rebuilding the projection doesn't claim new slots. 
+	 *  
+	 * @see com.bptripp.diff.DifferentiatorNetwork#onParisienApplied(ca.nengo.model.Projection)
+	 */
+	@Override
+	protected void onParisienApplied(Projection p) throws StructuralException {
+		if (p != myDepressingProjection) return;
+		
 		BiasOrigin bo = ((BiasOrigin) myDepressingEnsemble.getOrigin("output:depressing")); 
-		bo.setSTPDynamics(o.getSTPDynamics());
-		for (int i = 0; i < bo.getDecoders().length; i++) {
-			((SynapticDepressionDynamics) bo.getSTPDynamics(i)).setTau(
-					((SynapticDepressionDynamics) o.getSTPDynamics(i)).getTau());
-			((SynapticDepressionDynamics) bo.getSTPDynamics(i)).setProportionReleased(
-					((SynapticDepressionDynamics) o.getSTPDynamics(i)).getProportionReleased());
-		}
+		bo.setSTPDynamics(new SynapticDepressionDynamics(myDepression));
+	}
+
+	/**
+	 * @return Synaptic depression state of the depressing ensemble's output synapses
+	 */
+	public SynapticDepressionPopulation getDepression() {
+		return myDepression;
+	}
+
+	/**
+	 * @param exact If true, synaptic depression is advanced each step with the exact solution for piecewise-constant 
+	 * 		spike rates over the step, which allows larger steps (see SynapticDepressionPopulation.setExact(...)) 
+	 */
+	public void setExactDepression(boolean exact) {
+		myDepression.setExact(exact);
+	}
+	
+	/**
+	 * @return True if synaptic depression is integrated exactly (see setExactDepression(...))
+	 */
+	public boolean isExactDepression() {
+		return myDepression.isExact();
 	}
 
 	@Override
@@ -137,9 +169,15 @@ public class DepressionNetwork extends DifferentiatorNetwork {
 		return myDepressingEnsemble;
 	}
 
+	/**
+	 * The input ensemble of this network has depressing synapses, so its activity differs from that of 
+	 * other networks' input ensembles, and it can't be shared. 
+	 * 
+	 * @see com.bptripp.diff.DifferentiatorNetwork#detachInputEnsemble(ca.nengo.model.nef.NEFEnsemble)
+	 */
 	@Override
-	public TimeSeries getInputEnsembleData() {
-		return myInputProbe.getData();
+	protected List<String[]> detachInputEnsemble(NEFEnsemble shared) throws StructuralException {
+		throw new StructuralException("The input ensemble of " + getName() + " has synaptic depression and can't be shared");
 	}
 
 	@Override
@@ -210,8 +248,8 @@ public class DepressionNetwork extends DifferentiatorNetwork {
 	@Override
 	public void clearErrors() {
 		try {
-			((Noisy) myDepressingEnsemble.getOrigin(NEFEnsemble.X)).setNoise(new NoiseFactory.NoiseImplNull());
-			((Noisy) myDepressingEnsemble.getOrigin(COMPENSATING)).setNoise(new NoiseFactory.NoiseImplNull());
+			setNoise(myDepressingEnsemble.getOrigin(NEFEnsemble.X), new NoiseFactory.NoiseImplNull());
+			setNoise(myDepressingEnsemble.getOrigin(COMPENSATING), new NoiseFactory.NoiseImplNull());
 		} catch (StructuralException e) {
 			throw new RuntimeException(e);
 		}
@@ -220,8 +258,8 @@ public class DepressionNetwork extends DifferentiatorNetwork {
 	@Override
 	public void setDistortion(int nInput, int nDiff) {
 		try {
-			((Noisy) myDepressingEnsemble.getOrigin(NEFEnsemble.X)).setNoise(makeDistortion(nInput));
-			((Noisy) myDepressingEnsemble.getOrigin(COMPENSATING)).setNoise(makeDistortion(nInput));
+			setNoise(myDepressingEnsemble.getOrigin(NEFEnsemble.X), makeDistortion(nInput));
+			setNoise(myDepressingEnsemble.getOrigin(COMPENSATING), makeDistortion(nInput));
 		} catch (StructuralException e) {
 			throw new RuntimeException(e);
 		}
@@ -230,8 +268,8 @@ public class DepressionNetwork extends DifferentiatorNetwork {
 	@Override
 	public void setNoise(int nInput, int nDiff) {
 		try {
-			((Noisy) myDepressingEnsemble.getOrigin(NEFEnsemble.X)).setNoise(makeNoise(nInput));
-			((Noisy) myDepressingEnsemble.getOrigin(COMPENSATING)).setNoise(makeNoise(nInput));
+			setNoise(myDepressingEnsemble.getOrigin(NEFEnsemble.X), makeNoise(nInput));
+			setNoise(myDepressingEnsemble.getOrigin(COMPENSATING), makeNoise(nInput));
 		} catch (StructuralException e) {
 			throw new RuntimeException(e);
 		}
@@ -5,31 +5,41 @@ package com.bptripp.diff;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
 
-import ca.nengo.dynamics.DynamicalSystem;
-import ca.nengo.dynamics.Integrator;
-import ca.nengo.dynamics.impl.EulerIntegrator;
-import ca.nengo.dynamics.impl.LTISystem;
 import ca.nengo.io.MatlabExporter;
 import ca.nengo.math.Function;
-import ca.nengo.math.impl.GaussianPDF;
 import ca.nengo.math.impl.IndicatorPDF;
 import ca.nengo.math.impl.SineFunction;
 import ca.nengo.model.Ensemble;
 import ca.nengo.model.Node;
 import ca.nengo.model.Noise;
+import ca.nengo.model.Noise.Noisy;
+import ca.nengo.model.Origin;
 import ca.nengo.model.Projection;
 import ca.nengo.model.SimulationException;
+import ca.nengo.model.SimulationMode;
 import ca.nengo.model.StructuralException;
+import ca.nengo.model.Termination;
 import ca.nengo.model.Units;
 import ca.nengo.model.impl.FunctionInput;
 import ca.nengo.model.impl.NetworkImpl;
-import ca.nengo.model.impl.NoiseFactory;
 import ca.nengo.model.nef.NEFEnsemble;
 import ca.nengo.model.nef.NEFEnsembleFactory;
 import ca.nengo.model.nef.impl.NEFEnsembleFactoryImpl;
+import ca.nengo.model.neuron.Neuron;
 import ca.nengo.model.neuron.impl.LIFNeuronFactory;
-import ca.nengo.util.MU;
 import ca.nengo.util.Probe;
 import ca.nengo.util.TimeSeries;
 
@@ -52,12 +62,35 @@ public abstract class DifferentiatorNetwork extends NetworkImpl {
 	private int myNInput = 2000; 
 	private int myNOutput = 1000;
 	protected transient NEFEnsembleFactory myEnsembleFactory; 	
-	private Probe myInputProbe;
-	private Probe myOutputProbe;
-	private Probe myInputEnsembleProbe;
+	private StreamingProbe myInputAnalysis;
+	private StreamingProbe myInputEnsembleAnalysis;
+	private StreamingProbe myOutputAnalysis;
+	private Map<String, Boolean> myProbeRecord; //record flags of standard probes, keyed by node:state
+	private List<String[]> myRemovedProbes; //node name, state name, and record flag of standard probes removed during streaming analysis
+	private Map<String, SpikeRecorder> mySpikeRecorders; //keyed by ensemble name
+	private Map<Projection, ParisienSpec> myParisienRequested; //Parisien conversions to apply at next run 
+	private Map<Projection, ParisienBuild> myParisienBuilt; //projections that have bias populations (attached or not) 
+	private boolean myInputShared; //true after detachInputEnsemble(...) 
+	private TimeSeries[] myAdaptiveData; //input, input ensemble, and output from runAdaptive(...), if it was the last run 
+	private transient RunProfile myProfile; //null unless profiling is enabled 
+	private transient ObjectName myProfileName; 
+	private transient Node[] myProfiledNodes; //timing wrappers given to the simulator during a profiled run 
+	private RunProfile.Link myProfileLink; //shared with noise, so that it is timed while profiling is enabled 
+	
+	/**
+	 * Number of steps between writes in runAndExport(...)
+	 */
+	public static int EXPORT_CHUNK_STEPS = 2000;
+	
+	/**
+	 * Appended to the names of spike matrices written by runAndExport(...), which are [time, neuron] rows 
+	 * rather than the SpikePattern layout written by exportAll(...)
+	 */
+	public static final String SPIKE_ROWS_SUFFIX = "_rows";
 	
 	public DifferentiatorNetwork() throws StructuralException {
 		myEnsembleFactory = new NEFEnsembleFactoryImpl();
+		myEnsembleFactory.setApproximatorFactory(new CachingApproximatorFactory());
 		
 		myInput = new FunctionInput("external", new Function[]{new SineFunction((float) Math.PI, 1f/ (float) Math.PI)}, Units.UNK);
 		addNode(myInput);
@@ -67,19 +100,34 @@ public abstract class DifferentiatorNetwork extends NetworkImpl {
 
 		//the output ensemble contains near-linear neurons 
 		NEFEnsembleFactoryImpl of = new NEFEnsembleFactoryImpl();
+		of.setApproximatorFactory(new CachingApproximatorFactory());
 		of.setNodeFactory(new LIFNeuronFactory(.02f, .0001f, new IndicatorPDF(200, 400), new IndicatorPDF(-.9f, .9f)));
 		myOutputEnsemble = of.make("output", myNOutput, 1, "diff_output_"+myNOutput, false);		
 		addNode(myOutputEnsemble);
 		
 		try {
-			myInputProbe = getSimulator().addProbe(myInput.getName(), FunctionInput.STATE_NAME, true);
-			myInputEnsembleProbe = getSimulator().addProbe(myInputEnsemble.getName(), NEFEnsemble.X, true);
-			myOutputProbe = getSimulator().addProbe(myOutputEnsemble.getName(), NEFEnsemble.X, true);
+			addStandardProbe(myInput.getName(), FunctionInput.STATE_NAME, true);
+			addStandardProbe(myInputEnsemble.getName(), NEFEnsemble.X, true);
+			addStandardProbe(myOutputEnsemble.getName(), NEFEnsemble.X, true);
 		} catch (SimulationException e) {
 			throw new StructuralException(e);
 		}
 	}
 	
+	//adds a probe on the input, input ensemble, or output, and remembers whether it records 
+	private void addStandardProbe(String nodeName, String state, boolean record) throws SimulationException {
+		getSimulator().addProbe(nodeName, state, record);
+		if (myProbeRecord == null) myProbeRecord = new HashMap<String, Boolean>();
+		myProbeRecord.put(nodeName + ":" + state, Boolean.valueOf(record));
+	}
+	
+	//the ensemble factory isn't serializable, but subclasses may use it after they are restored 
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		myEnsembleFactory = new NEFEnsembleFactoryImpl();
+		myEnsembleFactory.setApproximatorFactory(new CachingApproximatorFactory());
+	}
+	
 	@Override
 	public void reset(boolean randomize) {
 		super.reset(randomize);
@@ -110,24 +158,261 @@ public abstract class DifferentiatorNetwork extends NetworkImpl {
 	}
 	
 	/**
-	 * @return Abstract input value from last run
+	 * @return Abstract input value from last run (or the resampled result of runAdaptive(...) if that was the last run)
+	 * @throws IllegalStateException If streaming analysis is enabled (see getInputAnalysis())
 	 */
 	public TimeSeries getInputData() {
-		return myInputProbe.getData();
+		if (myAdaptiveData != null) return myAdaptiveData[0];
+		checkNotStreaming();
+		return getProbe(myInput.getName(), FunctionInput.STATE_NAME).getData();
 	}
 	
 	/**
 	 * @return decoded input representation from last run
+	 * @throws IllegalStateException If the input ensemble is shared (see detachInputEnsemble(...)), in which case 
+	 * 		its data are recorded by the network that shares it, or if streaming analysis is enabled 
+	 * 		(see getInputEnsembleAnalysis())
 	 */
 	public TimeSeries getInputEnsembleData() {
-		return myInputEnsembleProbe.getData();
+		if (myAdaptiveData != null) return myAdaptiveData[1];
+		if (myInputShared) {
+			throw new IllegalStateException("The input ensemble of " + getName() + " is shared; its data are recorded by the sharing network");
+		}
+		checkNotStreaming();
+		return getProbe(getInputEnsemble().getName(), NEFEnsemble.X).getData();
 	}
 	
 	/**
 	 * @return Decoded output representation from last run
+	 * @throws IllegalStateException If streaming analysis is enabled (see getOutputAnalysis())
 	 */
 	public TimeSeries getOutputData() {
-		return myOutputProbe.getData();
+		if (myAdaptiveData != null) return myAdaptiveData[2];
+		checkNotStreaming();
+		return getProbe(myOutputEnsemble.getName(), NEFEnsemble.X).getData();
+	}
+	
+	private void checkNotStreaming() {
+		if (isStreamingAnalysis()) {
+			throw new IllegalStateException("Streaming analysis is enabled in " + getName() 
+				+ "; use the get*Analysis() summaries, or clear streaming analysis to record data");
+		}
+	}
+	
+	/**
+	 * Replaces the recording Probes on the input, input ensemble, and output with StreamingProbes, so that 
+	 * memory use doesn't grow with run length. Other probes are left in place. While this is enabled, 
+	 * summaries are available from getInputAnalysis(), getInputEnsembleAnalysis(), and getOutputAnalysis(), 
+	 * and getInputData(), getInputEnsembleData(), and getOutputData() throw IllegalStateException. 
+	 * 
+	 * @param frequency Frequency (Hz) of sinusoid to fit to each signal (e.g. the input frequency)
+	 * @param startTime Signals before this time are ignored (e.g. to skip an initial transient)
+	 * @throws StructuralException
+	 */
+	public void setStreamingAnalysis(float frequency, float startTime) throws StructuralException {
+		clearStreamingAnalysis();
+		
+		float angularFrequency = 2 * (float) Math.PI * frequency;
+		myInputAnalysis = addStreamingProbe("input analysis", myInput.getOrigin(FunctionInput.ORIGIN_NAME), angularFrequency, startTime);
+		myInputEnsembleAnalysis = addStreamingProbe("input ensemble analysis", getInputEnsemble().getOrigin(NEFEnsemble.X), angularFrequency, startTime);
+		myOutputAnalysis = addStreamingProbe("output analysis", myOutputEnsemble.getOrigin(NEFEnsemble.X), angularFrequency, startTime);
+		
+		myRemovedProbes = new ArrayList<String[]>();
+		String[][] standard = new String[][]{
+				{myInput.getName(), FunctionInput.STATE_NAME}, 
+				{getInputEnsemble().getName(), NEFEnsemble.X}, 
+				{myOutputEnsemble.getName(), NEFEnsemble.X}};
+		try {
+			for (String[] probe : standard) {
+				Probe p = getProbe(probe[0], probe[1]);
+				if (p != null) {
+					Boolean record = myProbeRecord == null ? null : myProbeRecord.get(probe[0] + ":" + probe[1]);
+					myRemovedProbes.add(new String[]{probe[0], probe[1], String.valueOf(record == null || record.booleanValue())});
+					getSimulator().removeProbe(p);
+				}
+			}
+		} catch (SimulationException e) {
+			throw new StructuralException(e);
+		}
+	}
+	
+	/**
+	 * Removes StreamingProbes and restores the Probes that they replaced, with their original record flags 
+	 * (see setStreamingAnalysis(...)). 
+	 *  
+	 * @throws StructuralException
+	 */
+	public void clearStreamingAnalysis() throws StructuralException {
+		if (myOutputAnalysis == null) return;
+		
+		for (StreamingProbe analysis : new StreamingProbe[]{myInputAnalysis, myInputEnsembleAnalysis, myOutputAnalysis}) {
+			removeProjection(analysis.getTermination(StreamingProbe.TERMINATION));
+			removeNode(analysis.getName());
+		}
+		myInputAnalysis = null;
+		myInputEnsembleAnalysis = null;
+		myOutputAnalysis = null;
+		
+		try {
+			for (String[] probe : myRemovedProbes) {
+				addStandardProbe(probe[0], probe[1], Boolean.parseBoolean(probe[2]));
+			}
+		} catch (SimulationException e) {
+			throw new StructuralException(e);
+		}
+		myRemovedProbes = null;
+	}
+	
+	/**
+	 * @return True if streaming analysis is enabled (see setStreamingAnalysis(...))
+	 */
+	public boolean isStreamingAnalysis() {
+		return myOutputAnalysis != null;
+	}
+	
+	/**
+	 * @return Streaming summary of the abstract input (null if streaming analysis is disabled)
+	 */
+	public StreamingProbe getInputAnalysis() {
+		return myInputAnalysis;
+	}
+	
+	/**
+	 * @return Streaming summary of the decoded input representation (null if streaming analysis is disabled)
+	 */
+	public StreamingProbe getInputEnsembleAnalysis() {
+		return myInputEnsembleAnalysis;
+	}
+	
+	/**
+	 * @return Streaming summary of the decoded output (null if streaming analysis is disabled)
+	 */
+	public StreamingProbe getOutputAnalysis() {
+		return myOutputAnalysis;
+	}
+	
+	private StreamingProbe addStreamingProbe(String name, Origin origin, float angularFrequency, float startTime) throws StructuralException {
+		StreamingProbe result = new StreamingProbe(name, angularFrequency, startTime);
+		addNode(result);
+		addProjection(origin, result.getTermination(StreamingProbe.TERMINATION));
+		return result;
+	}
+	
+	/**
+	 * @param nodeName Name of a probed node
+	 * @param state Name of probed state
+	 * @return Probe on given node and state, or null if there isn't one
+	 */
+	protected Probe getProbe(String nodeName, String state) {
+		for (Probe p : getSimulator().getProbes()) {
+			if (((Node) p.getTarget()).getName().equals(nodeName) && p.getStateName().equals(state)) {
+				return p;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Starts recording the spikes of an ensemble with a SpikeRecorder, which holds them more compactly than 
+	 * Ensemble.collectSpikes(true). Recorded spikes are included in exportAll(...) and runAndExport(...). 
+	 * 
+	 * @param ensembleName Name of an ensemble in this network
+	 * @param neurons Indices of neurons to record (null to record all)
+	 * @return The recorder
+	 * @throws StructuralException
+	 */
+	public SpikeRecorder recordSpikes(String ensembleName, int[] neurons) throws StructuralException {
+		stopRecordingSpikes(ensembleName);
+		
+		Ensemble ensemble = (Ensemble) getNode(ensembleName);
+		SpikeRecorder result = new SpikeRecorder(ensembleName + " spikes", ensemble.getNodes().length, neurons);
+		addNode(result);
+		addProjection(ensemble.getOrigin(Neuron.AXON), result.getTermination(SpikeRecorder.TERMINATION));
+		
+		if (mySpikeRecorders == null) mySpikeRecorders = new LinkedHashMap<String, SpikeRecorder>();
+		mySpikeRecorders.put(ensembleName, result);
+		return result;
+	}
+	
+	/**
+	 * @param ensembleName Name of an ensemble whose spikes are recorded (see recordSpikes(...))
+	 * @throws StructuralException
+	 */
+	public void stopRecordingSpikes(String ensembleName) throws StructuralException {
+		SpikeRecorder recorder = getSpikeRecorder(ensembleName);
+		if (recorder == null) return;
+		
+		removeProjection(recorder.getTermination(SpikeRecorder.TERMINATION));
+		removeNode(recorder.getName());
+		mySpikeRecorders.remove(ensembleName);
+	}
+	
+	/**
+	 * @param ensembleName Name of an ensemble 
+	 * @return Recorder of the ensemble's spikes, or null if they aren't recorded
+	 */
+	public SpikeRecorder getSpikeRecorder(String ensembleName) {
+		return mySpikeRecorders == null ? null : mySpikeRecorders.get(ensembleName);
+	}
+	
+	/**
+	 * Detaches this network from its own input ensemble, so that it can be driven by an input ensemble that 
+	 * is shared with other networks (see SharedInputNetwork). Projections to and from the input ensemble are 
+	 * removed, as are its probes, and the ensemble itself is removed. Each termination that was fed by the 
+	 * input ensemble is exposed, so that the shared ensemble can feed it from outside. Afterwards 
+	 * getInputEnsemble() returns the shared ensemble, so that noise and distortion models are set on it 
+	 * (its decoded output is recorded by SharedInputNetwork rather than by this network). 
+	 * 
+	 * @param shared The shared input ensemble
+	 * @return For each exposed termination, [name of input ensemble origin that fed it, name of exposed termination]
+	 * @throws StructuralException If the input ensemble can't be shared (e.g. if streaming analysis is enabled, or 
+	 * 		if projections from the input ensemble are marked for Parisien conversion) 
+	 */
+	protected List<String[]> detachInputEnsemble(NEFEnsemble shared) throws StructuralException {
+		if (isStreamingAnalysis()) {
+			throw new StructuralException("Streaming analysis must be cleared before the input ensemble is shared");
+		}
+		
+		NEFEnsemble ensemble = getInputEnsemble();
+		for (Projection p : getProjections()) {
+			boolean input = p.getOrigin().getNode() == ensemble || p.getTermination().getNode() == ensemble;
+			if (input && myParisienRequested != null && myParisienRequested.containsKey(p)) {
+				throw new StructuralException("Parisien conversion of projections from the input ensemble must be disabled " 
+					+ "before the input ensemble is shared");
+			}
+		}
+		for (Projection p : getProjections()) { //bias populations that were built and then disabled 
+			boolean input = p.getOrigin().getNode() == ensemble || p.getTermination().getNode() == ensemble;
+			if (input && myParisienBuilt != null && myParisienBuilt.containsKey(p)) {
+				attach(myParisienBuilt.remove(p));
+				p.removeBias();
+			}
+		}
+		
+		List<String[]> result = new ArrayList<String[]>();
+		for (Projection p : getProjections()) {
+			if (p.getOrigin().getNode() == ensemble) {
+				String name = "input_" + p.getTermination().getNode().getName() + "_" + p.getTermination().getName();
+				removeProjection(p.getTermination());
+				exposeTermination(p.getTermination(), name);
+				result.add(new String[]{p.getOrigin().getName(), name});
+			} else if (p.getTermination().getNode() == ensemble) {
+				removeProjection(p.getTermination());
+			}
+		}
+		
+		try {
+			for (Probe probe : getSimulator().getProbes()) {
+				if (probe.getTarget() == ensemble) getSimulator().removeProbe(probe);
+			}
+		} catch (SimulationException e) {
+			throw new StructuralException(e);
+		}
+		removeNode(ensemble.getName());
+		myInputEnsemble = shared;
+		myInputShared = true;
+		
+		return result;
 	}
 	
 	/**
@@ -138,6 +423,34 @@ public abstract class DifferentiatorNetwork extends NetworkImpl {
 		myInput.setFunctions(new Function[]{input});
 	}
 	
+	/**
+	 * @return The linear model that is equivalent to this network in DIRECT mode, as it is currently 
+	 * 		configured (time constants, transforms, and noise)
+	 * @throws StructuralException If the network has projections that can't be modelled
+	 */
+	public LinearModel getLinearModel() throws StructuralException {
+		return new LinearModel(this);
+	}
+	
+	/**
+	 * Per-step cost of all projections in the network, in the factored form in which they are simulated, 
+	 * and as it would be with explicit synaptic weights (see Util.getSynapticCost(...)). Pending Parisien 
+	 * changes are applied first, so that bias populations are included. 
+	 * 
+	 * @return [factored cost, dense cost] (multiply-adds per time step)
+	 * @throws StructuralException
+	 */
+	public long[] getSynapticCost() throws StructuralException {
+		applyParisien();
+		long[] result = new long[2];
+		for (Projection p : getProjections()) {
+			long[] cost = Util.getSynapticCost(p);
+			result[0] += cost[0];
+			result[1] += cost[1];
+		}
+		return result;
+	}
+	
 	/**
 	 * @param tau PSC time constant for differentiator ensembles  
 	 */
@@ -166,7 +479,7 @@ public abstract class DifferentiatorNetwork extends NetworkImpl {
 
 	/**
 	 * Converts idealized projections with mixed-sign synaptic weights to the more realistic form described by 
-	 * Parisien et al., 2008. 
+	 * Parisien et al., 2008. The conversion is deferred until the next run (see applyParisien()). 
 	 *  
 	 * @param propInhibitory Number of inhibitory neurons in each projection, as a fraction of the number of target neurons. 
 	 *   
@@ -175,41 +488,400 @@ public abstract class DifferentiatorNetwork extends NetworkImpl {
 	public abstract void enableParisien(float propInhibitory) throws StructuralException;
 	
 	/**
-	 * Removes Parisien-related additions, returning projections to abstract mixed-sign synaptic weights. 
+	 * Removes Parisien-related additions, returning projections to abstract mixed-sign synaptic weights 
+	 * (deferred until the next run, like enableParisien(...)). 
 	 */
 	public abstract void disableParisien();
 	
 	/**
-	 * Converts a single projection to Parisien form. 
+	 * Marks a single projection for conversion to Parisien form. 
 	 * 
 	 * @param p The projection to convert. 
 	 * @param n Number of inhibitory neurons. 
 	 * 
 	 * @throws StructuralException
 	 */
-	protected static void enableParisien(Projection p, int n) throws StructuralException {
-		p.addBias(n, TAU_INTERNEURONS, p.getTermination().getTau(), true, true);
+	protected void enableParisien(Projection p, int n) throws StructuralException {
+		enableParisien(p, n, true);
 	}
 
 	/**
-	 * Converts a single projection to Parisien form. 
+	 * Marks a single projection for conversion to Parisien form. 
 	 * 
 	 * @param p The projection to convert. 
 	 * @param n Number of inhibitory neurons. 
 	 * @param optimize if true, apply some performance optimizations not discussed by Parisien et al.  
 	 * @throws StructuralException
 	 */
-	protected static void enableParisien(Projection p, int n, boolean optimize) throws StructuralException {
-		p.addBias(n, TAU_INTERNEURONS, p.getTermination().getTau(), true, optimize);
+	protected void enableParisien(Projection p, int n, boolean optimize) throws StructuralException {
+		if (myParisienRequested == null) myParisienRequested = new HashMap<Projection, ParisienSpec>();
+		myParisienRequested.put(p, new ParisienSpec(n, optimize, p.getTermination().getTau()));
 	}
 	
 	/**
+	 * Marks a single projection for return to abstract mixed-sign weights. 
+	 * 
+	 * @param p The projection to restore
+	 */
+	protected void disableParisien(Projection p) {
+		if (myParisienRequested != null) myParisienRequested.remove(p);
+	}
+	
+	/**
+	 * Brings projections into the Parisien form requested by enableParisien(...) and disableParisien(...). 
+	 * This is called at the start of each run. 
+	 * 
+	 * Bias populations are detached from the network when they are disabled (so they aren't simulated), but 
+	 * they are kept, so a projection that is enabled again with the same number of inhibitory neurons, 
+	 * optimization, and time constant is restored without re-solving decoders. A projection is rebuilt only 
+	 * if these parameters change. Bias populations are put in the network's current simulation mode when 
+	 * they are added or re-attached, or when the network's mode has changed. 
+	 * 
+	 * Requests for projections that have been replaced since (e.g. by a subclass's setTau(...)) carry over 
+	 * to the projections that now connect the same origin and termination. Bias populations of replaced 
+	 * projections are removed, and are rebuilt on the replacements if these are still marked for conversion. 
+	 * 
+	 * @throws StructuralException
+	 */
+	public void applyParisien() throws StructuralException {
+		if (myParisienRequested == null) return;
+		if (myParisienBuilt == null) myParisienBuilt = new HashMap<Projection, ParisienBuild>();
+		
+		List<Projection> current = Arrays.asList(getProjections());
+		for (Projection p : new ArrayList<Projection>(myParisienRequested.keySet())) {
+			if (!current.contains(p)) {
+				ParisienSpec requested = myParisienRequested.remove(p);
+				Projection replacement = getReplacement(p, current);
+				if (replacement == null) {
+					System.err.println("Parisien conversion not applied to " + p.getOrigin().getNode().getName() + " -> " 
+						+ p.getTermination().getNode().getName() + " in " + getName() + " because the projection has been removed");
+				} else if (!myParisienRequested.containsKey(replacement)) {
+					myParisienRequested.put(replacement, requested);
+				}
+			}
+		}
+		for (Projection p : new ArrayList<Projection>(myParisienBuilt.keySet())) {
+			if (!current.contains(p)) {
+				//the bias terminations of a replaced projection would clash with those of its replacement
+				attach(myParisienBuilt.remove(p));
+				p.removeBias();
+			}
+		}
+		
+		for (Projection p : current) {
+			ParisienSpec requested = myParisienRequested.get(p);
+			ParisienBuild built = myParisienBuilt.get(p);
+			
+			if (requested == null) {
+				if (built != null) detach(built);
+			} else {
+				if (built != null && !built.mySpec.equals(requested)) {
+					attach(built);
+					p.removeBias();
+					myParisienBuilt.remove(p);
+					built = null;
+				}
+				
+				if (built == null) {
+					List<Node> before = Arrays.asList(getNodes());
+					p.addBias(requested.myN, TAU_INTERNEURONS, requested.myTauBias, true, requested.myOptimize);
+					built = new ParisienBuild(this, p, requested, before);
+					myParisienBuilt.put(p, built);
+					attach(built);
+					onParisienApplied(p);
+				} else {
+					attach(built);
+				}
+			}
+		}
+	}
+	
+	//a projection in the network between the same origin and termination as a removed one (e.g. after setTau(...)), or null
+	private static Projection getReplacement(Projection removed, List<Projection> current) {
+		for (Projection p : current) {
+			if (p.getOrigin() == removed.getOrigin() && p.getTermination() == removed.getTermination()) return p;
+		}
+		return null;
+	}
+	
+	//removes a bias population and its projections from the network, and disables its bias terminations
+	private void detach(ParisienBuild built) throws StructuralException {
+		if (built.myDetached) return;
+		built.myProjection.enableBias(false);
+		for (Termination t : built.myTerminations) {
+			removeProjection(t);
+		}
+		for (Node node : built.myNodes) {
+			removeNode(node.getName());
+		}
+		built.myDetached = true;
+	}
+	
+	//returns a bias population and its projections to the network (in the current mode), and enables its bias terminations
+	private void attach(ParisienBuild built) throws StructuralException {
+		if (built.myDetached) {
+			for (Node node : built.myNodes) {
+				addNode(node);
+			}
+			for (int i = 0; i < built.myTerminations.length; i++) {
+				addProjection(built.myOrigins[i], built.myTerminations[i]);
+			}
+			built.myDetached = false;
+			built.myMode = null;
+		}
+		if (!getMode().equals(built.myMode)) {
+			for (Node node : built.myNodes) {
+				node.setMode(getMode());
+			}
+			built.myMode = getMode();
+		}
+		if (!built.myProjection.biasIsEnabled()) built.myProjection.enableBias(true);
+	}
+	
+	/**
+	 * Called after bias populations are first added to a projection, so that subclasses can configure them. 
+	 * 
+	 * @param p A projection that has just been converted to Parisien form
+	 * @throws StructuralException
+	 */
+	protected void onParisienApplied(Projection p) throws StructuralException {
+	}
+	
+	/**
+	 * Applies pending Parisien changes (see applyParisien()) before running. 
+	 * 
+	 * @see ca.nengo.model.impl.NetworkImpl#run(float, float)
+	 */
+	@Override
+	public void run(float startTime, float endTime) throws SimulationException {
+		try {
+			applyParisien();
+		} catch (StructuralException e) {
+			throw new SimulationException(e);
+		}
+		
+		myAdaptiveData = null;
+		if (myProfile == null) {
+			super.run(startTime, endTime);
+		} else {
+			runProfiled(startTime, endTime);
+		}
+	}
+	
+	/**
+	 * Runs the network's linear model in DIRECT mode with adaptive step sizes (see AdaptiveRunner), 
+	 * from rest. Until the next run(...), getInputData(), getInputEnsembleData(), and getOutputData() 
+	 * return the results, resampled onto a uniform grid, and exportAll(...) writes them. Probes aren't updated. 
+	 * 
+	 * @param startTime Simulation time at which to start (s)
+	 * @param endTime Simulation time at which to stop (s)
+	 * @param tolerance Error tolerance of each step, relative to 1 + |state|
+	 * @param outputStep Interval of the uniform output grid (s)
+	 * @throws SimulationException If the network isn't in DIRECT mode, has noise or nonlinear origins, or can't be modelled
+	 */
+	public void runAdaptive(float startTime, float endTime, float tolerance, float outputStep) throws SimulationException {
+		if (getMode() != SimulationMode.DIRECT) {
+			throw new SimulationException("Adaptive runs are only available in DIRECT mode");
+		}
+		try {
+			applyParisien();
+		} catch (StructuralException e) {
+			throw new SimulationException(e);
+		}
+		
+		AdaptiveRunner runner = new AdaptiveRunner();
+		runner.setParameters(tolerance, outputStep, Math.max(outputStep, .01f));
+		myAdaptiveData = runner.run(this, startTime, endTime);
+	}
+	
+	/**
+	 * Enables or disables profiling of runs. Profiled runs go through the simulator as usual, except that it 
+	 * is given a timing wrapper of each node (see RunProfile.ProfiledNode) for the duration of the run. Time 
+	 * spent between the node phases of consecutive steps, in which the simulator transfers projection values 
+	 * and collects probes, is recorded as a single simulator entry. Noise set with setNoise(Origin, Noise) 
+	 * times itself while profiling is enabled. The profile is registered as an MBean while profiling is enabled. 
+	 * 
+	 * Wrappers hide node-specific interfaces from the simulator, so nodes that the simulator would run in 
+	 * a special way (e.g. ensembles run on a GPU) run as ordinary nodes in profiled runs. 
+	 * 
+	 * @param enable True to enable profiling
+	 */
+	public void setProfiling(boolean enable) {
+		if (enable == (myProfile != null)) return;
+		
+		if (enable) {
+			myProfile = new RunProfile(getName());
+			myProfileName = registerProfile(myProfile);
+		} else {
+			unregisterProfile(myProfileName);
+			myProfile = null;
+			myProfileName = null;
+		}
+		getProfileLink().setProfile(myProfile);
+	}
+	
+	/**
+	 * @return Profile of runs since profiling was last enabled (null if it isn't enabled)
+	 */
+	public RunProfile getProfile() {
+		return myProfile;
+	}
+	
+	/**
+	 * Returns timing wrappers of the nodes while a profiled run is in progress (see setProfiling(...)). 
+	 * 
+	 * @see ca.nengo.model.impl.NetworkImpl#getNodes()
+	 */
+	@Override
+	public Node[] getNodes() {
+		return myProfiledNodes == null ? super.getNodes() : myProfiledNodes;
+	}
+	
+	/**
+	 * Sets the noise of an origin. FilteredNoise is linked to this network's profile, so that it is timed 
+	 * in profiled runs (see setProfiling(...)). 
+	 * 
+	 * @param origin A Noisy origin 
+	 * @param noise Noise to set on the origin (cloned for each dimension)
+	 */
+	protected void setNoise(Origin origin, Noise noise) {
+		if (noise instanceof FilteredNoise) {
+			((FilteredNoise) noise).setProfile(getProfileLink(), origin.getNode().getName() + ":" + origin.getName());
+		}
+		((Noisy) origin).setNoise(noise);
+	}
+	
+	//networks read from snapshots made before profiling was added have no link
+	private RunProfile.Link getProfileLink() {
+		if (myProfileLink == null) myProfileLink = new RunProfile.Link();
+		return myProfileLink;
+	}
+	
+	//runs through the simulator with timing wrappers in place of nodes 
+	private void runProfiled(float startTime, float endTime) throws SimulationException {
+		Node[] nodes = super.getNodes();
+		Node[] wrappers = new Node[nodes.length];
+		for (int i = 0; i < nodes.length; i++) {
+			wrappers[i] = new RunProfile.ProfiledNode(nodes[i], myProfile);
+		}
+		
+		myProfiledNodes = wrappers;
+		try {
+			getSimulator().initialize(this);
+			myProfile.startRun(System.nanoTime());
+			super.run(startTime, endTime);
+			myProfile.endRun(System.nanoTime());
+		} finally {
+			myProfiledNodes = null;
+			getSimulator().initialize(this);
+		}
+	}
+	
+	private static ObjectName registerProfile(RunProfile profile) {
+		try {
+			ObjectName result = new ObjectName("com.bptripp.diff:type=RunProfile,network=" 
+				+ ObjectName.quote(profile.getName()) + ",id=" + System.identityHashCode(profile));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(profile, result);
+			return result;
+		} catch (JMException e) {
+			System.err.println("Couldn't register run profile MBean: " + e.getMessage());
+			return null;
+		}
+	}
+	
+	private static void unregisterProfile(ObjectName name) {
+		if (name == null) return;
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {
+			System.err.println("Couldn't unregister run profile MBean: " + e.getMessage());
+		}
+	}
+	
+	//parameters of a Parisien conversion
+	private static class ParisienSpec implements Serializable {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private int myN;
+		private boolean myOptimize;
+		private float myTauBias;
+		
+		public ParisienSpec(int n, boolean optimize, float tauBias) {
+			myN = n;
+			myOptimize = optimize;
+			myTauBias = tauBias;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof ParisienSpec)) return false;
+			ParisienSpec other = (ParisienSpec) o;
+			return myN == other.myN && myOptimize == other.myOptimize && myTauBias == other.myTauBias;
+		}
+		
+		@Override
+		public int hashCode() {
+			return myN * 31 + (myOptimize ? 1 : 0) + Float.floatToIntBits(myTauBias);
+		}
+	}
+	
+	//bias populations added to a network by a Parisien conversion, and the projections to and from them 
+	private static class ParisienBuild implements Serializable {
+		
+		private static final long serialVersionUID = 1L;
+		
+		private Projection myProjection;
+		private ParisienSpec mySpec;
+		private Node[] myNodes;
+		private Origin[] myOrigins;
+		private Termination[] myTerminations;
+		private boolean myDetached;
+		private SimulationMode myMode; //mode in which bias populations were last set (null if not since attached)
+		
+		//nodes added by the conversion are those that weren't in the network before it 
+		public ParisienBuild(NetworkImpl network, Projection projection, ParisienSpec spec, List<Node> before) {
+			myProjection = projection;
+			mySpec = spec;
+			
+			List<Node> nodes = new ArrayList<Node>();
+			for (Node node : network.getNodes()) {
+				if (!before.contains(node)) nodes.add(node);
+			}
+			myNodes = nodes.toArray(new Node[nodes.size()]);
+			
+			List<Origin> origins = new ArrayList<Origin>();
+			List<Termination> terminations = new ArrayList<Termination>();
+			for (Projection p : network.getProjections()) {
+				if (nodes.contains(p.getOrigin().getNode()) || nodes.contains(p.getTermination().getNode())) {
+					origins.add(p.getOrigin());
+					terminations.add(p.getTermination());
+				}
+			}
+			myOrigins = origins.toArray(new Origin[origins.size()]);
+			myTerminations = terminations.toArray(new Termination[terminations.size()]);
+		}
+	}
+	
+	/**
+	 * Writes probe data and spikes from the last run to a matlab file. If the last run was runAdaptive(...), 
+	 * its resampled input, input ensemble, and output data are written instead (named as the corresponding 
+	 * probe data would be, e.g. input_state), since probes and spikes still hold data from an earlier run. 
+	 * 
 	 * @param destination File to which to write matlab export
 	 * @throws IOException
 	 */
 	public void exportAll(File destination) throws IOException {
 		MatlabExporter exporter = new MatlabExporter();
 
+		if (myAdaptiveData != null) {
+			exporter.add(myInput.getName() + "_" + FunctionInput.STATE_NAME, myAdaptiveData[0]);
+			exporter.add(getInputEnsemble().getName() + "_" + NEFEnsemble.X, myAdaptiveData[1]);
+			exporter.add(myOutputEnsemble.getName() + "_" + NEFEnsemble.X, myAdaptiveData[2]);
+			exporter.write(destination);
+			return;
+		}
+		
 		Probe[] probes = getSimulator().getProbes();
 		for (int i = 0; i < probes.length; i++) {
 			TimeSeries data = probes[i].getData();
@@ -223,9 +895,89 @@ public abstract class DifferentiatorNetwork extends NetworkImpl {
 			}
 		}
 		
+		if (mySpikeRecorders != null) {
+			for (String name : mySpikeRecorders.keySet()) {
+				exporter.add(name + "_spikes", mySpikeRecorders.get(name).getSpikePattern());
+			}
+		}
+		
 		exporter.write(destination);
 	}
 	
+	/**
+	 * Runs the network and streams data to a matlab file as they are produced, so that memory use doesn't grow 
+	 * with run length (an alternative to run(...) followed by exportAll(...)). Probe data and spikes are written 
+	 * every EXPORT_CHUNK_STEPS steps, and probes are cleared after each write, so after this returns they hold 
+	 * no data. Probe data are written with the same names and shapes as in exportAll(...) (name_time and 
+	 * name_data). Spikes are written as [time, neuron] rows (see StreamingMatExporter) rather than in 
+	 * MatlabExporter's SpikePattern layout, so to avoid confusion their names are those that exportAll(...) 
+	 * would use with SPIKE_ROWS_SUFFIX appended (e.g. input_rows for ensemble input, and 
+	 * input_spikes_rows for a SpikeRecorder on input). 
+	 * 
+	 * Nengo ensembles keep the spikes they collect until they are reset, so during this run the spikes of 
+	 * ensembles that are collecting spikes are recorded with SpikeRecorders instead (see recordSpikes(...)), 
+	 * and written with the ensembles' names. SpikeRecorders are emptied after each write.
+	 * 
+	 * @param startTime Simulation time at which to start
+	 * @param endTime Simulation time at which to end
+	 * @param destination File to which to write matlab export
+	 * @throws SimulationException
+	 * @throws IOException
+	 */
+	public void runAndExport(float startTime, float endTime, File destination) throws SimulationException, IOException {
+		List<String> rerouted = new ArrayList<String>(); //ensembles whose spikes are recorded in place of collection 
+		try {
+			for (Node node : getNodes()) {
+				if (node instanceof Ensemble && ((Ensemble) node).isCollectingSpikes() && getSpikeRecorder(node.getName()) == null) {
+					((Ensemble) node).collectSpikes(false);
+					recordSpikes(node.getName(), null);
+					rerouted.add(node.getName());
+				}
+			}
+		} catch (StructuralException e) {
+			throw new SimulationException(e);
+		}
+		
+		StreamingMatExporter exporter = new StreamingMatExporter(destination);
+		try {
+			float stepSize = getStepSize();
+			int steps = Math.round((endTime - startTime) / stepSize);
+			for (int step = 0; step < steps; step += EXPORT_CHUNK_STEPS) {
+				float chunkStart = startTime + step * stepSize;
+				float chunkEnd = step + EXPORT_CHUNK_STEPS < steps ? startTime + (step + EXPORT_CHUNK_STEPS) * stepSize : endTime;
+				run(chunkStart, chunkEnd);
+				drain(exporter, rerouted);
+			}
+		} finally {
+			exporter.close();
+			try {
+				for (String name : rerouted) {
+					stopRecordingSpikes(name);
+					((Ensemble) getNode(name)).collectSpikes(true);
+				}
+			} catch (StructuralException e) {
+				throw new SimulationException(e);
+			}
+		}
+	}
+	
+	//writes data collected since the last call, and clears probes and spike recorders 
+	private void drain(StreamingMatExporter exporter, List<String> rerouted) throws IOException {
+		Probe[] probes = getSimulator().getProbes();
+		for (int i = 0; i < probes.length; i++) {
+			TimeSeries data = probes[i].getData();
+			exporter.append(data.getName().replace(':', '_'), data);
+			probes[i].reset();
+		}
+		
+		if (mySpikeRecorders != null) {
+			for (String name : mySpikeRecorders.keySet()) {
+				String exportName = rerouted.contains(name) ? name : name + "_spikes";
+				mySpikeRecorders.get(name).drain(exporter, exportName + SPIKE_ROWS_SUFFIX);
+			}
+		}
+	}
+	
 	/**
 	 * @param n Nominal number of presynaptic neurons in a projection 
 	 * @return A model of noise arising within the projection
@@ -245,26 +997,12 @@ public abstract class DifferentiatorNetwork extends NetworkImpl {
 	/**
 	 * @param variance Noise power 
 	 * @param frequency Sampling frequency of noise process
-	 * @param filter Filter applied to noise to control bandwidth
+	 * @param filter Filter applied to noise to control bandwidth (a second-order Butterworth filter with 
+	 * 		cutoff at half the sampling frequency)
 	 * @return A Noise model conforming to the given specs
 	 */
 	protected static Noise makeNoise(float variance, float frequency, boolean filter) {
-		DynamicalSystem noiseFilter = null;
-		if (filter) {
-			noiseFilter = getNoiseFilter(frequency / 2f);
-		}
-		
-		Integrator integrator = new EulerIntegrator(.0005f);
-		return NoiseFactory.makeRandomNoise(frequency, new GaussianPDF(0, variance), noiseFilter, integrator);
-	}
-	
-	private static DynamicalSystem getNoiseFilter(float frequency) {
-		float w = 2 * (float) Math.PI * frequency;
-		float[][] A = new float[][]{new float[]{0, 1}, new float[]{-w*w, -(float)Math.sqrt(2)*w}};
-		float[][] B = new float[][]{new float[]{0}, new float[]{w*w}};
-		float[][] C = new float[][]{new float[]{1, 0}};
-		DynamicalSystem result = new LTISystem(A, B, C, MU.zero(1, 1), new float[]{0, 0}, new Units[]{Units.UNK});
-		return result;
+		return new FilteredNoise(variance, frequency, filter ? frequency / 2f : 0);
 	}
 	
 }
@@ -3,9 +3,9 @@
  */
 package com.bptripp.diff;
 
+import ca.nengo.model.Origin;
 import ca.nengo.model.Projection;
 import ca.nengo.model.StructuralException;
-import ca.nengo.model.Noise.Noisy;
 import ca.nengo.model.impl.FunctionInput;
 import ca.nengo.model.impl.NoiseFactory;
 import ca.nengo.model.nef.NEFEnsemble;
@@ -56,20 +56,35 @@ public class DualTCNetwork extends DifferentiatorNetwork {
 	
 	@Override
 	public void clearErrors() {
-		((Noisy) myDirectProjection.getOrigin()).setNoise(new NoiseFactory.NoiseImplNull());
-		((Noisy) myDelayedProjection.getOrigin()).setNoise(new NoiseFactory.NoiseImplNull());
+		Origin[] origins = getNoisyOrigins();
+		setNoise(origins[0], new NoiseFactory.NoiseImplNull());
+		setNoise(origins[1], new NoiseFactory.NoiseImplNull());
 	}
 
 	@Override
 	public void setDistortion(int nInput, int nDiff) {
-		((Noisy) myDirectProjection.getOrigin()).setNoise(makeDistortion(nInput));
-		((Noisy) myDelayedProjection.getOrigin()).setNoise(makeDistortion(nInput));
+		Origin[] origins = getNoisyOrigins();
+		setNoise(origins[0], makeDistortion(nInput));
+		setNoise(origins[1], makeDistortion(nInput));
 	}
 
 	@Override
 	public void setNoise(int nInput, int nDiff) {
-		((Noisy) myDirectProjection.getOrigin()).setNoise(makeNoise(nInput));
-		((Noisy) myDelayedProjection.getOrigin()).setNoise(makeNoise(nInput));
+		Origin[] origins = getNoisyOrigins();
+		setNoise(origins[0], makeNoise(nInput));
+		setNoise(origins[1], makeNoise(nInput));
+	}
+	
+	//origins of direct and delayed projections (the input ensemble may since have been shared; see SharedInputNetwork)
+	private Origin[] getNoisyOrigins() {
+		try {
+			Origin input = getInputEnsemble().getOrigin(NEFEnsemble.X);
+			Origin delayed = myDelayedProjection.getOrigin();
+			boolean correlated = delayed.getNode() == myDirectProjection.getOrigin().getNode();
+			return new Origin[]{input, correlated ? input : delayed};
+		} catch (StructuralException e) {
+			throw new RuntimeException(e);
+		}
 	}
 
 	@Override
@@ -86,8 +101,8 @@ public class DualTCNetwork extends DifferentiatorNetwork {
 
 	@Override
 	public void disableParisien() {
-		myDirectProjection.removeBias();
-		myDelayedProjection.removeBias();		
+		disableParisien(myDirectProjection);
+		disableParisien(myDelayedProjection);		
 	}
 
 	@Override
@@ -3,10 +3,12 @@
  */
 package com.bptripp.diff;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import ca.nengo.math.impl.IndicatorPDF;
 import ca.nengo.model.Projection;
 import ca.nengo.model.StructuralException;
-import ca.nengo.model.Noise.Noisy;
 import ca.nengo.model.impl.FunctionInput;
 import ca.nengo.model.impl.NoiseFactory;
 import ca.nengo.model.nef.NEFEnsemble;
@@ -21,6 +23,14 @@ import ca.nengo.util.impl.RandomHypersphereVG;
 /**
  * A differentiator network in which band-pass input-output behavior arises from feedack dynamics. 
  * 
+ * The state can be split over several sub-ensembles (e.g. one per second-order section of a 
+ * higher-order Butterworth or Bessel filter). Each sub-ensemble has a termination for each block of 
+ * A, B, and C that is nonzero, so that construction and per-step cost grow with the number of nonzero 
+ * blocks (linearly with filter order for cascaded or banded filters) rather than with the square of 
+ * the order. Sub-ensembles are made one at a time, in order, so that their encoders and neuron parameters 
+ * are drawn in the same sequence from PDFTools on each build (and a seeded build is reproducible); each 
+ * one's decoder solve is parallelized (see CachingApproximatorFactory). 
+ * 
  * @author Bryan Tripp
  */
 public class FeedbackNetwork extends DifferentiatorNetwork {
@@ -29,45 +39,143 @@ public class FeedbackNetwork extends DifferentiatorNetwork {
 
 	private static String INPUT = "input";
 	private static String FEEDBACK = "feedback";
+	
+	/**
+	 * Number of evaluation points per dimension of each sub-ensemble 
+	 */
+	public static int EVAL_POINTS_PER_DIMENSION = 150;
 
 	private float[][] myA;
 	private float[][] myB;
-	private NEFEnsemble myDiff;
-	private Projection myInputDiffProjection;
-	private Projection myDiffDiffProjection;
-	private Projection myDiffOutputProjection;
+	private int[] myOffsets; //first state dimension of each sub-ensemble, and total order at end 
+	private NEFEnsemble[] myDiffs;
+	private List<Projection> myInputDiffProjections;
+	private List<Projection> myDiffDiffProjections;
+	private List<Projection> myDiffOutputProjections;
 	
 	public FeedbackNetwork(int[] numInterneurons, float tauPSC, float[][] A, float[][] B, float[][] C) throws StructuralException {
-		myA = A;
-		myB = B;
-		
-		setName("feedback");
-						
-		getInputEnsemble().addDecodedTermination("input", MU.I(1), TAU_IO, false);
-		addProjection(getInput().getOrigin(FunctionInput.ORIGIN_NAME), getInputEnsemble().getTermination("input"));
+		init(A, B, new int[]{2});
 		
 		//2D differentiator ensemble with specified # neurons along each dim
 		NEFEnsembleFactory ef = new NEFEnsembleFactoryImpl();
+		ef.setApproximatorFactory(new CachingApproximatorFactory());
 		DimensionRatioVG encoderFactory = new DimensionRatioVG(true, 1, 1);
 		encoderFactory.setRatio(new float[]{numInterneurons[0], numInterneurons[1]});
 		ef.setEncoderFactory(encoderFactory);
 		ef.setNodeFactory(new LIFNeuronFactory(.02f, .0005f, new IndicatorPDF(200, 400), new IndicatorPDF(-1.2f, .95f)));
 		
 		int n = numInterneurons[0]+numInterneurons[1];
-		myDiff = ef.make("diff", n, 2, "feedback_diff_"+numInterneurons[0]+"_"+numInterneurons[1], false);
-		((NEFEnsembleImpl) myDiff).setEvalPoints(new RandomHypersphereVG(false, (float) Math.sqrt(2), 0).genVectors(300, 2));
-		addNode(myDiff);
+		NEFEnsemble diff = ef.make("diff", n, 2, "feedback_diff_"+numInterneurons[0]+"_"+numInterneurons[1], false);
+		((NEFEnsembleImpl) diff).setEvalPoints(new RandomHypersphereVG(false, (float) Math.sqrt(2), 0).genVectors(300, 2));
 		
-		getOutputEnsemble().addDecodedTermination("diff", C, TAU_IO, false);
+		connect(new NEFEnsemble[]{diff}, tauPSC, C);
+	}
+	
+	/**
+	 * @param blockSizes Number of state dimensions represented by each sub-ensemble (these must sum to the 
+	 * 		order of A)
+	 * @param neuronsPerDimension Number of neurons per represented dimension in each sub-ensemble
+	 * @param tauPSC PSC time constant of sub-ensemble terminations
+	 * @param A Dynamics matrix of the filter (order x order)
+	 * @param B Input matrix (order x 1)
+	 * @param C Output matrix (1 x order)
+	 * @throws StructuralException
+	 */
+	public FeedbackNetwork(int[] blockSizes, int neuronsPerDimension, float tauPSC, float[][] A, float[][] B, float[][] C) 
+			throws StructuralException {
+		init(A, B, blockSizes);
 		
-		myDiff.addDecodedTermination(FEEDBACK, getA(tauPSC), tauPSC, false);
-		myDiff.addDecodedTermination(INPUT, getB(tauPSC), tauPSC, false);
-
-		myInputDiffProjection = addProjection(getInputEnsemble().getOrigin(NEFEnsemble.X), myDiff.getTermination("input"));
-		myDiffDiffProjection = addProjection(myDiff.getOrigin(NEFEnsemble.X), myDiff.getTermination("feedback"));
-		myDiffOutputProjection = addProjection(myDiff.getOrigin(NEFEnsemble.X), getOutputEnsemble().getTermination("diff"));
+		int order = A.length;
+		NEFEnsemble[] diffs = new NEFEnsemble[blockSizes.length];
+		for (int i = 0; i < blockSizes.length; i++) {
+			int dim = blockSizes[i];
+			NEFEnsembleFactory ef = new NEFEnsembleFactoryImpl();
+			ef.setApproximatorFactory(new CachingApproximatorFactory());
+			ef.setEncoderFactory(new RandomHypersphereVG(true, 1, 1));
+			ef.setNodeFactory(new LIFNeuronFactory(.02f, .0005f, new IndicatorPDF(200, 400), new IndicatorPDF(-1.2f, .95f)));
+			
+			int n = neuronsPerDimension * dim;
+			diffs[i] = ef.make("diff"+i, n, dim, "feedback_diff_"+order+"_"+i+"_"+dim+"_"+n, false);
+			((NEFEnsembleImpl) diffs[i]).setEvalPoints(new RandomHypersphereVG(false, (float) Math.sqrt(dim), 0)
+				.genVectors(EVAL_POINTS_PER_DIMENSION * dim, dim));
+		}
+		connect(diffs, tauPSC, C);
 	}
+	
+	private void init(float[][] A, float[][] B, int[] blockSizes) throws StructuralException {
+		myA = A;
+		myB = B;
+		
+		myOffsets = new int[blockSizes.length+1];
+		for (int i = 0; i < blockSizes.length; i++) {
+			myOffsets[i+1] = myOffsets[i] + blockSizes[i];
+		}
+		if (myOffsets[blockSizes.length] != A.length) {
+			throw new StructuralException("Block sizes must sum to the order of A (" + A.length + ")");
+		}
+		
+		setName("feedback");
 		
+		getInputEnsemble().addDecodedTermination("input", MU.I(1), TAU_IO, false);
+		addProjection(getInput().getOrigin(FunctionInput.ORIGIN_NAME), getInputEnsemble().getTermination("input"));
+	}
+	
+	//adds sub-ensembles, and terminations and projections for each nonzero block of A, B, and C
+	private void connect(NEFEnsemble[] diffs, float tauPSC, float[][] C) throws StructuralException {
+		myDiffs = diffs;
+		myInputDiffProjections = new ArrayList<Projection>();
+		myDiffDiffProjections = new ArrayList<Projection>();
+		myDiffOutputProjections = new ArrayList<Projection>();
+		
+		for (int i = 0; i < diffs.length; i++) {
+			addNode(diffs[i]);
+		}
+		
+		float[][] A = getA(tauPSC);
+		float[][] B = getB(tauPSC);
+		for (int i = 0; i < diffs.length; i++) {
+			for (int j = 0; j < diffs.length; j++) {
+				float[][] block = getBlock(A, i, myOffsets[j], myOffsets[j+1]);
+				if (isZero(block)) continue;
+				
+				diffs[i].addDecodedTermination(getFeedbackName(j), block, tauPSC, false);
+				myDiffDiffProjections.add(addProjection(diffs[j].getOrigin(NEFEnsemble.X), diffs[i].getTermination(getFeedbackName(j))));
+			}
+			
+			float[][] block = getBlock(B, i, 0, 1);
+			if (!isZero(block)) {
+				diffs[i].addDecodedTermination(INPUT, block, tauPSC, false);
+				myInputDiffProjections.add(addProjection(getInputEnsemble().getOrigin(NEFEnsemble.X), diffs[i].getTermination(INPUT)));
+			}
+		}
+		
+		for (int j = 0; j < diffs.length; j++) {
+			float[][] block = MU.copy(C, 0, myOffsets[j], C.length, myOffsets[j+1] - myOffsets[j]);
+			if (isZero(block)) continue;
+			
+			getOutputEnsemble().addDecodedTermination(diffs[j].getName(), block, TAU_IO, false);
+			myDiffOutputProjections.add(addProjection(diffs[j].getOrigin(NEFEnsemble.X), getOutputEnsemble().getTermination(diffs[j].getName())));
+		}
+	}
+	
+	//the single-ensemble form keeps its original termination name
+	private String getFeedbackName(int source) {
+		return myDiffs.length == 1 ? FEEDBACK : FEEDBACK + source;
+	}
+	
+	//rows of sub-ensemble i, columns from start to end 
+	private float[][] getBlock(float[][] matrix, int i, int start, int end) {
+		return MU.copy(matrix, myOffsets[i], start, myOffsets[i+1] - myOffsets[i], end - start);
+	}
+	
+	private static boolean isZero(float[][] matrix) {
+		for (int i = 0; i < matrix.length; i++) {
+			for (int j = 0; j < matrix[i].length; j++) {
+				if (matrix[i][j] != 0) return false;
+			}
+		}
+		return true;
+	}
 	
 	private float[][] getA(float tauPSC) {
 		return MU.sum(MU.I(myA.length), MU.prod(myA, tauPSC));		
@@ -76,41 +184,62 @@ public class FeedbackNetwork extends DifferentiatorNetwork {
 	private float[][] getB(float tauPSC) {
 		return MU.prod(myB, tauPSC);		
 	}
+	
+	/**
+	 * @return Differentiating sub-ensembles (one unless the network was made with block sizes)
+	 */
+	public NEFEnsemble[] getDiffEnsembles() {
+		return myDiffs;
+	}
 
 	@Override
 	public void disableParisien() {
-		myInputDiffProjection.removeBias();
-		myDiffDiffProjection.removeBias();
-		myDiffOutputProjection.removeBias();
+		for (Projection p : myInputDiffProjections) disableParisien(p);
+		for (Projection p : myDiffDiffProjections) disableParisien(p);
+		for (Projection p : myDiffOutputProjections) disableParisien(p);
 	}
 
 	@Override
 	public void enableParisien(float propInhibitory) throws StructuralException {
-		int nDiff = Math.round(propInhibitory * (float) myDiff.getNodes().length);
+		for (Projection p : myInputDiffProjections) {
+			enableParisien(p, getNInhibitory(p, propInhibitory));
+		}
+		for (Projection p : myDiffDiffProjections) {
+			enableParisien(p, getNInhibitory(p, propInhibitory), false);
+		}
 		int nOut = Math.round(propInhibitory * (float) getOutputEnsemble().getNodes().length);
-		enableParisien(myInputDiffProjection, nDiff);
-		myDiffDiffProjection.addBias(nDiff, TAU_INTERNEURONS, myDiffDiffProjection.getTermination().getTau(), true, false);
-		enableParisien(myDiffOutputProjection, nOut);
+		for (Projection p : myDiffOutputProjections) {
+			enableParisien(p, nOut);
+		}
+	}
+
+	//number of inhibitory neurons for a projection onto a sub-ensemble
+	private static int getNInhibitory(Projection p, float propInhibitory) {
+		return Math.round(propInhibitory * (float) ((NEFEnsemble) p.getTermination().getNode()).getNodes().length);
 	}
 
 	@Override
 	public void clearErrors() {
 		try {
-			((Noisy) getInputEnsemble().getOrigin(NEFEnsemble.X)).setNoise(new NoiseFactory.NoiseImplNull());
-			((Noisy) myDiff.getOrigin(NEFEnsemble.X)).setNoise(new NoiseFactory.NoiseImplNull());
+			setNoise(getInputEnsemble().getOrigin(NEFEnsemble.X), new NoiseFactory.NoiseImplNull());
+			for (NEFEnsemble diff : myDiffs) {
+				setNoise(diff.getOrigin(NEFEnsemble.X), new NoiseFactory.NoiseImplNull());
+			}
 		} catch (StructuralException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
 	/**
-	 * Note: sets equal error on each output of the differentiator ensemble
+	 * Note: sets equal error on each output of the differentiator ensembles
 	 */
 	@Override
 	public void setDistortion(int nInput, int nDiff) {
 		try {
-			((Noisy) getInputEnsemble().getOrigin(NEFEnsemble.X)).setNoise(makeDistortion(nInput));
-			((Noisy) myDiff.getOrigin(NEFEnsemble.X)).setNoise(makeDistortion(nDiff));
+			setNoise(getInputEnsemble().getOrigin(NEFEnsemble.X), makeDistortion(nInput));
+			for (NEFEnsemble diff : myDiffs) {
+				setNoise(diff.getOrigin(NEFEnsemble.X), makeDistortion(nDiff));
+			}
 		} catch (StructuralException e) {
 			throw new RuntimeException(e);
 		}
@@ -119,8 +248,10 @@ public class FeedbackNetwork extends DifferentiatorNetwork {
 	@Override
 	public void setNoise(int nInput, int nDiff) {
 		try {
-			((Noisy) getInputEnsemble().getOrigin(NEFEnsemble.X)).setNoise(makeNoise(nInput));
-			((Noisy) myDiff.getOrigin(NEFEnsemble.X)).setNoise(makeNoise(nDiff));
+			setNoise(getInputEnsemble().getOrigin(NEFEnsemble.X), makeNoise(nInput));
+			for (NEFEnsemble diff : myDiffs) {
+				setNoise(diff.getOrigin(NEFEnsemble.X), makeNoise(nDiff));
+			}
 		} catch (StructuralException e) {
 			throw new RuntimeException(e);
 		}
@@ -129,12 +260,25 @@ public class FeedbackNetwork extends DifferentiatorNetwork {
 	@Override
 	public void setTau(float tau) {
 		try {
-			DecodedTermination input = (DecodedTermination) myDiff.getTermination(INPUT);
-			input.setTau(tau);
-			input.setTransform(getB(tau));
-			DecodedTermination feedback = (DecodedTermination) myDiff.getTermination(FEEDBACK);
-			feedback.setTau(tau);
-			feedback.setTransform(getA(tau));
+			float[][] A = getA(tau);
+			float[][] B = getB(tau);
+			for (int i = 0; i < myDiffs.length; i++) {
+				for (int j = 0; j < myDiffs.length; j++) {
+					float[][] block = getBlock(A, i, myOffsets[j], myOffsets[j+1]);
+					if (isZero(block)) continue; //blocks of A scale with tau, so the nonzero pattern is fixed 
+					
+					DecodedTermination feedback = (DecodedTermination) myDiffs[i].getTermination(getFeedbackName(j));
+					feedback.setTau(tau);
+					feedback.setTransform(block);
+				}
+				
+				float[][] block = getBlock(B, i, 0, 1);
+				if (!isZero(block)) {
+					DecodedTermination input = (DecodedTermination) myDiffs[i].getTermination(INPUT);
+					input.setTau(tau);
+					input.setTransform(block);
+				}
+			}
 		} catch (StructuralException e) {
 			throw new RuntimeException(e);
 		}
@@ -148,6 +292,7 @@ public class FeedbackNetwork extends DifferentiatorNetwork {
 	public static class DimensionRatioVG extends RandomHypersphereVG {
 
 		private static final long serialVersionUID = 1L;
+		
 		float[] myRatio;
 		
 		public DimensionRatioVG(boolean surface, float radius, float axisClusterFactor) {
@@ -163,44 +308,71 @@ public class FeedbackNetwork extends DifferentiatorNetwork {
 			return myRatio;
 		}
 		
+		/**
+		 * Vectors are generated in bulk for each dimension, and the largest component of each is swapped 
+		 * into that dimension. The parent distribution is symmetric under permutation of dimensions, so 
+		 * this has the same distribution as drawing vectors until each dimension has its share, but 
+		 * without rejection. Dimensions are generated in turn, so that vectors drawn from a seeded PDFTools 
+		 * generator are reproducible. 
+		 * 
+		 * @see ca.nengo.util.impl.RandomHypersphereVG#genVectors(int, int)
+		 */
 		@Override
 		public float[][] genVectors(int number, int dimension) {
 			if (myRatio.length < dimension) {
 				throw new RuntimeException("Not enough ratios");
 			}
 			
-			float total = MU.sumToIndex(myRatio, dimension-1);
-			int[] numNeeded = new int[dimension];
-			for (int i = 0; i < numNeeded.length; i++) {
-				numNeeded[i] = Math.round((float) number * myRatio[i] / total);
-			}			
-			int[] numGenerated = new int[dimension];
-			boolean[] done = new boolean[dimension];
-			
+			int[] numNeeded = getNumNeeded(number, dimension);
 			float[][] result = new float[number][];
-			int index = 0;
-			while (!all(done)) {
-				float[] vector = super.genVectors(1, dimension)[0];
-				int biggestDim = biggestDimension(vector);
-				if (!done[biggestDim]) {
-					numGenerated[biggestDim]++;
-					result[index] = vector;
-					index++;
-					if (numGenerated[biggestDim] == numNeeded[biggestDim]) done[biggestDim] = true;
-				}
+			int offset = 0;
+			for (int i = 0; i < dimension; i++) {
+				fill(result, offset, numNeeded[i], i, dimension);
+				offset += numNeeded[i];
 			}
 			
 			return result;
 		}
 		
-		private static boolean all(boolean[] yes) {
-			boolean result = true;
-			for (boolean b : yes) {
-				if (!b) result = false;
+		//number of vectors along each dimension, rounded so that they add up to number (largest remainders round up)
+		private int[] getNumNeeded(int number, int dimension) {
+			float total = MU.sumToIndex(myRatio, dimension-1);
+			int[] result = new int[dimension];
+			float[] remainders = new float[dimension];
+			int assigned = 0;
+			for (int i = 0; i < dimension; i++) {
+				float exact = (float) number * myRatio[i] / total;
+				result[i] = (int) Math.floor(exact);
+				remainders[i] = exact - result[i];
+				assigned += result[i];
+			}
+			
+			for (; assigned < number; assigned++) {
+				int biggest = 0;
+				for (int i = 1; i < dimension; i++) {
+					if (remainders[i] > remainders[biggest]) biggest = i;
+				}
+				result[biggest]++;
+				remainders[biggest] = -1;
 			}
 			return result;
 		}
 		
+		//fills result[offset ... offset+n-1] with vectors whose largest component is along dim
+		private void fill(float[][] result, int offset, int n, int dim, int dimension) {
+			if (n == 0) return;
+			
+			float[][] vectors = super.genVectors(n, dimension);
+			for (int i = 0; i < n; i++) {
+				float[] vector = vectors[i];
+				int biggestDim = biggestDimension(vector);
+				float temp = vector[dim];
+				vector[dim] = vector[biggestDim];
+				vector[biggestDim] = temp;
+				result[offset + i] = vector;
+			}
+		}
+		
 		private static int biggestDimension(float[] vector) {
 			float biggest = 0;
 			int result = 0;
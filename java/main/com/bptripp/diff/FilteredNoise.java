@@ -0,0 +1,326 @@
+/*
+ * Created on 17-Oct-26
+ */
+package com.bptripp.diff;
+
+import ca.nengo.math.PDFTools;
+import ca.nengo.model.Noise;
+
+/**
+ * Gaussian noise that is sampled at a fixed frequency, held between samples, and passed through a
+ * second-order Butterworth low-pass filter. This is the same noise model as
+ * NoiseFactory.makeRandomNoise(frequency, new GaussianPDF(0, variance), filter, integrator) with the
+ * filter from DifferentiatorNetwork, but it is much cheaper to run:
+ *
+ * - The filter is discretized exactly. Held samples are piecewise constant, so over an interval h
+ *   the state evolves as x' = Ad(h) x + Bd(h) u, where Ad = exp(Ah) has a closed form for this filter.
+ *   There is no integration error, and no sub-stepping within a simulation step.
+ * - Noise is generated in blocks of BLOCK_SIZE simulation steps ahead of time, in a tight loop.
+ * - Samples come from a SplitMix64 generator (a small, fast generator whose streams can be split),
+ *   rather than from a shared java.util.Random.
+ *
+ * Clones (Nengo clones a Noise for each dimension of an origin) split off independent streams.
+ * The first stream is seeded from PDFTools, so that PDFTools.setSeed(...) makes runs repeatable.
+ * Clones also share any profile link (see setProfile(...)), so that all dimensions of an origin are
+ * timed together in a profiled run.
+ */
+public class FilteredNoise implements Noise {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Number of simulation steps of noise generated at once
+	 */
+	public static final int BLOCK_SIZE = 1024;
+
+	private static final double TOLERANCE = 1e-9;
+
+	/**
+	 * Relative change in step size below which the step is treated as unchanged (steps computed as
+	 * endTime - startTime in float differ by rounding from one step to the next)
+	 */
+	public static final float STEP_TOLERANCE = 1e-4f;
+
+	private float myVariance;
+	private float mySampleFrequency;
+	private float myCutoff;
+
+	private double myDeviation;
+	private double myPeriod;
+	private double myW; //cutoff in rad/s (0 if unfiltered)
+
+	private long myRandomState;
+	private boolean myHaveSpare;
+	private double mySpare;
+
+	private double myX0; //filter state
+	private double myX1;
+	private double myU; //held sample
+	private double myHoldRemaining;
+
+	private float myStep; //step size for which the block is generated
+	private double[] myAd; //discretization for one step
+	private double[] myBd;
+	private float[] myBlock;
+	private int myBlockIndex;
+
+	private long myBlockRandomState; //generator and filter state at start of block
+	private boolean myBlockHaveSpare;
+	private double myBlockSpare;
+	private double myBlockX0;
+	private double myBlockX1;
+	private double myBlockU;
+	private double myBlockHoldRemaining;
+
+	private RunProfile.Link myProfileLink; //null unless set by setProfile(...)
+	private String myProfileName;
+	private transient RunProfile myProfile; //profile for which myProfileEntry was found
+	private transient RunProfile.Entry myProfileEntry;
+
+	/**
+	 * @param variance Variance of the Gaussian samples
+	 * @param sampleFrequency Frequency (Hz) at which samples are drawn
+	 * @param cutoff Cutoff frequency (Hz) of the Butterworth filter (0 for no filter)
+	 */
+	public FilteredNoise(float variance, float sampleFrequency, float cutoff) {
+		myVariance = variance;
+		mySampleFrequency = sampleFrequency;
+		myCutoff = cutoff;
+
+		myDeviation = Math.sqrt(variance);
+		myPeriod = 1.0 / sampleFrequency;
+		myW = 2 * Math.PI * cutoff;
+
+		myBlock = new float[BLOCK_SIZE];
+		setSeed((long) (PDFTools.random() * Long.MAX_VALUE));
+	}
+
+	/**
+	 * @return Variance of the Gaussian samples
+	 */
+	public float getVariance() {
+		return myVariance;
+	}
+
+	/**
+	 * @return Frequency (Hz) at which samples are drawn
+	 */
+	public float getSampleFrequency() {
+		return mySampleFrequency;
+	}
+
+	/**
+	 * @return Cutoff frequency (Hz) of the Butterworth filter (0 for no filter)
+	 */
+	public float getCutoff() {
+		return myCutoff;
+	}
+
+	/**
+	 * Restarts the random stream, and clears the filter state.
+	 *
+	 * @param seed Seed of random stream
+	 */
+	public void setSeed(long seed) {
+		myRandomState = seed;
+		myHaveSpare = false;
+		reset(false);
+	}
+
+	/**
+	 * Links this noise (and its clones) to a network's profile, so that getValue(...) is timed while the
+	 * network's runs are profiled (see DifferentiatorNetwork.setProfiling(...)).
+	 *
+	 * @param link Link to the profile of a network's runs (null to stop timing)
+	 * @param name Name under which this noise is profiled (e.g. node:origin)
+	 */
+	public void setProfile(RunProfile.Link link, String name) {
+		myProfileLink = link;
+		myProfileName = name;
+	}
+
+	/**
+	 * @see ca.nengo.model.Noise#getValue(float, float, float)
+	 */
+	public float getValue(float startTime, float endTime, float input) {
+		RunProfile profile = myProfileLink == null ? null : myProfileLink.getProfile();
+		if (profile == null) return sample(startTime, endTime, input);
+
+		if (profile != myProfile) {
+			myProfile = profile;
+			myProfileEntry = profile.getEntry(RunProfile.NOISE, myProfileName);
+		}
+		long bytes = RunProfile.getThreadAllocatedBytes();
+		long start = System.nanoTime();
+		float result = sample(startTime, endTime, input);
+		myProfileEntry.add(System.nanoTime() - start, bytes < 0 ? -1 : RunProfile.getThreadAllocatedBytes() - bytes);
+		return result;
+	}
+
+	/**
+	 * @see ca.nengo.model.Resettable#reset(boolean)
+	 */
+	public void reset(boolean randomize) {
+		myX0 = 0;
+		myX1 = 0;
+		myU = 0;
+		myHoldRemaining = 0;
+		myBlockIndex = BLOCK_SIZE;
+	}
+
+	/**
+	 * @see java.lang.Object#clone()
+	 */
+	@Override
+	public Noise clone() {
+		try {
+			FilteredNoise result = (FilteredNoise) super.clone();
+			result.myBlock = new float[BLOCK_SIZE];
+			result.setSeed(nextLong());
+			return result;
+		} catch (CloneNotSupportedException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	//input plus noise at the end of the step
+	private float sample(float startTime, float endTime, float input) {
+		float step = endTime - startTime;
+		if (myAd == null || Math.abs(step - myStep) > STEP_TOLERANCE * myStep) {
+			if (myAd != null && myBlockIndex < BLOCK_SIZE) {
+				rewind();
+			}
+			myStep = step;
+			myAd = new double[4];
+			myBd = new double[2];
+			discretize(step, myAd, myBd);
+		}
+
+		if (myBlockIndex == BLOCK_SIZE) {
+			fillBlock();
+			myBlockIndex = 0;
+		}
+		return input + myBlock[myBlockIndex++];
+	}
+
+	//noise at the end of each of the next BLOCK_SIZE steps
+	private void fillBlock() {
+		myBlockRandomState = myRandomState;
+		myBlockHaveSpare = myHaveSpare;
+		myBlockSpare = mySpare;
+		myBlockX0 = myX0;
+		myBlockX1 = myX1;
+		myBlockU = myU;
+		myBlockHoldRemaining = myHoldRemaining;
+
+		double[] Ad = new double[4];
+		double[] Bd = new double[2];
+		for (int i = 0; i < BLOCK_SIZE; i++) {
+			myBlock[i] = step(Ad, Bd);
+		}
+	}
+
+	/*
+	 * Returns the generator and filter to their state after the samples of the block that have been used.
+	 * The unused samples were generated with the old step size, so they are dropped and regenerated with
+	 * the new one, and the noise sequence continues without skipping ahead.
+	 */
+	private void rewind() {
+		myRandomState = myBlockRandomState;
+		myHaveSpare = myBlockHaveSpare;
+		mySpare = myBlockSpare;
+		myX0 = myBlockX0;
+		myX1 = myBlockX1;
+		myU = myBlockU;
+		myHoldRemaining = myBlockHoldRemaining;
+
+		double[] Ad = new double[4];
+		double[] Bd = new double[2];
+		for (int i = 0; i < myBlockIndex; i++) {
+			step(Ad, Bd);
+		}
+		myBlockIndex = BLOCK_SIZE;
+	}
+
+	//advances by myStep, and returns the noise at the end of the step (Ad and Bd are workspace)
+	private float step(double[] Ad, double[] Bd) {
+		double remaining = myStep;
+		while (remaining > TOLERANCE) {
+			if (myHoldRemaining <= TOLERANCE) {
+				myU = myDeviation * nextGaussian();
+				myHoldRemaining += myPeriod;
+			}
+
+			double h = Math.min(remaining, myHoldRemaining);
+			if (Math.abs(h - myStep) < TOLERANCE) {
+				advance(myAd, myBd);
+			} else {
+				discretize(h, Ad, Bd);
+				advance(Ad, Bd);
+			}
+			remaining -= h;
+			myHoldRemaining -= h;
+		}
+		return (float) (myW > 0 ? myX0 : myU);
+	}
+
+	private void advance(double[] Ad, double[] Bd) {
+		double x0 = Ad[0]*myX0 + Ad[1]*myX1 + Bd[0]*myU;
+		double x1 = Ad[2]*myX0 + Ad[3]*myX1 + Bd[1]*myU;
+		myX0 = x0;
+		myX1 = x1;
+	}
+
+	/*
+	 * Exact zero-order-hold discretization of the filter A = [0 1; -w^2 -sqrt(2)w], B = [0; w^2]. The
+	 * eigenvalues are -s +/- js with s = w/sqrt(2), so exp(Ah) = exp(-sh) [cos(sh) I + sin(sh)/s (A + sI)],
+	 * and Bd = inv(A) (exp(Ah) - I) B.
+	 */
+	private void discretize(double h, double[] Ad, double[] Bd) {
+		if (myW <= 0) return;
+
+		double w = myW;
+		double s = w / Math.sqrt(2);
+		double decay = Math.exp(-s*h);
+		double c = Math.cos(s*h);
+		double sn = Math.sin(s*h) / s;
+
+		Ad[0] = decay * (c + sn*s);
+		Ad[1] = decay * sn;
+		Ad[2] = decay * sn * (-w*w);
+		Ad[3] = decay * (c + sn*(s - Math.sqrt(2)*w));
+
+		double m01 = Ad[1];
+		double m11 = Ad[3] - 1;
+		Bd[0] = -Math.sqrt(2)*w*m01 - m11;
+		Bd[1] = w*w*m01;
+	}
+
+	//SplitMix64
+	private long nextLong() {
+		long z = (myRandomState += 0x9E3779B97F4A7C15L);
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+
+	private double nextDouble() {
+		return (nextLong() >>> 11) * 0x1.0p-53;
+	}
+
+	//Box-Muller, using both values of each pair
+	private double nextGaussian() {
+		if (myHaveSpare) {
+			myHaveSpare = false;
+			return mySpare;
+		}
+
+		double u1 = 1 - nextDouble(); //(0, 1]
+		double u2 = nextDouble();
+		double r = Math.sqrt(-2 * Math.log(u1));
+		mySpare = r * Math.sin(2 * Math.PI * u2);
+		myHaveSpare = true;
+		return r * Math.cos(2 * Math.PI * u2);
+	}
+
+}
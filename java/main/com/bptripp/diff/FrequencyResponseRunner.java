@@ -0,0 +1,222 @@
+/*
+ * Created on 17-Oct-26
+ */
+package com.bptripp.diff;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ca.nengo.math.PDFTools;
+import ca.nengo.math.impl.SineFunction;
+import ca.nengo.model.SimulationException;
+import ca.nengo.model.StructuralException;
+
+/**
+ * Runs frequency-response simulations of DifferentiatorNetworks in parallel (used by frequencyResponse.py).
+ * Each (network, frequency) pair is simulated on its own copy of the network, so the whole grid can be
+ * spread over a thread pool. Networks should be configured (mode, step size, Parisien conversion, etc.)
+ * before they are passed in.
+ *
+ * Each simulation is independent of the others: simulation k of the grid (in network-major order) seeds
+ * PDFTools with seed + k, resets its copy, and then runs for a 1s transient followed by 5 periods of the
+ * input. Results are therefore the same as those of a serial loop that seeds, resets, and runs the network
+ * at each frequency in turn, and they don't depend on the number of threads or on scheduling. The networks'
+ * abstract noise (FilteredNoise) draws from its own streams, but any other draws from PDFTools during runs
+ * would interleave across threads; use nThreads = 1 to reproduce such runs exactly.
+ *
+ * Gain and phase are found from least-squares sinusoid fits to the input and output over the 5 periods.
+ * The copies use streaming analysis (see DifferentiatorNetwork.setStreamingAnalysis(...)), so probe
+ * data aren't recorded.
+ */
+public class FrequencyResponseRunner {
+
+	private static final float TRANSIENT_TIME = 1f;
+	private static final int PERIODS = 5;
+
+	private static final Object ourSeedLock = new Object();
+
+	private int myNThreads;
+	private long mySeed = 1;
+
+	/**
+	 * Uses one thread per available processor.
+	 */
+	public FrequencyResponseRunner() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param nThreads Number of simulations to run at once
+	 */
+	public FrequencyResponseRunner(int nThreads) {
+		myNThreads = nThreads;
+	}
+
+	/**
+	 * @param seed Seed of first simulation (simulation k uses seed + k)
+	 */
+	public void setSeed(long seed) {
+		mySeed = seed;
+	}
+
+	/**
+	 * @param network Network to simulate
+	 * @param frequencies Input frequencies (Hz)
+	 * @param maxAmplitude Maximum amplitude of input sinusoid
+	 * @param maxAmplification Maximum amplification assumed in scaling input amplitude (see getAmplitude(...))
+	 * @return Gain and phase at each frequency
+	 * @throws SimulationException
+	 */
+	public FrequencyResponse run(DifferentiatorNetwork network, float[] frequencies, float maxAmplitude, float maxAmplification)
+			throws SimulationException {
+		return run(new DifferentiatorNetwork[]{network}, frequencies, new float[]{maxAmplitude}, new float[]{maxAmplification})[0];
+	}
+
+	/**
+	 * Simulates all combinations of the given networks and frequencies.
+	 *
+	 * @param networks Networks to simulate
+	 * @param frequencies Input frequencies (Hz)
+	 * @param maxAmplitudes Maximum amplitude of input sinusoid for each network
+	 * @param maxAmplifications Maximum amplification assumed in scaling input amplitude for each network (see getAmplitude(...))
+	 * @return Gain and phase at each frequency for each network
+	 * @throws SimulationException
+	 */
+	public FrequencyResponse[] run(DifferentiatorNetwork[] networks, final float[] frequencies, float[] maxAmplitudes, float[] maxAmplifications)
+			throws SimulationException {
+
+		if (maxAmplitudes.length != networks.length || maxAmplifications.length != networks.length) {
+			throw new IllegalArgumentException("Expected one maximum amplitude and amplification per network");
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(myNThreads);
+		try {
+			List<List<Future<float[]>>> futures = new ArrayList<List<Future<float[]>>>(networks.length);
+			for (int i = 0; i < networks.length; i++) {
+				final byte[] template = Util.serialize(networks[i]);
+				List<Future<float[]>> networkFutures = new ArrayList<Future<float[]>>(frequencies.length);
+				for (int j = 0; j < frequencies.length; j++) {
+					final float frequency = frequencies[j];
+					final float amplitude = getAmplitude(frequency, maxAmplitudes[i], maxAmplifications[i]);
+					final long seed = mySeed + i * frequencies.length + j;
+					networkFutures.add(executor.submit(new Callable<float[]>() {
+						public float[] call() throws Exception {
+							return simulate((DifferentiatorNetwork) Util.deserialize(template), frequency, amplitude, seed);
+						}
+					}));
+				}
+				futures.add(networkFutures);
+			}
+
+			FrequencyResponse[] result = new FrequencyResponse[networks.length];
+			for (int i = 0; i < networks.length; i++) {
+				float[] gain = new float[frequencies.length];
+				float[] phase = new float[frequencies.length];
+				for (int j = 0; j < frequencies.length; j++) {
+					float[] gainPhase = futures.get(i).get(j).get();
+					gain[j] = gainPhase[0];
+					phase[j] = gainPhase[1];
+				}
+				result[i] = new FrequencyResponse(networks[i].getName(), frequencies, gain, phase);
+			}
+			return result;
+		} catch (InterruptedException e) {
+			throw new SimulationException(e);
+		} catch (ExecutionException e) {
+			throw new SimulationException(e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Input amplitude is normalized so that input, output, and state magnitudes are <= 1 (as in frequencyResponse.py).
+	 *
+	 * @param frequency Input frequency (Hz)
+	 * @param maxAmplitude Maximum amplitude of input sinusoid
+	 * @param maxAmplification Maximum amplification of the network (e.g. 10 for the depression network,
+	 * 		which saturates; Float.POSITIVE_INFINITY for an ideal differentiator)
+	 * @return Amplitude of input sinusoid
+	 */
+	public static float getAmplitude(float frequency, float maxAmplitude, float maxAmplification) {
+		float angularFrequency = 2 * (float) Math.PI * frequency;
+		float amplification = Math.min(angularFrequency, maxAmplification);
+		return Math.min(maxAmplitude, 1f / amplification);
+	}
+
+	//returns [gain, phase] of a copied network at one frequency, from reset
+	private static float[] simulate(DifferentiatorNetwork network, float frequency, float amplitude, long seed)
+			throws StructuralException, SimulationException {
+
+		float angularFrequency = 2 * (float) Math.PI * frequency;
+		synchronized (ourSeedLock) {
+			PDFTools.setSeed(seed);
+			network.reset(false);
+			network.setInputFunction(new SineFunction(angularFrequency, amplitude));
+			network.setStreamingAnalysis(frequency, TRANSIENT_TIME);
+		}
+		network.run(0, TRANSIENT_TIME + PERIODS / frequency);
+
+		StreamingProbe in = network.getInputAnalysis();
+		StreamingProbe out = network.getOutputAnalysis();
+		return new float[]{out.getAmplitude() / in.getAmplitude(), SinusoidFit.wrap(out.getPhase() - in.getPhase())};
+	}
+
+	/**
+	 * Gain and phase of a network's response over a range of frequencies.
+	 */
+	public static class FrequencyResponse {
+
+		private String myName;
+		private float[] myFrequencies;
+		private float[] myGain;
+		private float[] myPhase;
+
+		/**
+		 * @param name Name of network
+		 * @param frequencies Input frequencies (Hz)
+		 * @param gain Ratio of output to input amplitude at each frequency
+		 * @param phase Phase of output relative to input at each frequency (radians)
+		 */
+		public FrequencyResponse(String name, float[] frequencies, float[] gain, float[] phase) {
+			myName = name;
+			myFrequencies = frequencies;
+			myGain = gain;
+			myPhase = phase;
+		}
+
+		/**
+		 * @return Name of network
+		 */
+		public String getName() {
+			return myName;
+		}
+
+		/**
+		 * @return Input frequencies (Hz)
+		 */
+		public float[] getFrequencies() {
+			return myFrequencies;
+		}
+
+		/**
+		 * @return Ratio of output to input amplitude at each frequency
+		 */
+		public float[] getGain() {
+			return myGain;
+		}
+
+		/**
+		 * @return Phase of output relative to input at each frequency (radians)
+		 */
+		public float[] getPhase() {
+			return myPhase;
+		}
+	}
+
+}
@@ -5,7 +5,6 @@ package com.bptripp.diff;
 
 import ca.nengo.model.Projection;
 import ca.nengo.model.StructuralException;
-import ca.nengo.model.Noise.Noisy;
 import ca.nengo.model.impl.FunctionInput;
 import ca.nengo.model.impl.NoiseFactory;
 import ca.nengo.model.nef.NEFEnsemble;
@@ -51,9 +50,9 @@ public class InterneuronNetwork extends DifferentiatorNetwork {
 	
 	@Override
 	public void disableParisien() {
-		myInputOutputProjection.removeBias();
-		myInputInterneuronProjection.removeBias();
-		myInterneuronOutputProjection.removeBias();
+		disableParisien(myInputOutputProjection);
+		disableParisien(myInputInterneuronProjection);
+		disableParisien(myInterneuronOutputProjection);
 	}
 
 	@Override
@@ -68,8 +67,8 @@ public class InterneuronNetwork extends DifferentiatorNetwork {
 	@Override
 	public void clearErrors() {
 		try {
-			((Noisy) getInputEnsemble().getOrigin(NEFEnsemble.X)).setNoise(new NoiseFactory.NoiseImplNull());
-			((Noisy) myInterneurons.getOrigin(NEFEnsemble.X)).setNoise(new NoiseFactory.NoiseImplNull());
+			setNoise(getInputEnsemble().getOrigin(NEFEnsemble.X), new NoiseFactory.NoiseImplNull());
+			setNoise(myInterneurons.getOrigin(NEFEnsemble.X), new NoiseFactory.NoiseImplNull());
 		} catch (StructuralException e) {
 			throw new RuntimeException(e);
 		}
@@ -79,8 +78,8 @@ public class InterneuronNetwork extends DifferentiatorNetwork {
 	@Override
 	public void setDistortion(int nInput, int nDiff) {
 		try {
-			((Noisy) getInputEnsemble().getOrigin(NEFEnsemble.X)).setNoise(makeDistortion(nInput));
-			((Noisy) myInterneurons.getOrigin(NEFEnsemble.X)).setNoise(makeDistortion(nDiff));
+			setNoise(getInputEnsemble().getOrigin(NEFEnsemble.X), makeDistortion(nInput));
+			setNoise(myInterneurons.getOrigin(NEFEnsemble.X), makeDistortion(nDiff));
 		} catch (StructuralException e) {
 			throw new RuntimeException(e);
 		}
@@ -90,8 +89,8 @@ public class InterneuronNetwork extends DifferentiatorNetwork {
 	@Override
 	public void setNoise(int nInput, int nDiff) {
 		try {
-			((Noisy) getInputEnsemble().getOrigin(NEFEnsemble.X)).setNoise(makeNoise(nInput));
-			((Noisy) myInterneurons.getOrigin(NEFEnsemble.X)).setNoise(makeNoise(nDiff));
+			setNoise(getInputEnsemble().getOrigin(NEFEnsemble.X), makeNoise(nInput));
+			setNoise(myInterneurons.getOrigin(NEFEnsemble.X), makeNoise(nDiff));
 		} catch (StructuralException e) {
 			throw new RuntimeException(e);
 		}
@@ -0,0 +1,486 @@
+/*
+ * Created on 17-Oct-26
+ */
+package com.bptripp.diff;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import ca.nengo.dynamics.impl.LTISystem;
+import ca.nengo.math.Function;
+import ca.nengo.model.Node;
+import ca.nengo.model.Noise;
+import ca.nengo.model.Origin;
+import ca.nengo.model.Projection;
+import ca.nengo.model.StructuralException;
+import ca.nengo.model.Termination;
+import ca.nengo.model.Units;
+import ca.nengo.model.impl.FunctionInput;
+import ca.nengo.model.nef.NEFEnsemble;
+import ca.nengo.model.nef.impl.BiasOrigin;
+import ca.nengo.model.nef.impl.BiasTermination;
+import ca.nengo.model.nef.impl.DecodedOrigin;
+import ca.nengo.model.nef.impl.DecodedTermination;
+import ca.nengo.util.MU;
+
+/**
+ * The linear state-space model of a DifferentiatorNetwork in DIRECT mode, where ensembles represent
+ * their inputs exactly, and the network's dynamics come only from the post-synaptic filters of its
+ * decoded terminations.
+ *
+ * The model is built from the network's projections. Each dimension of each DecodedTermination on an
+ * NEFEnsemble is a first-order state, z' = (T y - z) / tau, where T and tau are the termination's
+ * transform and time constant and y is the value of the projected origin. An ensemble's state is the
+ * sum of its termination states. Decoded origins are linearized around zero (the X origin is the
+ * identity; see getNonlinearOrigins() for origins that this only approximates), and the external input is the first model input. Each dimension of a Noisy origin whose
+ * noise is a FilteredNoise adds a further input (shared by all projections from that origin). The
+ * outputs are the output ensemble's state (first) and the input ensemble's state.
+ *
+ * Projection delays of one simulation step are not modelled, and Parisien additions (bias origins and
+ * terminations, which cancel by design) are ignored.
+ *
+ * Gain, phase, and noise power follow from G(jw) = C (jwI - A)^-1 B, so they can be found without
+ * simulation.
+ */
+public class LinearModel {
+
+	/**
+	 * Index of the output ensemble's state among the model outputs
+	 */
+	public static final int OUTPUT = 0;
+
+	/**
+	 * Index of the input ensemble's state among the model outputs
+	 */
+	public static final int INPUT_ENSEMBLE = 1;
+
+	private static final double LINEARIZATION_STEP = 1e-3;
+
+	/**
+	 * Largest difference between a decoded origin's function and its linearization, relative to
+	 * 1 + |function value|, over the represented range, for which the origin is treated as linear
+	 * (see getNonlinearOrigins())
+	 */
+	public static final float LINEARITY_TOLERANCE = 1e-3f;
+
+	private static final float[] LINEARITY_POINTS = new float[]{-1f, -.5f, .5f, 1f};
+
+	private String myName;
+	private double[][] myA;
+	private double[][] myB;
+	private double[][] myC;
+	private List<FilteredNoise> myNoises;
+	private List<String> myNonlinearOrigins;
+
+	/**
+	 * @param network Network to model (as it is currently configured)
+	 * @throws StructuralException If the network has projections that can't be modelled
+	 */
+	public LinearModel(DifferentiatorNetwork network) throws StructuralException {
+		myName = network.getName();
+
+		//allocate states for each decoded termination
+		Map<Termination, Integer> terminationStates = new HashMap<Termination, Integer>();
+		Map<NEFEnsemble, List<Integer>> ensembleStates = new HashMap<NEFEnsemble, List<Integer>>();
+		int n = 0;
+		Node[] nodes = network.getNodes();
+		for (int i = 0; i < nodes.length; i++) {
+			if (nodes[i] instanceof NEFEnsemble) {
+				NEFEnsemble ensemble = (NEFEnsemble) nodes[i];
+				List<Integer> offsets = new ArrayList<Integer>();
+				Termination[] terminations = ensemble.getTerminations();
+				for (int j = 0; j < terminations.length; j++) {
+					if (terminations[j] instanceof DecodedTermination && !(terminations[j] instanceof BiasTermination)) {
+						terminationStates.put(terminations[j], new Integer(n));
+						offsets.add(new Integer(n));
+						n += ensemble.getDimension();
+					}
+				}
+				ensembleStates.put(ensemble, offsets);
+			}
+		}
+
+		List<double[]> A = new ArrayList<double[]>(n); //rows
+		for (int i = 0; i < n; i++) {
+			A.add(new double[n]);
+		}
+		List<double[]> B = new ArrayList<double[]>(); //columns
+		B.add(new double[n]);
+		myNoises = new ArrayList<FilteredNoise>();
+		myNonlinearOrigins = new ArrayList<String>();
+		Map<Origin, Integer> noiseInputs = new HashMap<Origin, Integer>();
+
+		Projection[] projections = network.getProjections();
+		for (int p = 0; p < projections.length; p++) {
+			Termination termination = projections[p].getTermination();
+			Integer offset = terminationStates.get(termination);
+			if (offset == null) continue;
+
+			Origin origin = projections[p].getOrigin();
+			if (origin instanceof BiasOrigin) continue;
+
+			DecodedTermination dt = (DecodedTermination) termination;
+			float[][] T = dt.getTransform();
+			double tau = dt.getTau();
+			for (int i = 0; i < T.length; i++) {
+				A.get(offset.intValue() + i)[offset.intValue() + i] -= 1 / tau;
+			}
+
+			if (origin.getNode() == network.getInput()) {
+				for (int i = 0; i < T.length; i++) {
+					B.get(0)[offset.intValue() + i] += T[i][0] / tau;
+				}
+			} else if (origin instanceof DecodedOrigin && origin.getNode() instanceof NEFEnsemble) {
+				NEFEnsemble source = (NEFEnsemble) origin.getNode();
+				double[][] J = linearize((DecodedOrigin) origin, source.getDimension());
+				String originName = source.getName() + ":" + origin.getName();
+				if (!myNonlinearOrigins.contains(originName) && !isLinear((DecodedOrigin) origin, J)) {
+					myNonlinearOrigins.add(originName);
+				}
+				List<Integer> sourceStates = ensembleStates.get(source);
+
+				//y = J * (sum of source termination states) + noise
+				for (int i = 0; i < T.length; i++) {
+					double[] row = A.get(offset.intValue() + i);
+					for (int j = 0; j < T[i].length; j++) {
+						for (int k = 0; k < source.getDimension(); k++) {
+							for (Integer sourceOffset : sourceStates) {
+								row[sourceOffset.intValue() + k] += T[i][j] * J[j][k] / tau;
+							}
+						}
+					}
+				}
+
+				Noise noise = ((DecodedOrigin) origin).getNoise();
+				if (noise instanceof FilteredNoise) {
+					Integer noiseInput = noiseInputs.get(origin);
+					if (noiseInput == null) {
+						noiseInput = new Integer(B.size());
+						noiseInputs.put(origin, noiseInput);
+						for (int j = 0; j < origin.getDimensions(); j++) {
+							B.add(new double[n]);
+							myNoises.add((FilteredNoise) noise);
+						}
+					}
+					for (int i = 0; i < T.length; i++) {
+						for (int j = 0; j < T[i].length; j++) {
+							B.get(noiseInput.intValue() + j)[offset.intValue() + i] += T[i][j] / tau;
+						}
+					}
+				}
+			} else {
+				throw new StructuralException("Can't model projection from " + origin.getNode().getName() + ":" + origin.getName());
+			}
+		}
+
+		myA = A.toArray(new double[n][]);
+		myB = new double[n][B.size()];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < B.size(); j++) {
+				myB[i][j] = B.get(j)[i];
+			}
+		}
+
+		NEFEnsemble[] outputs = new NEFEnsemble[]{network.getOutputEnsemble(), network.getInputEnsemble()};
+		myC = new double[outputs.length][n];
+		for (int i = 0; i < outputs.length; i++) {
+			for (Integer offset : ensembleStates.get(outputs[i])) {
+				myC[i][offset.intValue()] = 1; //first dimension
+			}
+		}
+	}
+
+	//Jacobian of origin functions at zero (central differences)
+	private static double[][] linearize(DecodedOrigin origin, int dimension) {
+		Function[] functions = origin.getFunctions();
+		double[][] result = new double[functions.length][dimension];
+		for (int i = 0; i < functions.length; i++) {
+			for (int j = 0; j < dimension; j++) {
+				float[] plus = new float[dimension];
+				float[] minus = new float[dimension];
+				plus[j] = (float) LINEARIZATION_STEP;
+				minus[j] = (float) -LINEARIZATION_STEP;
+				result[i][j] = (functions[i].map(plus) - functions[i].map(minus)) / (2 * LINEARIZATION_STEP);
+			}
+		}
+		return result;
+	}
+
+	//true if the origin's functions match their linearization along each axis of the represented range
+	private static boolean isLinear(DecodedOrigin origin, double[][] J) {
+		Function[] functions = origin.getFunctions();
+		for (int i = 0; i < functions.length; i++) {
+			for (int j = 0; j < J[i].length; j++) {
+				for (int k = 0; k < LINEARITY_POINTS.length; k++) {
+					float[] x = new float[J[i].length];
+					x[j] = LINEARITY_POINTS[k];
+					double value = functions[i].map(x);
+					if (Math.abs(value - J[i][j] * x[j]) > LINEARITY_TOLERANCE * (1 + Math.abs(value))) return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return Names (node:origin) of modelled decoded origins whose functions aren't linear over the
+	 * 		represented range, so that the model only approximates the network near zero
+	 */
+	public String[] getNonlinearOrigins() {
+		return myNonlinearOrigins.toArray(new String[myNonlinearOrigins.size()]);
+	}
+
+	/**
+	 * @return Name of modelled network
+	 */
+	public String getName() {
+		return myName;
+	}
+
+	/**
+	 * @return Number of states
+	 */
+	public int getOrder() {
+		return myA.length;
+	}
+
+	/**
+	 * @return Dynamics matrix
+	 */
+	public float[][] getA() {
+		return toFloat(myA);
+	}
+
+	/**
+	 * @return Input matrix (the first column is the external input; the others are noise inputs)
+	 */
+	public float[][] getB() {
+		return toFloat(myB);
+	}
+
+	/**
+	 * @return Output matrix (rows OUTPUT and INPUT_ENSEMBLE)
+	 */
+	public float[][] getC() {
+		return toFloat(myC);
+	}
+
+	/**
+	 * @return Noise that drives each noise input (input i+1 is driven by noise i)
+	 */
+	public FilteredNoise[] getNoises() {
+		return myNoises.toArray(new FilteredNoise[0]);
+	}
+
+	/**
+	 * @return An equivalent LTISystem (with zero initial state)
+	 */
+	public LTISystem toLTISystem() {
+		Units[] units = new Units[myC.length];
+		for (int i = 0; i < units.length; i++) {
+			units[i] = Units.UNK;
+		}
+		return new LTISystem(getA(), getB(), getC(), MU.zero(myC.length, myB[0].length), new float[myA.length], units);
+	}
+
+	/**
+	 * @param frequency Frequency (Hz)
+	 * @param output Index of output (e.g. OUTPUT)
+	 * @param input Index of input (0 for the external input)
+	 * @return [real, imaginary] parts of the transfer function from input to output at the given frequency
+	 */
+	public double[] getTransfer(float frequency, int output, int input) {
+		double[][] all = getTransfers(frequency, output);
+		return new double[]{all[0][input], all[1][input]};
+	}
+
+	//[real, imaginary] parts of transfer functions from each input to the given output
+	private double[][] getTransfers(float frequency, int output) {
+		int n = myA.length;
+		int m = myB[0].length;
+		double w = 2 * Math.PI * frequency;
+
+		//solve (jwI - A) X = B, with an augmented complex matrix [re | im]
+		double[][] re = new double[n][n + m];
+		double[][] im = new double[n][n + m];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				re[i][j] = -myA[i][j];
+			}
+			im[i][i] = w;
+			for (int j = 0; j < m; j++) {
+				re[i][n + j] = myB[i][j];
+			}
+		}
+
+		for (int k = 0; k < n; k++) {
+			int pivot = k;
+			for (int i = k + 1; i < n; i++) {
+				if (abs2(re[i][k], im[i][k]) > abs2(re[pivot][k], im[pivot][k])) pivot = i;
+			}
+			double[] t = re[k]; re[k] = re[pivot]; re[pivot] = t;
+			t = im[k]; im[k] = im[pivot]; im[pivot] = t;
+
+			double d = abs2(re[k][k], im[k][k]);
+			for (int i = k + 1; i < n; i++) {
+				//factor = a[i][k] / a[k][k]
+				double fr = (re[i][k]*re[k][k] + im[i][k]*im[k][k]) / d;
+				double fi = (im[i][k]*re[k][k] - re[i][k]*im[k][k]) / d;
+				for (int j = k; j < n + m; j++) {
+					re[i][j] -= fr*re[k][j] - fi*im[k][j];
+					im[i][j] -= fr*im[k][j] + fi*re[k][j];
+				}
+			}
+		}
+
+		double[][] result = new double[2][m];
+		double[][] xr = new double[n][m];
+		double[][] xi = new double[n][m];
+		for (int j = 0; j < m; j++) {
+			for (int i = n - 1; i >= 0; i--) {
+				double sr = re[i][n + j];
+				double si = im[i][n + j];
+				for (int k = i + 1; k < n; k++) {
+					sr -= re[i][k]*xr[k][j] - im[i][k]*xi[k][j];
+					si -= re[i][k]*xi[k][j] + im[i][k]*xr[k][j];
+				}
+				double d = abs2(re[i][i], im[i][i]);
+				xr[i][j] = (sr*re[i][i] + si*im[i][i]) / d;
+				xi[i][j] = (si*re[i][i] - sr*im[i][i]) / d;
+			}
+			for (int i = 0; i < n; i++) {
+				result[0][j] += myC[output][i] * xr[i][j];
+				result[1][j] += myC[output][i] * xi[i][j];
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param frequencies Input frequencies (Hz)
+	 * @return Gain and phase from the external input to the output at each frequency (comparable with
+	 * 		FrequencyResponseRunner results)
+	 */
+	public FrequencyResponseRunner.FrequencyResponse getFrequencyResponse(float[] frequencies) {
+		float[] gain = new float[frequencies.length];
+		float[] phase = new float[frequencies.length];
+		for (int i = 0; i < frequencies.length; i++) {
+			double[] G = getTransfer(frequencies[i], OUTPUT, 0);
+			gain[i] = (float) Math.sqrt(abs2(G[0], G[1]));
+			phase[i] = (float) Math.atan2(G[1], G[0]);
+		}
+		return new FrequencyResponseRunner.FrequencyResponse(myName, frequencies, gain, phase);
+	}
+
+	/**
+	 * @param frequencies Frequencies of sinusoidal input components (Hz)
+	 * @param amplitudes Amplitudes of the components
+	 * @return Steady-state output variance (signal power) for an input that is the sum of the components
+	 */
+	public float getSignalPower(float[] frequencies, float[] amplitudes) {
+		double result = 0;
+		for (int i = 0; i < frequencies.length; i++) {
+			double[] G = getTransfer(frequencies[i], OUTPUT, 0);
+			result += amplitudes[i]*amplitudes[i] / 2 * abs2(G[0], G[1]);
+		}
+		return (float) result;
+	}
+
+	/**
+	 * @param frequencies Frequencies (Hz)
+	 * @return Two-sided power spectral density of output noise at each frequency
+	 */
+	public float[] getNoiseSpectrum(float[] frequencies) {
+		float[] result = new float[frequencies.length];
+		for (int i = 0; i < frequencies.length; i++) {
+			result[i] = (float) getNoiseDensity(frequencies[i], OUTPUT);
+		}
+		return result;
+	}
+
+	/**
+	 * @return Steady-state variance of output noise (noise power)
+	 */
+	public float getNoisePower() {
+		return getNoisePower(OUTPUT);
+	}
+
+	/**
+	 * The noise spectrum is integrated numerically up to several times the highest noise sampling frequency,
+	 * beyond which held, filtered noise has negligible power.
+	 *
+	 * @param output Index of output (e.g. OUTPUT)
+	 * @return Steady-state variance of noise in the given output
+	 */
+	public float getNoisePower(int output) {
+		if (myNoises.isEmpty()) return 0;
+
+		double maxFrequency = 0;
+		for (FilteredNoise noise : myNoises) {
+			maxFrequency = Math.max(maxFrequency, noise.getSampleFrequency());
+		}
+		maxFrequency *= 8;
+
+		//trapezoidal rule over [0, max] on a grid that is finer at low frequencies
+		int points = 4000;
+		double result = 0;
+		double previousF = 0;
+		double previousS = getNoiseDensity(0, output);
+		for (int i = 1; i <= points; i++) {
+			double x = (double) i / points;
+			double f = maxFrequency * x * x;
+			double S = getNoiseDensity((float) f, output);
+			result += (f - previousF) * (S + previousS) / 2;
+			previousF = f;
+			previousS = S;
+		}
+		return (float) (2 * result);
+	}
+
+	//two-sided noise density in the given output
+	private double getNoiseDensity(float frequency, int output) {
+		double[][] G = getTransfers(frequency, output);
+		double result = 0;
+		for (int i = 0; i < myNoises.size(); i++) {
+			result += abs2(G[0][i+1], G[1][i+1]) * getDensity(myNoises.get(i), frequency);
+		}
+		return result;
+	}
+
+	/**
+	 * @param noise A noise model
+	 * @param frequency Frequency (Hz)
+	 * @return Two-sided power spectral density of the noise at the given frequency (held samples have
+	 * 		a sinc-squared spectrum, which is shaped by the Butterworth filter)
+	 */
+	public static double getDensity(FilteredNoise noise, float frequency) {
+		double T = 1.0 / noise.getSampleFrequency();
+		double x = Math.PI * frequency * T;
+		double sinc = x == 0 ? 1 : Math.sin(x) / x;
+		double result = noise.getVariance() * T * sinc * sinc;
+
+		if (noise.getCutoff() > 0) {
+			double r = frequency / noise.getCutoff();
+			result /= 1 + r*r*r*r;
+		}
+		return result;
+	}
+
+	private static double abs2(double re, double im) {
+		return re*re + im*im;
+	}
+
+	private static float[][] toFloat(double[][] values) {
+		float[][] result = new float[values.length][];
+		for (int i = 0; i < values.length; i++) {
+			result[i] = new float[values[i].length];
+			for (int j = 0; j < values[i].length; j++) {
+				result[i][j] = (float) values[i][j];
+			}
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,208 @@
+/*
+ * Created on 17-Oct-26
+ */
+package com.bptripp.diff;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.ObjectStreamField;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Saves fully-built DifferentiatorNetworks to snapshot files, and restores them, so that networks
+ * don't have to be rebuilt (and bias compensation re-simulated) in each session.
+ *
+ * A snapshot holds the whole network, including encoders, decoders, neuron parameters, STP dynamics,
+ * compensation origins, Parisien additions, and probe data. The file has a short header (magic
+ * number, format version, payload length, and CRC32 checksum) followed by the serialized network.
+ * The payload is streamed to the file, and the header is written after it, so a save that fails
+ * part way leaves a file that isn't recognized as a snapshot. Files are read through a memory-mapped
+ * buffer, so the payload is deserialized directly from the mapping without intermediate copies.
+ *
+ * Snapshots depend on the serialized forms of the model classes (and of the Nengo classes they
+ * extend). As the snapshot is read, each class in it is checked against the local class: its
+ * serialVersionUID and its serialized fields (names and types) must match. A snapshot written with
+ * incompatible classes fails to load with an IOException, in which case the network should be
+ * rebuilt and saved again (see loadNetworks.py).
+ */
+public class NetworkSnapshot {
+
+	private static final long MAGIC = 0x44494646534e4150L; //"DIFFSNAP"
+
+	/**
+	 * Format version, which changes when the file layout changes, or when a class with custom
+	 * serialization (writeObject(...)) changes what it writes, since such changes can't be detected
+	 * from class descriptors (it is also part of the snapshot file names in loadNetworks.py)
+	 */
+	public static final int VERSION = 6;
+
+	private static final int HEADER_LENGTH = 8 + 4 + 8 + 8;
+
+	/**
+	 * @param network A network to save
+	 * @param destination Snapshot file
+	 * @throws IOException
+	 */
+	public static void save(DifferentiatorNetwork network, File destination) throws IOException {
+		File parent = destination.getAbsoluteFile().getParentFile();
+		if (parent != null) parent.mkdirs();
+
+		RandomAccessFile file = new RandomAccessFile(destination, "rw");
+		try {
+			file.setLength(0);
+			FileChannel channel = file.getChannel();
+			channel.position(HEADER_LENGTH);
+
+			CheckedOutputStream checked = new CheckedOutputStream(
+					new BufferedOutputStream(Channels.newOutputStream(channel), 1 << 16), new CRC32());
+			ObjectOutputStream out = new ObjectOutputStream(checked);
+			out.writeObject(network);
+			out.flush(); //closing would close the channel
+			long length = channel.position() - HEADER_LENGTH;
+
+			ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+			header.putLong(MAGIC).putInt(VERSION).putLong(length).putLong(checked.getChecksum().getValue());
+			header.flip();
+			while (header.hasRemaining()) {
+				channel.write(header, header.position());
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * @param source Snapshot file (see save(...))
+	 * @return The network saved in the file
+	 * @throws IOException If the file is not a valid snapshot, or was written by an incompatible version
+	 */
+	public static DifferentiatorNetwork load(File source) throws IOException {
+		RandomAccessFile file = new RandomAccessFile(source, "r");
+		try {
+			FileChannel channel = file.getChannel();
+			if (channel.size() < HEADER_LENGTH) {
+				throw new IOException(source + " is not a network snapshot");
+			}
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			if (buffer.getLong() != MAGIC) {
+				throw new IOException(source + " is not a network snapshot");
+			}
+			int version = buffer.getInt();
+			if (version != VERSION) {
+				throw new IOException("Unsupported snapshot version " + version + " in " + source);
+			}
+			long length = buffer.getLong();
+			long expectedChecksum = buffer.getLong();
+			if (length != buffer.remaining()) {
+				throw new IOException("Truncated snapshot " + source);
+			}
+
+			ByteBuffer payload = buffer.slice();
+			if (checksum(payload.duplicate()) != expectedChecksum) {
+				throw new IOException("Corrupt snapshot " + source);
+			}
+
+			ObjectInputStream in = new CheckedObjectInputStream(new ByteBufferInputStream(payload));
+			try {
+				return (DifferentiatorNetwork) in.readObject();
+			} catch (InvalidClassException e) {
+				throw new IOException("Incompatible snapshot " + source + ": " + e.getMessage());
+			} catch (ClassNotFoundException e) {
+				throw new IOException("Incompatible snapshot " + source + ": " + e.getMessage());
+			} catch (ClassCastException e) {
+				throw new IOException("Incompatible snapshot " + source + ": " + e.getMessage());
+			} finally {
+				in.close();
+			}
+		} finally {
+			file.close();
+		}
+	}
+
+	private static long checksum(ByteBuffer buffer) {
+		CRC32 result = new CRC32();
+		byte[] chunk = new byte[1 << 16];
+		while (buffer.hasRemaining()) {
+			int n = Math.min(chunk.length, buffer.remaining());
+			buffer.get(chunk, 0, n);
+			result.update(chunk, 0, n);
+		}
+		return result.getValue();
+	}
+
+	/*
+	 * Rejects classes whose serialized fields differ from those in the stream. ObjectInputStream already 
+	 * rejects classes whose serialVersionUIDs differ, but the model classes declare fixed serialVersionUIDs, 
+	 * so otherwise a field added or removed without a version change would be silently defaulted or dropped. 
+	 */
+	private static class CheckedObjectInputStream extends ObjectInputStream {
+
+		public CheckedObjectInputStream(InputStream in) throws IOException {
+			super(in);
+		}
+
+		@Override
+		protected Class<?> resolveClass(ObjectStreamClass streamClass) throws IOException, ClassNotFoundException {
+			Class<?> result = super.resolveClass(streamClass);
+			ObjectStreamClass localClass = ObjectStreamClass.lookup(result);
+			if (localClass != null && !sameFields(streamClass.getFields(), localClass.getFields())) {
+				throw new InvalidClassException(streamClass.getName(), "serialized fields have changed");
+			}
+			return result;
+		}
+
+		//fields are in canonical order (primitives first, then by name)
+		private static boolean sameFields(ObjectStreamField[] a, ObjectStreamField[] b) {
+			if (a.length != b.length) return false;
+			for (int i = 0; i < a.length; i++) {
+				if (!a[i].getName().equals(b[i].getName()) || a[i].getTypeCode() != b[i].getTypeCode()) return false;
+				if (a[i].getTypeString() != null && !a[i].getTypeString().equals(b[i].getTypeString())) return false;
+			}
+			return true;
+		}
+	}
+
+	//reads directly from a (mapped) buffer
+	private static class ByteBufferInputStream extends InputStream {
+
+		private ByteBuffer myBuffer;
+
+		public ByteBufferInputStream(ByteBuffer buffer) {
+			myBuffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return myBuffer.hasRemaining() ? myBuffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int offset, int length) {
+			if (length == 0) return 0;
+			if (!myBuffer.hasRemaining()) return -1;
+
+			int n = Math.min(length, myBuffer.remaining());
+			myBuffer.get(b, offset, n);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return myBuffer.remaining();
+		}
+	}
+
+}
@@ -0,0 +1,339 @@
+/*
+ * Created on 17-Oct-26
+ */
+package com.bptripp.diff;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ca.nengo.math.PDFTools;
+import ca.nengo.math.impl.ConstantFunction;
+import ca.nengo.model.SimulationException;
+import ca.nengo.model.SimulationMode;
+import ca.nengo.model.StructuralException;
+
+/**
+ * Estimates how abstract noise propagates through DifferentiatorNetworks (a parallel replacement for
+ * the serial loop in noise.py). For each network and nominal number of input neurons, independent
+ * realizations of the noise are simulated in parallel, each on its own copy of the network, in DIRECT
+ * mode with a constant input.
+ *
+ * Each realization's input-ensemble and output means and variances are accumulated as the simulation
+ * runs (see StreamingProbe), after an initial transient. Realizations are pooled by deviations about the
+ * grand mean over all realizations, so a realization whose mean is offset by slow fluctuations contributes
+ * that offset to the variance (variance within realizations alone is biased low when the network's time
+ * constants are not much shorter than a realization). The spread of the realizations' contributions gives
+ * a confidence interval. Realizations are added in batches until the confidence interval of the output
+ * variance is narrower than a target fraction of the variance, or a maximum number of realizations is reached.
+ * Realizations should still be several times longer than the network's slowest time constant (the default
+ * is 10 s after a 1 s transient, as suits time constants up to about 0.5 s).
+ *
+ * Realization k of a study is seeded with PDFTools.setSeed(seed + k) while its noise is created, so
+ * results don't depend on the number of threads or on scheduling.
+ */
+public class NoisePropagationStudy {
+
+	private static final Object ourSeedLock = new Object();
+
+	private int myNThreads;
+	private float myStepSize = .0001f;
+	private float myRealizationTime = 11f;
+	private float myTransientTime = 1f;
+	private float myPrecision = .05f;
+	private float myZ = 1.96f;
+	private int myMinRealizations = 8;
+	private int myMaxRealizations = 200;
+	private long mySeed = 1;
+
+	/**
+	 * Uses one thread per available processor.
+	 */
+	public NoisePropagationStudy() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * @param nThreads Number of realizations to simulate at once
+	 */
+	public NoisePropagationStudy(int nThreads) {
+		myNThreads = nThreads;
+	}
+
+	/**
+	 * @param stepSize Simulation step size (s)
+	 * @param realizationTime Duration of each realization (s), including the transient
+	 * @param transientTime Initial time of each realization that is excluded from variance estimates (s)
+	 */
+	public void setTiming(float stepSize, float realizationTime, float transientTime) {
+		myStepSize = stepSize;
+		myRealizationTime = realizationTime;
+		myTransientTime = transientTime;
+	}
+
+	/**
+	 * @param precision Target half-width of confidence interval of output variance, as a fraction of the variance
+	 * @param z Half-width of confidence interval in standard errors (e.g. 1.96 for 95%)
+	 * @param minRealizations Minimum number of realizations
+	 * @param maxRealizations Maximum number of realizations (reached if the target precision isn't)
+	 */
+	public void setPrecision(float precision, float z, int minRealizations, int maxRealizations) {
+		myPrecision = precision;
+		myZ = z;
+		myMinRealizations = minRealizations;
+		myMaxRealizations = maxRealizations;
+	}
+
+	/**
+	 * @param seed Seed of first realization (realization k uses seed + k)
+	 */
+	public void setSeed(long seed) {
+		mySeed = seed;
+	}
+
+	/**
+	 * @param networks Networks to study
+	 * @param nInput Nominal numbers of input neurons
+	 * @param nDiff Nominal number of neurons in differentiating populations
+	 * @return Results for each network (first index) and number of input neurons (second index)
+	 * @throws SimulationException
+	 */
+	public Result[][] run(DifferentiatorNetwork[] networks, int[] nInput, int nDiff) throws SimulationException {
+		Result[][] result = new Result[networks.length][];
+		for (int i = 0; i < networks.length; i++) {
+			result[i] = new Result[nInput.length];
+			for (int j = 0; j < nInput.length; j++) {
+				result[i][j] = run(networks[i], nInput[j], nDiff);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * @param network Network to study (it isn't changed)
+	 * @param nInput Nominal number of input neurons
+	 * @param nDiff Nominal number of neurons in differentiating populations
+	 * @return Estimated input-ensemble and output variance
+	 * @throws SimulationException
+	 */
+	public Result run(DifferentiatorNetwork network, final int nInput, final int nDiff) throws SimulationException {
+		final byte[] template;
+		try {
+			DifferentiatorNetwork copy = Util.copy(network);
+			copy.setInputFunction(new ConstantFunction(1, 0));
+			copy.setMode(SimulationMode.DIRECT);
+			copy.setStepSize(myStepSize);
+			copy.setStreamingAnalysis(1, myTransientTime);
+			template = Util.serialize(copy);
+		} catch (StructuralException e) {
+			throw new SimulationException(e);
+		}
+
+		Result result = new Result(network.getName(), nInput, nDiff);
+		ExecutorService executor = Executors.newFixedThreadPool(myNThreads);
+		try {
+			int k = 0;
+			while (k < myMaxRealizations && (k < myMinRealizations || !result.isPrecise(myPrecision, myZ))) {
+				int batch = Math.min(Math.max(myNThreads, myMinRealizations - k), myMaxRealizations - k);
+				List<Future<StreamingProbe[]>> futures = new ArrayList<Future<StreamingProbe[]>>(batch);
+				for (int i = 0; i < batch; i++) {
+					final long seed = mySeed + k + i;
+					futures.add(executor.submit(new Callable<StreamingProbe[]>() {
+						public StreamingProbe[] call() throws Exception {
+							return simulate((DifferentiatorNetwork) Util.deserialize(template), nInput, nDiff, seed);
+						}
+					}));
+				}
+				for (Future<StreamingProbe[]> future : futures) {
+					StreamingProbe[] analyses = future.get();
+					result.add(analyses[0], analyses[1]);
+				}
+				k += batch;
+			}
+			return result;
+		} catch (InterruptedException e) {
+			throw new SimulationException(e);
+		} catch (ExecutionException e) {
+			throw new SimulationException(e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	//returns [input ensemble, output] summaries of one realization
+	private StreamingProbe[] simulate(DifferentiatorNetwork network, int nInput, int nDiff, long seed) throws SimulationException {
+		synchronized (ourSeedLock) {
+			PDFTools.setSeed(seed);
+			network.setNoise(nInput, nDiff);
+		}
+		network.reset(false);
+		network.run(0, myRealizationTime);
+		return new StreamingProbe[]{network.getInputEnsembleAnalysis(), network.getOutputAnalysis()};
+	}
+
+	/**
+	 * Variance estimates for one network and number of input neurons.
+	 */
+	public static class Result {
+
+		private String myName;
+		private int myNInput;
+		private int myNDiff;
+		private List<double[]> myRealizations = new ArrayList<double[]>(); //[count, mean, variance] of input ensemble, then of output
+
+		/**
+		 * @param name Name of network
+		 * @param nInput Nominal number of input neurons
+		 * @param nDiff Nominal number of neurons in differentiating populations
+		 */
+		public Result(String name, int nInput, int nDiff) {
+			myName = name;
+			myNInput = nInput;
+			myNDiff = nDiff;
+		}
+
+		/**
+		 * @param input Input-ensemble summary of a realization
+		 * @param output Output summary of a realization
+		 */
+		public void add(StreamingProbe input, StreamingProbe output) {
+			myRealizations.add(new double[]{input.getCount(), input.getMean(), input.getVariance(),
+				output.getCount(), output.getMean(), output.getVariance()});
+		}
+
+		/**
+		 * @return Name of network
+		 */
+		public String getName() {
+			return myName;
+		}
+
+		/**
+		 * @return Nominal number of input neurons
+		 */
+		public int getNInput() {
+			return myNInput;
+		}
+
+		/**
+		 * @return Nominal number of neurons in differentiating populations
+		 */
+		public int getNDiff() {
+			return myNDiff;
+		}
+
+		/**
+		 * @return Number of realizations
+		 */
+		public int getRealizations() {
+			return myRealizations.size();
+		}
+
+		/**
+		 * @return Input-ensemble variance about the grand mean, pooled over realizations
+		 */
+		public float getInputVariance() {
+			return (float) getVariance(0);
+		}
+
+		/**
+		 * @return Output variance about the grand mean, pooled over realizations
+		 */
+		public float getOutputVariance() {
+			return (float) getVariance(1);
+		}
+
+		/**
+		 * @return Standard error of input-ensemble variance
+		 */
+		public float getInputError() {
+			return getError(0);
+		}
+
+		/**
+		 * @return Standard error of output variance
+		 */
+		public float getOutputError() {
+			return getError(1);
+		}
+
+		/**
+		 * @param z Half-width of confidence interval in standard errors (e.g. 1.96 for 95%)
+		 * @return [lower, upper] bounds of confidence interval of output variance
+		 */
+		public float[] getOutputInterval(float z) {
+			return new float[]{getOutputVariance() - z*getOutputError(), getOutputVariance() + z*getOutputError()};
+		}
+
+		/**
+		 * @param z Half-width of confidence interval in standard errors (e.g. 1.96 for 95%)
+		 * @return [lower, upper] bounds of confidence interval of input-ensemble variance
+		 */
+		public float[] getInputInterval(float z) {
+			return new float[]{getInputVariance() - z*getInputError(), getInputVariance() + z*getInputError()};
+		}
+
+		/**
+		 * @param precision Target half-width of confidence interval, as a fraction of the output variance
+		 * @param z Half-width of confidence interval in standard errors
+		 * @return True if the output variance is known to the given precision
+		 */
+		public boolean isPrecise(float precision, float z) {
+			return myRealizations.size() > 1 && z * getOutputError() <= precision * Math.abs(getOutputVariance());
+		}
+
+		//mean of all samples of all realizations of quantity i (0 for input ensemble, 1 for output)
+		private double getGrandMean(int i) {
+			double sum = 0;
+			double count = 0;
+			for (double[] r : myRealizations) {
+				sum += r[3*i] * r[3*i+1];
+				count += r[3*i];
+			}
+			return count > 0 ? sum / count : 0;
+		}
+
+		//each realization's mean squared deviation from the grand mean: its variance plus its squared offset
+		private double getContribution(double[] r, int i, double grandMean) {
+			double offset = r[3*i+1] - grandMean;
+			return r[3*i+2] + offset * offset;
+		}
+
+		private double getVariance(int i) {
+			double grandMean = getGrandMean(i);
+			double sum = 0;
+			double count = 0;
+			for (double[] r : myRealizations) {
+				sum += r[3*i] * getContribution(r, i, grandMean);
+				count += r[3*i];
+			}
+			return count > 0 ? sum / count : 0;
+		}
+
+		//standard error of the pooled variance, from the spread of the realizations' contributions
+		private float getError(int i) {
+			int n = myRealizations.size();
+			if (n < 2) return Float.POSITIVE_INFINITY;
+
+			double grandMean = getGrandMean(i);
+			double variance = getVariance(i);
+			double sumSquares = 0;
+			for (double[] r : myRealizations) {
+				double delta = getContribution(r, i, grandMean) - variance;
+				sumSquares += delta * delta;
+			}
+			return (float) Math.sqrt(sumSquares / (n - 1) / n);
+		}
+
+		@Override
+		public String toString() {
+			return myName + " (nInput=" + myNInput + ", nDiff=" + myNDiff + ", " + getRealizations() + " realizations): input variance "
+				+ getInputVariance() + " +/- " + getInputError() + ", output variance " + getOutputVariance() + " +/- " + getOutputError();
+		}
+	}
+
+}
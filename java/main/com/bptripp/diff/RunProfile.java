@@ -0,0 +1,410 @@
+/*
+ * Created on 17-Oct-26
+ */
+package com.bptripp.diff;
+
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import ca.nengo.model.Node;
+import ca.nengo.model.SimulationException;
+import ca.nengo.model.impl.PassthroughNode;
+
+/**
+ * Wall time, call counts, and allocated bytes of each component of a DifferentiatorNetwork's runs (see
+ * DifferentiatorNetwork.setProfiling(...)). Components are the network's nodes, the noise processes of its
+ * decoded origins, and the simulator's own work. Noise is generated while origins' nodes run, so noise
+ * times are also included in the times of the nodes that own them. The simulator transfers projection
+ * values and collects probes between the node phases of consecutive steps, so this work is timed together,
+ * as the time from the end of the last node in one step to the start of the first node in the next (plus
+ * the time before the first step and after the last one). Allocation isn't measured for it.
+ *
+ * Allocated bytes are measured with com.sun.management.ThreadMXBean where it is available (they are -1
+ * otherwise). The profile is also a standard MBean (see RunProfileMBean), so it can be watched with
+ * JConsole or similar tools while simulations run.
+ */
+public class RunProfile implements RunProfileMBean {
+
+	/**
+	 * Kinds of component
+	 */
+	public static final String NODE = "node";
+	public static final String NOISE = "noise";
+	public static final String SIMULATOR = "simulator";
+
+	/**
+	 * Name of the SIMULATOR entry that times projections and probes
+	 */
+	public static final String PROJECTIONS_AND_PROBES = "projections and probes";
+
+	private static final ThreadMXBean ourThreads = ManagementFactory.getThreadMXBean();
+	private static final boolean ourCanMeasureAllocation = canMeasureAllocation();
+
+	private String myName;
+	private Map<String, Entry> myEntries;
+	private long myRuns;
+	private long mySteps;
+	private long myNanos;
+
+	private long myRunStart; //state of the current run
+	private long myRunSteps;
+	private float myStepStart;
+	private long myLastNodeEnd;
+
+	/**
+	 * @param name Name of the profiled network
+	 */
+	public RunProfile(String name) {
+		myName = name;
+		myEntries = new LinkedHashMap<String, Entry>();
+	}
+
+	/**
+	 * @return Name of the profiled network
+	 */
+	public String getName() {
+		return myName;
+	}
+
+	/**
+	 * @param kind Kind of component (e.g. NODE)
+	 * @param name Name of component
+	 * @return Accumulator for the component (created if necessary)
+	 */
+	public synchronized Entry getEntry(String kind, String name) {
+		String key = kind + ":" + name;
+		Entry result = myEntries.get(key);
+		if (result == null) {
+			result = new Entry(kind, name);
+			myEntries.put(key, result);
+		}
+		return result;
+	}
+
+	/**
+	 * @return Accumulators for all components, in the order in which they were first profiled
+	 */
+	public synchronized List<Entry> getEntries() {
+		return new ArrayList<Entry>(myEntries.values());
+	}
+
+	/**
+	 * @param steps Number of steps in a completed run
+	 * @param nanos Wall time of the run (ns)
+	 */
+	public synchronized void addRun(long steps, long nanos) {
+		myRuns++;
+		mySteps += steps;
+		myNanos += nanos;
+	}
+
+	/**
+	 * Starts timing a run.
+	 *
+	 * @param now System.nanoTime() at the start of the run
+	 */
+	public synchronized void startRun(long now) {
+		myRunStart = now;
+		myRunSteps = 0;
+		myStepStart = Float.NaN;
+		myLastNodeEnd = now;
+	}
+
+	/**
+	 * Called as each node starts to run. The first node of each step closes the preceding interval of
+	 * simulator work. Nodes of a step all run after the previous step's nodes have finished (whether or not
+	 * they run on separate threads), so this interval doesn't overlap any node.
+	 *
+	 * @param stepStart Simulation time at the start of the node's step
+	 * @param now System.nanoTime() at which the node starts
+	 */
+	public synchronized void startNode(float stepStart, long now) {
+		if (stepStart != myStepStart) { //NaN before the first step
+			myStepStart = stepStart;
+			myRunSteps++;
+			getEntry(SIMULATOR, PROJECTIONS_AND_PROBES).add(now - myLastNodeEnd, -1);
+		}
+	}
+
+	/**
+	 * @param now System.nanoTime() at which a node finished running
+	 */
+	public synchronized void endNode(long now) {
+		if (now > myLastNodeEnd) myLastNodeEnd = now;
+	}
+
+	/**
+	 * Finishes timing a run, and adds it to the totals.
+	 *
+	 * @param now System.nanoTime() at the end of the run
+	 */
+	public synchronized void endRun(long now) {
+		getEntry(SIMULATOR, PROJECTIONS_AND_PROBES).add(now - myLastNodeEnd, -1);
+		addRun(myRunSteps, now - myRunStart);
+	}
+
+	/**
+	 * @see com.bptripp.diff.RunProfileMBean#getRuns()
+	 */
+	public synchronized long getRuns() {
+		return myRuns;
+	}
+
+	/**
+	 * @see com.bptripp.diff.RunProfileMBean#getSteps()
+	 */
+	public synchronized long getSteps() {
+		return mySteps;
+	}
+
+	/**
+	 * @see com.bptripp.diff.RunProfileMBean#getWallTime()
+	 */
+	public synchronized long getWallTime() {
+		return myNanos;
+	}
+
+	/**
+	 * @see com.bptripp.diff.RunProfileMBean#getComponents()
+	 */
+	public synchronized String[] getComponents() {
+		return myEntries.keySet().toArray(new String[myEntries.size()]);
+	}
+
+	/**
+	 * @see com.bptripp.diff.RunProfileMBean#getCalls()
+	 */
+	public synchronized long[] getCalls() {
+		long[] result = new long[myEntries.size()];
+		int i = 0;
+		for (Entry entry : myEntries.values()) {
+			result[i++] = entry.getCalls();
+		}
+		return result;
+	}
+
+	/**
+	 * @see com.bptripp.diff.RunProfileMBean#getWallTimes()
+	 */
+	public synchronized long[] getWallTimes() {
+		long[] result = new long[myEntries.size()];
+		int i = 0;
+		for (Entry entry : myEntries.values()) {
+			result[i++] = entry.getNanos();
+		}
+		return result;
+	}
+
+	/**
+	 * @see com.bptripp.diff.RunProfileMBean#getAllocatedBytes()
+	 */
+	public synchronized long[] getAllocatedBytes() {
+		long[] result = new long[myEntries.size()];
+		int i = 0;
+		for (Entry entry : myEntries.values()) {
+			result[i++] = entry.getBytes();
+		}
+		return result;
+	}
+
+	/**
+	 * @see com.bptripp.diff.RunProfileMBean#reset()
+	 */
+	public synchronized void reset() {
+		myEntries.clear();
+		myRuns = 0;
+		mySteps = 0;
+		myNanos = 0;
+	}
+
+	/**
+	 * @see com.bptripp.diff.RunProfileMBean#getReport()
+	 */
+	public synchronized String getReport() {
+		StringBuffer buffer = new StringBuffer();
+		buffer.append(String.format(Locale.US, "%s: %d runs, %d steps, %.1f ms%n", myName, myRuns, mySteps, myNanos / 1e6));
+		buffer.append(String.format(Locale.US, "%-10s %-40s %12s %12s %8s %14s%n", "kind", "name", "calls", "ms", "%", "bytes"));
+		for (Entry entry : myEntries.values()) {
+			buffer.append(String.format(Locale.US, "%-10s %-40s %12d %12.2f %8.2f %14d%n", entry.getKind(), entry.getName(),
+				entry.getCalls(), entry.getNanos() / 1e6, myNanos > 0 ? 100.0 * entry.getNanos() / myNanos : 0, entry.getBytes()));
+		}
+		return buffer.toString();
+	}
+
+	@Override
+	public String toString() {
+		return getReport();
+	}
+
+	/**
+	 * @return Bytes allocated so far by the current thread (-1 if this can't be measured)
+	 */
+	public static long getThreadAllocatedBytes() {
+		return ourCanMeasureAllocation
+			? ((com.sun.management.ThreadMXBean) ourThreads).getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+	}
+
+	private static boolean canMeasureAllocation() {
+		try {
+			return ourThreads instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) ourThreads).isThreadAllocatedMemorySupported()
+				&& ((com.sun.management.ThreadMXBean) ourThreads).isThreadAllocatedMemoryEnabled();
+		} catch (LinkageError e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Accumulated measurements of one component.
+	 */
+	public static class Entry {
+
+		private String myKind;
+		private String myName;
+		private long myCalls;
+		private long myNanos;
+		private long myBytes;
+
+		/**
+		 * @param kind Kind of component
+		 * @param name Name of component
+		 */
+		public Entry(String kind, String name) {
+			myKind = kind;
+			myName = name;
+			myBytes = ourCanMeasureAllocation && !SIMULATOR.equals(kind) ? 0 : -1;
+		}
+
+		/**
+		 * @param nanos Wall time of a call (ns)
+		 * @param bytes Bytes allocated during the call (ignored if negative)
+		 */
+		public synchronized void add(long nanos, long bytes) {
+			myCalls++;
+			myNanos += nanos;
+			if (bytes >= 0 && myBytes >= 0) myBytes += bytes;
+		}
+
+		/**
+		 * @return Kind of component
+		 */
+		public String getKind() {
+			return myKind;
+		}
+
+		/**
+		 * @return Name of component
+		 */
+		public String getName() {
+			return myName;
+		}
+
+		/**
+		 * @return Number of calls
+		 */
+		public synchronized long getCalls() {
+			return myCalls;
+		}
+
+		/**
+		 * @return Total wall time (ns)
+		 */
+		public synchronized long getNanos() {
+			return myNanos;
+		}
+
+		/**
+		 * @return Total bytes allocated (-1 if this can't be measured)
+		 */
+		public synchronized long getBytes() {
+			return myBytes;
+		}
+	}
+
+	/**
+	 * A serializable reference to the profile (if any) of a network's current runs, which noise processes
+	 * share (see FilteredNoise.setProfile(...)). The profile itself isn't serialized, so copies of a network
+	 * aren't profiled until profiling is enabled on them.
+	 */
+	public static class Link implements Serializable {
+
+		private static final long serialVersionUID = 1L;
+
+		private transient volatile RunProfile myProfile;
+
+		/**
+		 * @return Profile of current runs (null if runs aren't profiled)
+		 */
+		public RunProfile getProfile() {
+			return myProfile;
+		}
+
+		/**
+		 * @param profile Profile of subsequent runs (null if runs aren't profiled)
+		 */
+		public void setProfile(RunProfile profile) {
+			myProfile = profile;
+		}
+	}
+
+	/**
+	 * Stands in for a node in the simulator during a profiled run, and times the node's run(...) calls. Wrappers
+	 * exist only for the duration of a run, and aren't serialized.
+	 */
+	public static class ProfiledNode extends PassthroughNode {
+
+		private static final long serialVersionUID = 1L;
+
+		private transient Node myNode;
+		private transient RunProfile myProfile;
+		private transient Entry myEntry;
+
+		/**
+		 * @param node Node to time
+		 * @param profile Profile of the run
+		 */
+		public ProfiledNode(Node node, RunProfile profile) {
+			super(node.getName(), 1);
+			myNode = node;
+			myProfile = profile;
+			myEntry = profile.getEntry(NODE, node.getName());
+		}
+
+		/**
+		 * @return The wrapped node
+		 */
+		public Node getNode() {
+			return myNode;
+		}
+
+		/**
+		 * @see ca.nengo.model.impl.PassthroughNode#run(float, float)
+		 */
+		@Override
+		public void run(float startTime, float endTime) throws SimulationException {
+			long bytes = getThreadAllocatedBytes();
+			long start = System.nanoTime();
+			myProfile.startNode(startTime, start);
+			myNode.run(startTime, endTime);
+			long end = System.nanoTime();
+			myEntry.add(end - start, bytes < 0 ? -1 : getThreadAllocatedBytes() - bytes);
+			myProfile.endNode(end);
+		}
+
+		/**
+		 * @see ca.nengo.model.impl.PassthroughNode#reset(boolean)
+		 */
+		@Override
+		public void reset(boolean randomize) {
+			super.reset(randomize);
+			myNode.reset(randomize);
+		}
+	}
+
+}
@@ -0,0 +1,57 @@
+/*
+ * Created on 17-Oct-26
+ */
+package com.bptripp.diff;
+
+/**
+ * Management interface of a RunProfile. Component arrays are parallel: element i of getCalls(),
+ * getWallTimes(), and getAllocatedBytes() refers to component i of getComponents().
+ */
+public interface RunProfileMBean {
+
+	/**
+	 * @return Number of profiled runs
+	 */
+	public long getRuns();
+
+	/**
+	 * @return Number of profiled steps
+	 */
+	public long getSteps();
+
+	/**
+	 * @return Total wall time of profiled runs (ns)
+	 */
+	public long getWallTime();
+
+	/**
+	 * @return Names of profiled components, as kind:name
+	 */
+	public String[] getComponents();
+
+	/**
+	 * @return Number of calls to each component
+	 */
+	public long[] getCalls();
+
+	/**
+	 * @return Wall time of each component (ns)
+	 */
+	public long[] getWallTimes();
+
+	/**
+	 * @return Bytes allocated by each component (-1 if this can't be measured)
+	 */
+	public long[] getAllocatedBytes();
+
+	/**
+	 * @return A table of all measurements
+	 */
+	public String getReport();
+
+	/**
+	 * Clears all measurements.
+	 */
+	public void reset();
+
+}
@@ -0,0 +1,154 @@
+/*
+ * Created on 17-Oct-26
+ */
+package com.bptripp.diff;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import ca.nengo.math.Function;
+import ca.nengo.model.Node;
+import ca.nengo.model.SimulationException;
+import ca.nengo.model.StructuralException;
+import ca.nengo.model.Units;
+import ca.nengo.model.impl.FunctionInput;
+import ca.nengo.model.impl.NetworkImpl;
+import ca.nengo.model.nef.NEFEnsemble;
+import ca.nengo.model.nef.impl.NEFEnsembleFactoryImpl;
+import ca.nengo.util.MU;
+import ca.nengo.util.Probe;
+import ca.nengo.util.TimeSeries;
+
+/**
+ * Runs several DifferentiatorNetworks side by side with a single input ensemble, rather than one input
+ * ensemble per network. Every network's input ensemble is made from the same stored ensemble (see
+ * DifferentiatorNetwork), so sharing one copy gives each network the same input activity that it would
+ * have had on its own, at the cost of simulating the input neurons once.
+ *
+ * The networks become nodes of this network. Each is detached from its own input ensemble (see
+ * DifferentiatorNetwork.detachInputEnsemble(...)), and the terminations that its input ensemble fed are
+ * fed from the shared ensemble instead. Networks whose input ensembles differ from the others (e.g.
+ * DepressionNetwork) can't be added, and neither can networks with Parisien conversion enabled on
+ * projections from their input ensembles. The shared ensemble's decoded output is recorded here (see
+ * getInputEnsembleData()) rather than by the networks. Input-ensemble noise set through any of the networks is set on the
+ * shared ensemble, so the networks also share one noise realization. Networks with duplicate names are
+ * renamed with a numeric suffix.
+ */
+public class SharedInputNetwork extends NetworkImpl {
+
+	private static final long serialVersionUID = 1L;
+
+	private FunctionInput myInput;
+	private NEFEnsemble myInputEnsemble;
+	private DifferentiatorNetwork[] myNetworks;
+
+	/**
+	 * @param networks Networks to run with a shared input ensemble (their input ensembles must be the same size)
+	 * @throws StructuralException
+	 */
+	public SharedInputNetwork(DifferentiatorNetwork[] networks) throws StructuralException {
+		setName("shared input");
+		myNetworks = networks;
+		setStepSize(networks[0].getStepSize());
+
+		int n = networks[0].getInputEnsemble().getNodes().length;
+		for (DifferentiatorNetwork network : networks) {
+			if (network.getInputEnsemble().getNodes().length != n) {
+				throw new StructuralException("Input ensemble of " + network.getName() + " isn't the same size as the others");
+			}
+		}
+
+		myInput = new FunctionInput("external", networks[0].getInput().getFunctions(), Units.UNK);
+		addNode(myInput);
+
+		NEFEnsembleFactoryImpl ef = new NEFEnsembleFactoryImpl();
+		ef.setApproximatorFactory(new CachingApproximatorFactory());
+		myInputEnsemble = ef.make("input", n, 1, "diff_input_"+n, false);
+		myInputEnsemble.addDecodedTermination("input", MU.I(1), DifferentiatorNetwork.TAU_IO, false);
+		addNode(myInputEnsemble);
+		addProjection(myInput.getOrigin(FunctionInput.ORIGIN_NAME), myInputEnsemble.getTermination("input"));
+
+		Set<String> names = new HashSet<String>();
+		names.add(myInput.getName());
+		names.add(myInputEnsemble.getName());
+		for (int i = 0; i < networks.length; i++) {
+			DifferentiatorNetwork network = networks[i];
+			if (names.contains(network.getName())) {
+				network.setName(network.getName() + " " + (i+1));
+			}
+			names.add(network.getName());
+
+			network.setInputFunction(myInput.getFunctions()[0]);
+			List<String[]> exposed = network.detachInputEnsemble(myInputEnsemble);
+			addNode(network);
+			for (String[] termination : exposed) {
+				addProjection(myInputEnsemble.getOrigin(termination[0]), network.getTermination(termination[1]));
+			}
+		}
+
+		try {
+			getSimulator().addProbe(myInput.getName(), FunctionInput.STATE_NAME, true);
+			getSimulator().addProbe(myInputEnsemble.getName(), NEFEnsemble.X, true);
+		} catch (SimulationException e) {
+			throw new StructuralException(e);
+		}
+	}
+
+	/**
+	 * @return Networks that share the input ensemble
+	 */
+	public DifferentiatorNetwork[] getNetworks() {
+		return myNetworks;
+	}
+
+	/**
+	 * @return The shared input ensemble
+	 */
+	public NEFEnsemble getInputEnsemble() {
+		return myInputEnsemble;
+	}
+
+	/**
+	 * @param input The function to use as input to all the networks
+	 * @throws StructuralException
+	 */
+	public void setInputFunction(Function input) throws StructuralException {
+		myInput.setFunctions(new Function[]{input});
+		for (DifferentiatorNetwork network : myNetworks) {
+			network.setInputFunction(input); //some networks have other input pathways (e.g. uncorrelated DualTCNetwork)
+		}
+	}
+
+	/**
+	 * @return Abstract input value from last run
+	 */
+	public TimeSeries getInputData() {
+		return getProbe(myInput.getName(), FunctionInput.STATE_NAME).getData();
+	}
+
+	/**
+	 * @return Decoded input representation (shared by all the networks) from last run
+	 */
+	public TimeSeries getInputEnsembleData() {
+		return getProbe(myInputEnsemble.getName(), NEFEnsemble.X).getData();
+	}
+
+	private Probe getProbe(String nodeName, String state) {
+		for (Probe p : getSimulator().getProbes()) {
+			if (((Node) p.getTarget()).getName().equals(nodeName) && p.getStateName().equals(state)) {
+				return p;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public void reset(boolean randomize) {
+		super.reset(randomize);
+		for (Probe p : getSimulator().getProbes()) {
+			p.reset();
+		}
+	}
+
+}
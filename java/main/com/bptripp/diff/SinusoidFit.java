@@ -0,0 +1,167 @@
+/*
+ * Created on 17-Oct-26
+ */
+package com.bptripp.diff;
+
+import java.io.Serializable;
+
+import ca.nengo.util.TimeSeries;
+
+/**
+ * Least-squares fit of a sinusoid of known frequency (plus a constant offset) to a signal. Samples
+ * are accumulated one at a time into running sums, so the signal itself doesn't have to be kept.
+ * The fitted signal is A cos(wt + phase) + offset.
+ */
+public class SinusoidFit implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private float myAngularFrequency;
+	private float myStartTime;
+
+	//running sums of products of cos(wt), sin(wt), 1, and the signal
+	private double myN;
+	private double myC;
+	private double myS;
+	private double myCC;
+	private double mySS;
+	private double myCS;
+	private double myX;
+	private double myXC;
+	private double myXS;
+
+	private boolean mySolved;
+	private double myCosCoefficient;
+	private double mySinCoefficient;
+	private double myOffset;
+
+	/**
+	 * @param angularFrequency Angular frequency of the sinusoid (rad/s)
+	 * @param startTime Samples before this time are ignored (e.g. to skip an initial transient)
+	 */
+	public SinusoidFit(float angularFrequency, float startTime) {
+		myAngularFrequency = angularFrequency;
+		myStartTime = startTime;
+	}
+
+	/**
+	 * @param time Time of sample
+	 * @param value Value of signal at given time
+	 */
+	public void add(float time, float value) {
+		if (time < myStartTime) return;
+
+		double c = Math.cos(myAngularFrequency * (double) time);
+		double s = Math.sin(myAngularFrequency * (double) time);
+		myN++;
+		myC += c;
+		myS += s;
+		myCC += c*c;
+		mySS += s*s;
+		myCS += c*s;
+		myX += value;
+		myXC += value*c;
+		myXS += value*s;
+		mySolved = false;
+	}
+
+	/**
+	 * @param data A time series (only the first dimension is used)
+	 */
+	public void add(TimeSeries data) {
+		float[] times = data.getTimes();
+		float[][] values = data.getValues();
+		for (int i = 0; i < times.length; i++) {
+			add(times[i], values[i][0]);
+		}
+	}
+
+	/**
+	 * Clears accumulated samples.
+	 */
+	public void reset() {
+		myN = 0; myC = 0; myS = 0; myCC = 0; mySS = 0; myCS = 0; myX = 0; myXC = 0; myXS = 0;
+		mySolved = false;
+	}
+
+	/**
+	 * @return Number of samples included in the fit
+	 */
+	public int getCount() {
+		return (int) myN;
+	}
+
+	/**
+	 * @return Amplitude of fitted sinusoid
+	 */
+	public float getAmplitude() {
+		solve();
+		return (float) Math.sqrt(myCosCoefficient*myCosCoefficient + mySinCoefficient*mySinCoefficient);
+	}
+
+	/**
+	 * @return Phase of fitted sinusoid (radians, relative to cosine)
+	 */
+	public float getPhase() {
+		solve();
+		return (float) Math.atan2(-mySinCoefficient, myCosCoefficient);
+	}
+
+	/**
+	 * @return Fitted constant offset
+	 */
+	public float getOffset() {
+		solve();
+		return (float) myOffset;
+	}
+
+	/**
+	 * @param phase A phase difference (radians)
+	 * @return Equivalent phase in the range (-pi, pi]
+	 */
+	public static float wrap(float phase) {
+		double result = phase % (2*Math.PI);
+		if (result > Math.PI) result -= 2*Math.PI;
+		if (result <= -Math.PI) result += 2*Math.PI;
+		return (float) result;
+	}
+
+	//solves the 3x3 normal equations for [cos, sin, offset] coefficients by Cramer's rule
+	private void solve() {
+		if (mySolved) return;
+
+		double[][] m = new double[][]{
+				new double[]{myCC, myCS, myC},
+				new double[]{myCS, mySS, myS},
+				new double[]{myC, myS, myN}};
+		double[] b = new double[]{myXC, myXS, myX};
+
+		double det = det(m);
+		if (det == 0) {
+			myCosCoefficient = 0;
+			mySinCoefficient = 0;
+			myOffset = myN > 0 ? myX / myN : 0;
+		} else {
+			myCosCoefficient = det(replaceColumn(m, 0, b)) / det;
+			mySinCoefficient = det(replaceColumn(m, 1, b)) / det;
+			myOffset = det(replaceColumn(m, 2, b)) / det;
+		}
+		mySolved = true;
+	}
+
+	private static double det(double[][] m) {
+		return m[0][0] * (m[1][1]*m[2][2] - m[1][2]*m[2][1])
+			- m[0][1] * (m[1][0]*m[2][2] - m[1][2]*m[2][0])
+			+ m[0][2] * (m[1][0]*m[2][1] - m[1][1]*m[2][0]);
+	}
+
+	private static double[][] replaceColumn(double[][] m, int column, double[] values) {
+		double[][] result = new double[m.length][];
+		for (int i = 0; i < m.length; i++) {
+			result[i] = m[i].clone();
+			result[i][column] = values[i];
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,254 @@
+/*
+ * Created on 17-Oct-26
+ */
+package com.bptripp.diff;
+
+import java.io.IOException;
+
+import ca.nengo.model.InstantaneousOutput;
+import ca.nengo.model.SimulationException;
+import ca.nengo.model.SpikeOutput;
+import ca.nengo.model.StructuralException;
+import ca.nengo.model.impl.PassthroughNode;
+import ca.nengo.util.SpikePattern;
+import ca.nengo.util.impl.SpikePatternImpl;
+
+/**
+ * Records the spikes of an ensemble (or of a subset of its neurons) compactly, as an alternative to
+ * Ensemble.collectSpikes(true), which keeps a list of float spike times per neuron. The recorder
+ * receives an ensemble's AXON output through a projection, like a StreamingProbe.
+ *
+ * Spikes are stored as a stream of variable-length integers in a byte buffer. For each step in which
+ * any recorded neuron spiked, the stream holds the number of steps since the previous such step, the
+ * number of spikes, and the index of each spiking neuron as a difference from the previous one.
+ * Most spikes therefore take one byte. Spike times are decoded only when they are requested.
+ *
+ * Spikes arrive one step after they occur, so each spike is attributed to the start time of the step
+ * in which it arrives (i.e. the end of the step in which the neuron spiked).
+ */
+public class SpikeRecorder extends PassthroughNode {
+
+	private static final long serialVersionUID = 1L;
+
+	private int[] myNeurons; //ensemble indices of recorded neurons
+	private int[] mySlots; //recorded slot of each ensemble neuron (-1 if not recorded)
+
+	private byte[] myBuffer;
+	private int myLength;
+	private long mySpikeCount;
+
+	private boolean myStarted;
+	private float myStartTime;
+	private float myStepSize;
+	private int myBaseStep; //step preceding the first one in the buffer
+	private int myLastStep;
+
+	/**
+	 * @param name Name of the node
+	 * @param nNeurons Number of neurons in the ensemble
+	 * @param neurons Indices of neurons to record (null to record all)
+	 */
+	public SpikeRecorder(String name, int nNeurons, int[] neurons) {
+		super(name, nNeurons);
+
+		if (neurons == null) {
+			neurons = new int[nNeurons];
+			for (int i = 0; i < nNeurons; i++) {
+				neurons[i] = i;
+			}
+		}
+
+		myNeurons = neurons.clone();
+		mySlots = new int[nNeurons];
+		for (int i = 0; i < nNeurons; i++) {
+			mySlots[i] = -1;
+		}
+		for (int i = 0; i < myNeurons.length; i++) {
+			if (myNeurons[i] < 0 || myNeurons[i] >= nNeurons) {
+				throw new IllegalArgumentException("Neuron index " + myNeurons[i] + " out of range");
+			}
+			mySlots[myNeurons[i]] = i;
+		}
+
+		myBuffer = new byte[1024];
+	}
+
+	/**
+	 * @see ca.nengo.model.impl.PassthroughNode#run(float, float)
+	 */
+	@Override
+	public void run(float startTime, float endTime) throws SimulationException {
+		super.run(startTime, endTime);
+
+		InstantaneousOutput values;
+		try {
+			values = getOrigin(ORIGIN).getValues();
+		} catch (StructuralException e) {
+			throw new SimulationException(e);
+		}
+
+		if (!myStarted) {
+			myStarted = true;
+			myStartTime = startTime;
+			myStepSize = endTime - startTime;
+			myBaseStep = -1;
+			myLastStep = -1;
+		}
+
+		if (!(values instanceof SpikeOutput)) return; //e.g. in DIRECT mode
+
+		boolean[] spikes = ((SpikeOutput) values).getValues();
+		int count = 0;
+		for (int i = 0; i < spikes.length; i++) {
+			if (spikes[i] && mySlots[i] >= 0) count++;
+		}
+		if (count == 0) return;
+
+		int step = Math.round((startTime - myStartTime) / myStepSize);
+		writeInt(step - myLastStep);
+		writeInt(count);
+		int previous = 0;
+		for (int i = 0; i < spikes.length; i++) {
+			if (spikes[i] && mySlots[i] >= 0) {
+				writeInt(mySlots[i] - previous);
+				previous = mySlots[i];
+			}
+		}
+		myLastStep = step;
+		mySpikeCount += count;
+	}
+
+	/**
+	 * @see ca.nengo.model.impl.PassthroughNode#reset(boolean)
+	 */
+	@Override
+	public void reset(boolean randomize) {
+		super.reset(randomize);
+		myLength = 0;
+		mySpikeCount = 0;
+		myStarted = false;
+	}
+
+	/**
+	 * @return Ensemble indices of recorded neurons
+	 */
+	public int[] getNeurons() {
+		return myNeurons.clone();
+	}
+
+	/**
+	 * @return Number of spikes held
+	 */
+	public long getSpikeCount() {
+		return mySpikeCount;
+	}
+
+	/**
+	 * @return Number of bytes used to hold spikes
+	 */
+	public int getEncodedSize() {
+		return myLength;
+	}
+
+	/**
+	 * @return Recorded spikes, with neurons in the order of getNeurons()
+	 */
+	public SpikePattern getSpikePattern() {
+		SpikePatternImpl result = new SpikePatternImpl(myNeurons.length);
+		Decoder decoder = new Decoder();
+		while (decoder.next()) {
+			result.addSpike(decoder.mySlot, decoder.getTime());
+		}
+		return result;
+	}
+
+	/**
+	 * @param slot Index of neuron in getNeurons()
+	 * @return Spike times of the neuron
+	 */
+	public float[] getSpikeTimes(int slot) {
+		int n = 0;
+		Decoder decoder = new Decoder();
+		while (decoder.next()) {
+			if (decoder.mySlot == slot) n++;
+		}
+
+		float[] result = new float[n];
+		int i = 0;
+		decoder = new Decoder();
+		while (decoder.next()) {
+			if (decoder.mySlot == slot) result[i++] = decoder.getTime();
+		}
+		return result;
+	}
+
+	/**
+	 * Writes the spikes held to an exporter as [time, neuron] rows (with ensemble neuron indices), and
+	 * then discards them, so that memory use doesn't grow over long runs.
+	 *
+	 * @param exporter Exporter to write to
+	 * @param name Name of spike matrix
+	 * @throws IOException
+	 */
+	public void drain(StreamingMatExporter exporter, String name) throws IOException {
+		Decoder decoder = new Decoder();
+		while (decoder.next()) {
+			exporter.appendSpike(name, myNeurons[decoder.mySlot], decoder.getTime());
+		}
+		myLength = 0;
+		mySpikeCount = 0;
+		myBaseStep = myLastStep;
+	}
+
+	//variable-length unsigned encoding, 7 bits per byte
+	private void writeInt(int value) {
+		if (myLength + 5 > myBuffer.length) {
+			byte[] grown = new byte[myBuffer.length * 2];
+			System.arraycopy(myBuffer, 0, grown, 0, myLength);
+			myBuffer = grown;
+		}
+		while ((value & ~0x7f) != 0) {
+			myBuffer[myLength++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		myBuffer[myLength++] = (byte) value;
+	}
+
+	//walks through the spike stream one spike at a time
+	private class Decoder {
+
+		private int myPosition = 0;
+		private int myStep = myBaseStep;
+		private int myRemaining = 0;
+		private int mySlot = 0;
+
+		public boolean next() {
+			if (myRemaining == 0) {
+				if (myPosition >= myLength) return false;
+				myStep += readInt();
+				myRemaining = readInt();
+				mySlot = 0;
+			}
+			mySlot += readInt();
+			myRemaining--;
+			return true;
+		}
+
+		public float getTime() {
+			return myStartTime + myStep * myStepSize;
+		}
+
+		private int readInt() {
+			int result = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = myBuffer[myPosition++];
+				result |= (b & 0x7f) << shift;
+				shift += 7;
+			} while ((b & 0x80) != 0);
+			return result;
+		}
+	}
+
+}
@@ -0,0 +1,301 @@
+/*
+ * Created on 17-Oct-26
+ */
+package com.bptripp.diff;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import ca.nengo.util.SpikePattern;
+import ca.nengo.util.TimeSeries;
+
+/**
+ * Writes matrices to a MATLAB (level 5) .mat file a few rows at a time, so that simulation results
+ * can be exported as they are produced, with memory use that doesn't depend on run length. This is
+ * an alternative to MatlabExporter, which holds all the data in memory until it is written.
+ *
+ * Each matrix column is buffered in a small direct buffer and spilled through a FileChannel to its
+ * own temporary file. When the exporter is closed, the columns are transferred into the .mat file
+ * (which needs each matrix's size before its data). Matrices are stored in double precision.
+ *
+ * TimeSeries are stored as MatlabExporter stores them: name_time (a row of times) and name_data
+ * (one sample per row). Spikes are stored as a two-column matrix of [time, neuron index] rows, in
+ * the order they are added.
+ */
+public class StreamingMatExporter {
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private static final int miINT8 = 1;
+	private static final int miINT32 = 5;
+	private static final int miUINT32 = 6;
+	private static final int miDOUBLE = 9;
+	private static final int miMATRIX = 14;
+	private static final int mxDOUBLE_CLASS = 6;
+
+	private File myDestination;
+	private Map<String, Variable> myVariables;
+	private boolean myClosed;
+
+	/**
+	 * @param destination .mat file to write (written when close() is called)
+	 */
+	public StreamingMatExporter(File destination) {
+		myDestination = destination;
+		myVariables = new LinkedHashMap<String, Variable>();
+	}
+
+	/**
+	 * Appends a row to a matrix. The matrix is created with the width of the first row appended to it.
+	 *
+	 * @param name Name of matrix
+	 * @param row Values to append
+	 * @throws IOException
+	 */
+	public void append(String name, float[] row) throws IOException {
+		getVariable(name, row.length, false).append(row);
+	}
+
+	/**
+	 * Appends all samples of a TimeSeries to the matrices name_time (a row vector) and name_data.
+	 *
+	 * @param name Name of the series
+	 * @param data Samples to append
+	 * @throws IOException
+	 */
+	public void append(String name, TimeSeries data) throws IOException {
+		float[] times = data.getTimes();
+		float[][] values = data.getValues();
+		if (times.length == 0) return;
+
+		Variable time = getVariable(name + "_time", 1, true);
+		Variable value = getVariable(name + "_data", values[0].length, false);
+		float[] row = new float[1];
+		for (int i = 0; i < times.length; i++) {
+			row[0] = times[i];
+			time.append(row);
+			value.append(values[i]);
+		}
+	}
+
+	/**
+	 * Appends a spike to the two-column matrix [time, neuron].
+	 *
+	 * @param name Name of the spike matrix
+	 * @param neuron Index of neuron that spiked
+	 * @param time Spike time
+	 * @throws IOException
+	 */
+	public void appendSpike(String name, int neuron, float time) throws IOException {
+		getVariable(name, 2, false).append(time, neuron);
+	}
+
+	/**
+	 * Appends spikes from a SpikePattern.
+	 *
+	 * @param name Name of the spike matrix
+	 * @param pattern Spikes to append
+	 * @param offsets Number of spikes of each neuron to skip, e.g. because they were appended before
+	 * 		(may be null). Updated to the total number of spikes of each neuron.
+	 * @throws IOException
+	 */
+	public void appendSpikes(String name, SpikePattern pattern, int[] offsets) throws IOException {
+		Variable variable = getVariable(name, 2, false);
+		for (int i = 0; i < pattern.getNumNeurons(); i++) {
+			float[] times = pattern.getSpikeTimes(i);
+			int start = offsets == null ? 0 : offsets[i];
+			for (int j = start; j < times.length; j++) {
+				variable.append(times[j], i);
+			}
+			if (offsets != null) offsets[i] = times.length;
+		}
+	}
+
+	/**
+	 * @param name Name of a matrix
+	 * @return Number of rows appended to the matrix so far
+	 */
+	public long getRows(String name) {
+		Variable variable = myVariables.get(name);
+		return variable == null ? 0 : variable.getRows();
+	}
+
+	/**
+	 * @return Names of matrices, in the order they were first appended to
+	 */
+	public List<String> getNames() {
+		return new ArrayList<String>(myVariables.keySet());
+	}
+
+	/**
+	 * Writes the .mat file and deletes temporary files.
+	 *
+	 * @throws IOException
+	 */
+	public void close() throws IOException {
+		if (myClosed) return;
+		myClosed = true;
+
+		RandomAccessFile file = new RandomAccessFile(myDestination, "rw");
+		try {
+			file.setLength(0);
+			FileChannel out = file.getChannel();
+			writeFully(out, getHeader());
+			for (Variable variable : myVariables.values()) {
+				variable.writeTo(out);
+			}
+		} finally {
+			file.close();
+			for (Variable variable : myVariables.values()) {
+				variable.delete();
+			}
+		}
+	}
+
+	//a row vector is written as the transpose of a single column
+	private Variable getVariable(String name, int columns, boolean row) throws IOException {
+		if (myClosed) throw new IOException("Exporter is closed");
+
+		Variable result = myVariables.get(name);
+		if (result == null) {
+			result = new Variable(name, columns, row);
+			myVariables.put(name, result);
+		} else if (result.getColumns() != columns) {
+			throw new IOException("Expected " + result.getColumns() + " columns in " + name + " but got " + columns);
+		}
+		return result;
+	}
+
+	private static ByteBuffer getHeader() {
+		ByteBuffer result = ByteBuffer.allocate(128).order(ByteOrder.LITTLE_ENDIAN);
+		byte[] text = ("MATLAB 5.0 MAT-file, written by " + StreamingMatExporter.class.getName()).getBytes();
+		for (int i = 0; i < 116; i++) {
+			result.put(i < text.length ? text[i] : (byte) ' ');
+		}
+		result.putLong(0); //no subsystem data
+		result.putShort((short) 0x0100);
+		result.putShort((short) (('M' << 8) | 'I'));
+		result.flip();
+		return result;
+	}
+
+	private static int pad(long bytes) {
+		return (int) ((8 - bytes % 8) % 8);
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	//a matrix, with each column spilled to its own temporary file
+	private static class Variable {
+
+		private String myName;
+		private boolean myTransposed;
+		private long myRows;
+		private File[] myFiles;
+		private FileChannel[] myChannels;
+		private ByteBuffer[] myBuffers;
+
+		public Variable(String name, int columns, boolean transposed) throws IOException {
+			myName = name;
+			myTransposed = transposed;
+			myFiles = new File[columns];
+			myChannels = new FileChannel[columns];
+			myBuffers = new ByteBuffer[columns];
+			for (int i = 0; i < columns; i++) {
+				myFiles[i] = File.createTempFile("diff_export", ".col");
+				myFiles[i].deleteOnExit();
+				myChannels[i] = new RandomAccessFile(myFiles[i], "rw").getChannel();
+				myBuffers[i] = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+			}
+		}
+
+		public int getColumns() {
+			return myBuffers.length;
+		}
+
+		public long getRows() {
+			return myRows;
+		}
+
+		public void append(float[] row) throws IOException {
+			for (int i = 0; i < myBuffers.length; i++) {
+				put(i, row[i]);
+			}
+			myRows++;
+		}
+
+		public void append(float a, float b) throws IOException {
+			put(0, a);
+			put(1, b);
+			myRows++;
+		}
+
+		private void put(int column, float value) throws IOException {
+			if (!myBuffers[column].hasRemaining()) {
+				spill(column);
+			}
+			myBuffers[column].putDouble(value);
+		}
+
+		private void spill(int column) throws IOException {
+			myBuffers[column].flip();
+			writeFully(myChannels[column], myBuffers[column]);
+			myBuffers[column].clear();
+		}
+
+		public void writeTo(FileChannel out) throws IOException {
+			byte[] name = myName.getBytes();
+			long dataBytes = myRows * myBuffers.length * 8;
+			long size = 16 + 16 + 8 + name.length + pad(name.length) + 8 + dataBytes + pad(dataBytes);
+			if (size > Integer.MAX_VALUE) {
+				throw new IOException(myName + " is too large for a level 5 .mat file");
+			}
+
+			ByteBuffer header = ByteBuffer.allocate(64 + name.length + 8).order(ByteOrder.LITTLE_ENDIAN);
+			header.putInt(miMATRIX).putInt((int) size);
+			header.putInt(miUINT32).putInt(8).putInt(mxDOUBLE_CLASS).putInt(0);
+			if (myTransposed) {
+				header.putInt(miINT32).putInt(8).putInt(myBuffers.length).putInt((int) myRows);
+			} else {
+				header.putInt(miINT32).putInt(8).putInt((int) myRows).putInt(myBuffers.length);
+			}
+			header.putInt(miINT8).putInt(name.length).put(name);
+			for (int i = 0; i < pad(name.length); i++) {
+				header.put((byte) 0);
+			}
+			header.putInt(miDOUBLE).putInt((int) dataBytes);
+			header.flip();
+			writeFully(out, header);
+
+			for (int i = 0; i < myBuffers.length; i++) {
+				spill(i);
+				long position = 0;
+				long length = myChannels[i].size();
+				while (position < length) {
+					position += myChannels[i].transferTo(position, length - position, out);
+				}
+			}
+			writeFully(out, ByteBuffer.allocate(pad(dataBytes)));
+		}
+
+		public void delete() throws IOException {
+			for (int i = 0; i < myChannels.length; i++) {
+				myChannels[i].close();
+				myFiles[i].delete();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Created on 17-Oct-26
+ */
+package com.bptripp.diff;
+
+import ca.nengo.model.RealOutput;
+import ca.nengo.model.SimulationException;
+import ca.nengo.model.StructuralException;
+import ca.nengo.model.Units;
+import ca.nengo.model.impl.PassthroughNode;
+import ca.nengo.util.TimeSeries;
+import ca.nengo.util.impl.TimeSeriesImpl;
+
+/**
+ * A one-dimensional sink that summarizes its input as the simulation runs, instead of recording it
+ * like a Probe. It keeps a running mean and variance (Welford's method) and a running least-squares
+ * sinusoid fit at a given frequency, so memory use doesn't grow with run length.
+ *
+ * Values received by a termination during a step were produced at the end of the previous step, so
+ * each value is attributed to the start time of the step in which it arrives. This makes the
+ * summaries consistent with those of Probe data.
+ */
+public class StreamingProbe extends PassthroughNode {
+
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Indices of summary statistics in getSummary()
+	 */
+	public static final int MEAN = 0;
+	public static final int VARIANCE = 1;
+	public static final int AMPLITUDE = 2;
+	public static final int PHASE = 3;
+
+	private float myStartTime;
+	private SinusoidFit myFit;
+	private long myCount;
+	private double myMean;
+	private double mySumSquares;
+	private float myLastTime;
+
+	/**
+	 * @param name Name of the node
+	 * @param angularFrequency Angular frequency (rad/s) of the sinusoid to fit
+	 * @param startTime Values before this time are ignored (e.g. to skip an initial transient)
+	 */
+	public StreamingProbe(String name, float angularFrequency, float startTime) {
+		super(name, 1);
+		myStartTime = startTime;
+		myFit = new SinusoidFit(angularFrequency, startTime);
+	}
+
+	/**
+	 * @see ca.nengo.model.impl.PassthroughNode#run(float, float)
+	 */
+	@Override
+	public void run(float startTime, float endTime) throws SimulationException {
+		super.run(startTime, endTime);
+
+		try {
+			float value = ((RealOutput) getOrigin(ORIGIN).getValues()).getValues()[0];
+			add(startTime, value);
+		} catch (StructuralException e) {
+			throw new SimulationException(e);
+		}
+	}
+
+	/**
+	 * @see ca.nengo.model.impl.PassthroughNode#reset(boolean)
+	 */
+	@Override
+	public void reset(boolean randomize) {
+		super.reset(randomize);
+		myFit.reset();
+		myCount = 0;
+		myMean = 0;
+		mySumSquares = 0;
+		myLastTime = 0;
+	}
+
+	/**
+	 * @param time Time of sample
+	 * @param value Value of sample
+	 */
+	public void add(float time, float value) {
+		if (time < myStartTime) return;
+
+		myCount++;
+		double delta = value - myMean;
+		myMean += delta / myCount;
+		mySumSquares += delta * (value - myMean);
+		myFit.add(time, value);
+		myLastTime = time;
+	}
+
+	/**
+	 * @return Number of values summarized
+	 */
+	public long getCount() {
+		return myCount;
+	}
+
+	/**
+	 * @return Mean of values
+	 */
+	public float getMean() {
+		return (float) myMean;
+	}
+
+	/**
+	 * @return Variance of values (normalized by count, as MU.variance)
+	 */
+	public float getVariance() {
+		return myCount > 0 ? (float) (mySumSquares / myCount) : 0;
+	}
+
+	/**
+	 * @return Amplitude of best-fit sinusoid
+	 */
+	public float getAmplitude() {
+		return myFit.getAmplitude();
+	}
+
+	/**
+	 * @return Phase of best-fit sinusoid (radians, relative to cosine)
+	 */
+	public float getPhase() {
+		return myFit.getPhase();
+	}
+
+	/**
+	 * @return A single-sample TimeSeries (at the time of the last value) containing the mean,
+	 * 		variance, amplitude, and phase, indexed by MEAN, VARIANCE, AMPLITUDE, and PHASE
+	 */
+	public TimeSeries getSummary() {
+		float[] summary = new float[]{getMean(), getVariance(), getAmplitude(), getPhase()};
+		Units[] units = new Units[]{Units.UNK, Units.UNK, Units.UNK, Units.UNK};
+		return new TimeSeriesImpl(new float[]{myLastTime}, new float[][]{summary}, units);
+	}
+
+}
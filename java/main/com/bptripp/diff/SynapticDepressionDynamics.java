@@ -26,6 +26,14 @@ public class SynapticDepressionDynamics extends AbstractDynamicalSystem {
 	private int myMaxPoolSize;
 	private float myTau;
 	private float myProportionReleased;
+	private float myExactStep;
+	
+	private SynapticDepressionPopulation myPopulation;
+	private int myIndex; //-1 for a template
+	private int myNextClone; //slot of a template's next clone
+	private float[] myState;
+	private float[] myDerivative;
+	private float[] myOutput;
 
 	/**
 	 * @param maxPoolSize Size of readily-releasable pool of synaptic vesicles 
@@ -37,15 +45,129 @@ public class SynapticDepressionDynamics extends AbstractDynamicalSystem {
 		myMaxPoolSize = maxPoolSize;
 		myTau = tau;
 		myProportionReleased = proportionReleased;
+		myIndex = -1;
+		myDerivative = new float[1];
+	}
+	
+	/**
+	 * Creates a template for dynamics whose state and parameters are held in the given population. The 
+	 * template holds no slot. Its clones are views of slots 0, 1, 2, ... of the population, which are 
+	 * claimed as needed (see SynapticDepressionPopulation). Views record their input for the population's 
+	 * step(...), and the arrays returned by getState(), f(), and g() are reused from call to call. 
+	 *  
+	 * @param population Population in which to hold state and parameters  
+	 */
+	public SynapticDepressionDynamics(SynapticDepressionPopulation population) {
+		super(new float[1]);
+		myMaxPoolSize = population.getMaxPoolSize();
+		myTau = population.getDefaultTau();
+		myProportionReleased = population.getDefaultProportionReleased();
+		myPopulation = population;
+		myIndex = -1;
+		myState = new float[1];
+		myDerivative = new float[1];
+		myOutput = new float[1];
+	}
+	
+	/**
+	 * @return Population that holds the state of these dynamics (null if stand-alone)
+	 */
+	public SynapticDepressionPopulation getPopulation() {
+		return myPopulation;
+	}
+	
+	/**
+	 * @return Index of the population slot that holds the state of these dynamics (-1 if stand-alone or a template) 
+	 */
+	public int getIndex() {
+		return myIndex;
+	}
+
+	/**
+	 * @see ca.nengo.dynamics.impl.AbstractDynamicalSystem#getState()
+	 */
+	@Override
+	public float[] getState() {
+		if (myIndex < 0) return super.getState();
+		
+		myState[0] = myPopulation.getPool(myIndex);
+		return myState;
+	}
+
+	/**
+	 * @see ca.nengo.dynamics.impl.AbstractDynamicalSystem#setState(float[])
+	 */
+	@Override
+	public void setState(float[] state) {
+		if (myIndex < 0) {
+			super.setState(state);
+		} else {
+			myPopulation.setPool(myIndex, state[0]);
+		}
 	}
 
 	/**
+	 * The returned array is reused; integrators consume derivatives immediately. 
+	 *   
+	 * If an exact step is set (see setExactStep(...)), this returns the secant slope of the exact 
+	 * solution over that step, rather than the derivative. Views of a population slot don't integrate 
+	 * their own state: they record the input for the population's next step, and return zero.  
+	 *   
 	 * @see ca.nengo.dynamics.impl.AbstractDynamicalSystem#f(float, float[])
 	 */
 	@Override
 	public float[] f(float t, float[] u) {
+		if (myIndex >= 0) {
+			myPopulation.setRate(myIndex, u[0]);
+			myDerivative[0] = 0;
+			return myDerivative;
+		}
+		
 		float S = getState()[0];
-		return new float[]{(1-S) / myTau - myProportionReleased*S*u[0]};
+		float h = getExactStep();
+		if (h > 0) {
+			myDerivative[0] = (step(S, getTau(), getProportionReleased(), u[0], h) - S) / h;
+		} else {
+			myDerivative[0] = (1-S) / getTau() - getProportionReleased()*S*u[0];
+		}
+		return myDerivative;
+	}
+	
+	/**
+	 * For piecewise-constant input, dS/dt = (1-S)/tau - F*S*u is linear in S, with exact solution 
+	 * S(t+h) = Sinf + (S(t)-Sinf)exp(-kh), where k = 1/tau + F*u and Sinf = 1/(tau*k). 
+	 * 
+	 * @param S Fraction of pool available at start of step
+	 * @param tau Time constant with which pool is replenished 
+	 * @param proportionReleased Fraction of pool released with each spike 
+	 * @param u Presynaptic spike rate (constant over the step)
+	 * @param h Step size (s)
+	 * @return Fraction of pool available at end of step
+	 */
+	public static float step(float S, float tau, float proportionReleased, float u, float h) {
+		float k = 1/tau + proportionReleased*u;
+		float SInf = 1 / (tau*k);
+		return SInf + (S - SInf) * (float) Math.exp(-k*h);
+	}
+	
+	/**
+	 * @return Step size for exact integration (0 if f() returns the derivative)
+	 */
+	public float getExactStep() {
+		return myExactStep;
+	}
+	
+	/**
+	 * Makes f() return the secant slope of the exact solution over a step of the given size, so that 
+	 * a forward-Euler integrator with this step size follows the exact solution for piecewise-constant 
+	 * input. This is stable and accurate at much larger steps (e.g. 5ms) than Euler integration of 
+	 * the derivative. The step must match the integrator's step. This applies to stand-alone dynamics; 
+	 * population slots are advanced by the population (see SynapticDepressionPopulation.setExact(...)).  
+	 *  
+	 * @param step Step size of the integrator (s), or 0 to return the derivative
+	 */
+	public void setExactStep(float step) {
+		myExactStep = step;
 	}
 
 	/**
@@ -53,7 +175,38 @@ public class SynapticDepressionDynamics extends AbstractDynamicalSystem {
 	 */
 	@Override
 	public float[] g(float t, float[] u) {
-		return new float[]{Math.round((float) myMaxPoolSize * getState()[0]) / (float) myMaxPoolSize};
+		if (myIndex >= 0) myPopulation.setRate(myIndex, u[0]);
+		float efficacy = Math.round((float) myMaxPoolSize * getState()[0]) / (float) myMaxPoolSize;
+		if (myIndex < 0) return new float[]{efficacy}; //a stand-alone integration may keep every output
+		
+		myOutput[0] = efficacy;
+		return myOutput;
+	}
+	
+	/**
+	 * A clone of a template is a view of the template's next slot. A clone of a view claims a new slot, 
+	 * with the same state and parameters. 
+	 * 
+	 * @see ca.nengo.dynamics.impl.AbstractDynamicalSystem#clone()
+	 */
+	@Override
+	public SynapticDepressionDynamics clone() throws CloneNotSupportedException {
+		SynapticDepressionDynamics result = (SynapticDepressionDynamics) super.clone();
+		result.myDerivative = new float[1];
+		if (myPopulation != null && myIndex < 0) {
+			result.myIndex = myNextClone < myPopulation.getSize() ? myNextClone : myPopulation.add();
+			result.myState = new float[1];
+			result.myOutput = new float[1];
+			myNextClone++;
+		} else if (myPopulation != null) {
+			result.myIndex = myPopulation.add();
+			result.myState = new float[1];
+			result.myOutput = new float[1];
+			myPopulation.setPool(result.myIndex, myPopulation.getPool(myIndex));
+			myPopulation.setTau(result.myIndex, getTau());
+			myPopulation.setProportionReleased(result.myIndex, getProportionReleased());
+		}
+		return result;
 	}
 
 	/**
@@ -72,32 +225,47 @@ public class SynapticDepressionDynamics extends AbstractDynamicalSystem {
 		return 1;
 	}
 	
+	/**
+	 * @return Size of readily-releasable pool of synaptic vesicles 
+	 */
+	public int getMaxPoolSize() {
+		return myMaxPoolSize;
+	}
+	
 	/**
 	 * @return Time constant with which pool is replenished 
 	 */
 	public float getTau() {
-		return myTau;
+		return myIndex < 0 ? myTau : myPopulation.getTau(myIndex);
 	}
 	
 	/**
 	 * @param tau Time constant with which pool is replenished 
 	 */
 	public void setTau(float tau) {
-		myTau = tau;
+		if (myIndex < 0) {
+			myTau = tau;
+		} else {
+			myPopulation.setTau(myIndex, tau);
+		}
 	}
 
 	/**
 	 * @return Fraction of pool released with each spike 
 	 */
 	public float getProportionReleased() {
-		return myProportionReleased;
+		return myIndex < 0 ? myProportionReleased : myPopulation.getProportionReleased(myIndex);
 	}
 
 	/**
 	 * @param proportion Fraction of pool released with each spike 
 	 */
 	public void setProportionReleased(float proportion) {
-		myProportionReleased = proportion;
+		if (myIndex < 0) {
+			myProportionReleased = proportion;
+		} else {
+			myPopulation.setProportionReleased(myIndex, proportion);
+		}
 	}
 
 	/** 
@@ -105,7 +273,8 @@ public class SynapticDepressionDynamics extends AbstractDynamicalSystem {
 	 */
 	public static void main(String[] args) {
 		SynapticDepressionDynamics dynamics = new SynapticDepressionDynamics(100, .5f, .01f);
-		Integrator integrator = new EulerIntegrator(.001f);
+		dynamics.setExactStep(.005f);
+		Integrator integrator = new EulerIntegrator(.005f);
 		float[] times = MU.makeVector(0, .001f, 5);
 		Function f = new PostfixFunction("200 + 100*sin(2*pi*x0)", 1);
 		float[] values = f.multiMap(MU.transpose(new float[][]{times}));
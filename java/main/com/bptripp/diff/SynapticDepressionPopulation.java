@@ -0,0 +1,289 @@
+/*
+ * Created on 17-Oct-26
+ */
+package com.bptripp.diff;
+
+import java.io.Serializable;
+
+import ca.nengo.model.SimulationException;
+import ca.nengo.model.impl.PassthroughNode;
+
+/**
+ * Synaptic depression state of a population of neurons, held in primitive arrays. Each neuron's
+ * pool state, recovery time constant, and release fraction occupies one slot.
+ *
+ * DecodedOrigin's STP hook takes one DynamicalSystem per neuron, which it clones from a template.
+ * A SynapticDepressionDynamics that is created on a population is a template that holds no slot. Its
+ * clones are views of successive slots (claiming new slots as needed), so the states of all the
+ * neurons that share a template live in the same arrays. Another template on the same population
+ * binds its clones to the same slots, so origins that share presynaptic neurons (e.g. the bias origin
+ * of a Parisien projection) share their depression state rather than claiming more slots.
+ *
+ * Views don't integrate their own state. They record their presynaptic rates, and the whole population
+ * is advanced once per step by step(...) (see Stepper), by the exact solution for
+ * piecewise-constant rates (see setExact(...)) or by a forward Euler step.
+ */
+public class SynapticDepressionPopulation implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private int myMaxPoolSize;
+	private float myDefaultTau;
+	private float myDefaultProportionReleased;
+
+	private boolean myExact;
+
+	private int mySize;
+	private float[] myPool;
+	private float[] myTau;
+	private float[] myProportionReleased;
+	private float[] myRate; //presynaptic rate recorded by views, held until the next step
+
+	/**
+	 * @param maxPoolSize Size of readily-releasable pool of synaptic vesicles
+	 * @param tau Initial time constant with which pools are replenished
+	 * @param proportionReleased Initial fraction of pool released with each spike
+	 */
+	public SynapticDepressionPopulation(int maxPoolSize, float tau, float proportionReleased) {
+		myMaxPoolSize = maxPoolSize;
+		myDefaultTau = tau;
+		myDefaultProportionReleased = proportionReleased;
+
+		mySize = 0;
+		myPool = new float[16];
+		myTau = new float[16];
+		myProportionReleased = new float[16];
+		myRate = new float[16];
+	}
+
+	/**
+	 * @return Index of a new slot, with default parameters and the same initial state as a 
+	 * 		stand-alone SynapticDepressionDynamics (zero)
+	 */
+	public synchronized int add() {
+		if (mySize == myPool.length) {
+			myPool = grow(myPool);
+			myTau = grow(myTau);
+			myProportionReleased = grow(myProportionReleased);
+			myRate = grow(myRate);
+		}
+		myPool[mySize] = 0;
+		myRate[mySize] = 0;
+		myTau[mySize] = myDefaultTau;
+		myProportionReleased[mySize] = myDefaultProportionReleased;
+		return mySize++;
+	}
+
+	/**
+	 * @return Time constant with which the pools of new slots are replenished
+	 */
+	public float getDefaultTau() {
+		return myDefaultTau;
+	}
+
+	/**
+	 * @return Fraction of the pool of a new slot released with each spike
+	 */
+	public float getDefaultProportionReleased() {
+		return myDefaultProportionReleased;
+	}
+
+	/**
+	 * @return Number of slots
+	 */
+	public int getSize() {
+		return mySize;
+	}
+
+	/**
+	 * @return Size of readily-releasable pool of synaptic vesicles
+	 */
+	public int getMaxPoolSize() {
+		return myMaxPoolSize;
+	}
+
+	/**
+	 * @param index Slot index
+	 * @return Fraction of pool available for release
+	 */
+	public float getPool(int index) {
+		return myPool[index];
+	}
+
+	/**
+	 * @param index Slot index
+	 * @param pool Fraction of pool available for release
+	 */
+	public void setPool(int index, float pool) {
+		myPool[index] = pool;
+	}
+
+	/**
+	 * @param index Slot index
+	 * @return Time constant with which pool is replenished
+	 */
+	public float getTau(int index) {
+		return myTau[index];
+	}
+
+	/**
+	 * @param index Slot index
+	 * @param tau Time constant with which pool is replenished
+	 */
+	public void setTau(int index, float tau) {
+		myTau[index] = tau;
+	}
+
+	/**
+	 * @param index Slot index
+	 * @return Fraction of pool released with each spike
+	 */
+	public float getProportionReleased(int index) {
+		return myProportionReleased[index];
+	}
+
+	/**
+	 * @param index Slot index
+	 * @param proportion Fraction of pool released with each spike
+	 */
+	public void setProportionReleased(int index, float proportion) {
+		myProportionReleased[index] = proportion;
+	}
+
+	/**
+	 * @param index Slot index
+	 * @return Synaptic efficacy, i.e. pool fraction rounded to a whole number of vesicles
+	 */
+	public float getEfficacy(int index) {
+		return Math.round((float) myMaxPoolSize * myPool[index]) / (float) myMaxPoolSize;
+	}
+
+	/**
+	 * @param result Array (at least getSize() long) into which to write efficacy of each slot
+	 */
+	public void getEfficacy(float[] result) {
+		for (int i = 0; i < mySize; i++) {
+			result[i] = Math.round((float) myMaxPoolSize * myPool[i]) / (float) myMaxPoolSize;
+		}
+	}
+
+	/**
+	 * @param index Slot index
+	 * @param rate Presynaptic spike rate, to be held constant over the next step
+	 */
+	public void setRate(int index, float rate) {
+		myRate[index] = rate;
+	}
+
+	/**
+	 * @return True if step(...) uses the exact solution for piecewise-constant rates
+	 */
+	public boolean isExact() {
+		return myExact;
+	}
+
+	/**
+	 * @param exact True if step(...) should use the exact solution for piecewise-constant rates, which
+	 * 		is stable and accurate at much larger steps (e.g. 5ms) than a forward Euler step
+	 */
+	public void setExact(boolean exact) {
+		myExact = exact;
+	}
+
+	/**
+	 * Advances all pools in place over a step, with the rates most recently recorded by views (see
+	 * setRate(...)).
+	 *
+	 * @param dt Step size (s)
+	 */
+	public void step(float dt) {
+		if (myExact) {
+			runExact(dt, myRate);
+		} else {
+			run(dt, myRate);
+		}
+	}
+
+	/**
+	 * Advances all pools in place by one Euler step.
+	 *
+	 * @param dt Step size (s)
+	 * @param rates Presynaptic spike rate of each slot, held constant over the step
+	 */
+	public void run(float dt, float[] rates) {
+		for (int i = 0; i < mySize; i++) {
+			float S = myPool[i];
+			myPool[i] = S + dt * ((1-S) / myTau[i] - myProportionReleased[i]*S*rates[i]);
+		}
+	}
+
+	/**
+	 * Advances all pools in place by the exact solution for piecewise-constant rates (see 
+	 * SynapticDepressionDynamics.step(...)). This is stable and accurate at any step size. 
+	 *
+	 * @param dt Step size (s)
+	 * @param rates Presynaptic spike rate of each slot, held constant over the step
+	 */
+	public void runExact(float dt, float[] rates) {
+		for (int i = 0; i < mySize; i++) {
+			myPool[i] = SynapticDepressionDynamics.step(myPool[i], myTau[i], myProportionReleased[i], rates[i], dt);
+		}
+	}
+
+	/**
+	 * Returns all pools to their initial state, and clears recorded rates.
+	 */
+	public void reset() {
+		for (int i = 0; i < mySize; i++) {
+			myPool[i] = 0;
+			myRate[i] = 0;
+		}
+	}
+
+	private static float[] grow(float[] values) {
+		float[] result = new float[values.length * 2];
+		System.arraycopy(values, 0, result, 0, values.length);
+		return result;
+	}
+
+	/**
+	 * A node that advances the synaptic depression of all slots of a population in one call per step, over
+	 * the step's actual length. A network that holds views of a population needs one of these. Views record
+	 * presynaptic rates as their ensembles run. Each step's rates take effect on efficacy from the next step,
+	 * whether this node runs before or after the ensembles, so a spike is transmitted with the efficacy of
+	 * the pool before its own release.
+	 */
+	public static class Stepper extends PassthroughNode {
+
+		private static final long serialVersionUID = 1L;
+
+		private SynapticDepressionPopulation myPopulation;
+
+		/**
+		 * @param name Name of node
+		 * @param population Population to advance
+		 */
+		public Stepper(String name, SynapticDepressionPopulation population) {
+			super(name, 1);
+			myPopulation = population;
+		}
+
+		/**
+		 * @see ca.nengo.model.impl.PassthroughNode#run(float, float)
+		 */
+		@Override
+		public void run(float startTime, float endTime) throws SimulationException {
+			myPopulation.step(endTime - startTime);
+		}
+
+		/**
+		 * @see ca.nengo.model.impl.PassthroughNode#reset(boolean)
+		 */
+		@Override
+		public void reset(boolean randomize) {
+			super.reset(randomize);
+			myPopulation.reset();
+		}
+	}
+
+}
@@ -0,0 +1,254 @@
+/*
+ * Created on 17-Oct-26
+ */
+package com.bptripp.diff;
+
+import java.util.Arrays;
+
+import ca.nengo.math.Function;
+import ca.nengo.model.SimulationMode;
+import ca.nengo.model.StructuralException;
+
+/**
+ * Finds the signal and noise power at the output of a DifferentiatorNetwork in DIRECT mode, for many
+ * time constants in one pass (a replacement for the loop in timeConstant.py, which rebuilt and reran
+ * the whole network twice for each time constant).
+ *
+ * The network's LinearModel is found for each time constant (all the models have the same states and
+ * inputs; only the dynamics differ). The models are then simulated side by side in one loop with exact
+ * zero-order-hold discretization. At each step the input signal and each noise input are sampled once
+ * and shared by all variants, so every variant sees the same signal and the same noise realization.
+ * Because the models are linear, the signal and noise responses are separate states of each variant,
+ * so both are found in the same run.
+ *
+ * The LinearModel only approximates networks with nonlinear DIRECT-mode origins (such as the
+ * bias-compensating origins of AdaptingNetwork and DepressionNetwork) near zero, so these networks are
+ * rejected (see LinearModel.getNonlinearOrigins()); simulate them instead.
+ */
+public class TauSweep {
+
+	private float myStepSize = .0005f;
+	private float myDuration = 10f;
+	private float myTransientTime = 0f;
+
+	/**
+	 * @param stepSize Simulation step size (s)
+	 * @param duration Simulation time (s)
+	 * @param transientTime Initial time that is excluded from power estimates (s)
+	 */
+	public void setTiming(float stepSize, float duration, float transientTime) {
+		myStepSize = stepSize;
+		myDuration = duration;
+		myTransientTime = transientTime;
+	}
+
+	/**
+	 * @param network Network to study (it isn't changed; the time constants are set on a copy)
+	 * @param taus Time constants to compare (see DifferentiatorNetwork.setTau(...))
+	 * @param signal Input signal (a function of time)
+	 * @param nInput Nominal number of input neurons for noise models (see DifferentiatorNetwork.setNoise(...))
+	 * @param nDiff Nominal number of differentiating neurons for noise models
+	 * @return Output signal and noise power for each time constant
+	 * @throws StructuralException If the network isn't linear in DIRECT mode, or if time constants
+	 * 		change its structure
+	 */
+	public Result run(DifferentiatorNetwork network, float[] taus, Function signal, int nInput, int nDiff) throws StructuralException {
+		DifferentiatorNetwork copy = Util.copy(network);
+		copy.setMode(SimulationMode.DIRECT); //before setTau(...), so that bias compensation is found for DIRECT mode
+		copy.setNoise(nInput, nDiff);
+
+		int K = taus.length;
+		double[][][] Ad = new double[K][][];
+		double[][][] Bd = new double[K][][];
+		float[][] C = null;
+		FilteredNoise[] noises = null;
+		for (int k = 0; k < K; k++) {
+			copy.setTau(taus[k]);
+			LinearModel model = copy.getLinearModel();
+			String[] nonlinear = model.getNonlinearOrigins();
+			if (nonlinear.length > 0) {
+				throw new StructuralException("Time constant sweeps need a network that is linear in DIRECT mode; "
+					+ network.getName() + " has nonlinear origins " + Arrays.toString(nonlinear));
+			}
+			if (k == 0) {
+				C = model.getC();
+				FilteredNoise[] templates = model.getNoises();
+				noises = new FilteredNoise[templates.length];
+				for (int i = 0; i < templates.length; i++) {
+					noises[i] = (FilteredNoise) templates[i].clone();
+				}
+			} else if (model.getOrder() != Ad[0].length || model.getNoises().length != noises.length) {
+				throw new StructuralException("Time constants change the structure of " + network.getName());
+			}
+			discretize(model, myStepSize, k, Ad, Bd);
+		}
+
+		int n = Ad[0].length;
+		int m = noises.length;
+		double[][] signalState = new double[K][n];
+		double[][] noiseState = new double[K][n];
+		double[][] nextSignal = new double[K][n];
+		double[][] nextNoise = new double[K][n];
+		Welford[] signalPower = new Welford[K];
+		Welford[] noisePower = new Welford[K];
+		for (int k = 0; k < K; k++) {
+			signalPower[k] = new Welford();
+			noisePower[k] = new Welford();
+		}
+
+		float[] time = new float[1];
+		double[] w = new double[m];
+		int steps = Math.round(myDuration / myStepSize);
+		for (int s = 0; s < steps; s++) {
+			float t = s * myStepSize;
+			time[0] = t;
+			double u = signal.map(time);
+			for (int j = 0; j < m; j++) {
+				w[j] = noises[j].getValue(t, t + myStepSize, 0);
+			}
+
+			for (int k = 0; k < K; k++) {
+				double[][] A = Ad[k];
+				double[][] B = Bd[k];
+				double[] xs = signalState[k];
+				double[] xn = noiseState[k];
+				for (int i = 0; i < n; i++) {
+					double ss = B[i][0] * u;
+					double sn = 0;
+					for (int j = 0; j < m; j++) {
+						sn += B[i][j+1] * w[j];
+					}
+					for (int j = 0; j < n; j++) {
+						ss += A[i][j] * xs[j];
+						sn += A[i][j] * xn[j];
+					}
+					nextSignal[k][i] = ss;
+					nextNoise[k][i] = sn;
+				}
+				signalState[k] = nextSignal[k];
+				noiseState[k] = nextNoise[k];
+				nextSignal[k] = xs;
+				nextNoise[k] = xn;
+
+				if (t + myStepSize > myTransientTime) {
+					signalPower[k].add(output(C, signalState[k]));
+					noisePower[k].add(output(C, noiseState[k]));
+				}
+			}
+		}
+
+		float[] signalResult = new float[K];
+		float[] noiseResult = new float[K];
+		for (int k = 0; k < K; k++) {
+			signalResult[k] = signalPower[k].getVariance();
+			noiseResult[k] = noisePower[k].getVariance();
+		}
+		return new Result(network.getName(), taus, signalResult, noiseResult);
+	}
+
+	//exact ZOH discretization via the exponential of the augmented matrix [A B; 0 0]
+	private static void discretize(LinearModel model, float stepSize, int k, double[][][] Ad, double[][][] Bd) {
+		float[][] A = model.getA();
+		float[][] B = model.getB();
+		int n = A.length;
+		int m = B[0].length;
+
+		double[][] augmented = new double[n + m][n + m];
+		for (int i = 0; i < n; i++) {
+			for (int j = 0; j < n; j++) {
+				augmented[i][j] = A[i][j] * stepSize;
+			}
+			for (int j = 0; j < m; j++) {
+				augmented[i][n + j] = B[i][j] * stepSize;
+			}
+		}
+		double[][] E = Util.expm(augmented);
+
+		Ad[k] = new double[n][n];
+		Bd[k] = new double[n][m];
+		for (int i = 0; i < n; i++) {
+			System.arraycopy(E[i], 0, Ad[k][i], 0, n);
+			System.arraycopy(E[i], n, Bd[k][i], 0, m);
+		}
+	}
+
+	private static double output(float[][] C, double[] state) {
+		double result = 0;
+		for (int i = 0; i < state.length; i++) {
+			result += C[LinearModel.OUTPUT][i] * state[i];
+		}
+		return result;
+	}
+
+	//running variance
+	private static class Welford {
+
+		private long myCount;
+		private double myMean;
+		private double mySumSquares;
+
+		public void add(double value) {
+			myCount++;
+			double delta = value - myMean;
+			myMean += delta / myCount;
+			mySumSquares += delta * (value - myMean);
+		}
+
+		public float getVariance() {
+			return myCount > 0 ? (float) (mySumSquares / myCount) : 0;
+		}
+	}
+
+	/**
+	 * Output signal and noise power for each of a range of time constants.
+	 */
+	public static class Result {
+
+		private String myName;
+		private float[] myTaus;
+		private float[] mySignalPower;
+		private float[] myNoisePower;
+
+		/**
+		 * @param name Name of network
+		 * @param taus Time constants
+		 * @param signalPower Output signal variance for each time constant
+		 * @param noisePower Output noise variance for each time constant
+		 */
+		public Result(String name, float[] taus, float[] signalPower, float[] noisePower) {
+			myName = name;
+			myTaus = taus;
+			mySignalPower = signalPower;
+			myNoisePower = noisePower;
+		}
+
+		/**
+		 * @return Name of network
+		 */
+		public String getName() {
+			return myName;
+		}
+
+		/**
+		 * @return Time constants
+		 */
+		public float[] getTaus() {
+			return myTaus;
+		}
+
+		/**
+		 * @return Output signal variance for each time constant
+		 */
+		public float[] getSignalPower() {
+			return mySignalPower;
+		}
+
+		/**
+		 * @return Output noise variance for each time constant
+		 */
+		public float[] getNoisePower() {
+			return myNoisePower;
+		}
+	}
+
+}
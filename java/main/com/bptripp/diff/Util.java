@@ -3,21 +3,48 @@
  */
 package com.bptripp.diff;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import ca.nengo.dynamics.DynamicalSystem;
 import ca.nengo.math.Function;
 import ca.nengo.math.PDF;
 import ca.nengo.math.impl.AbstractFunction;
-import ca.nengo.math.impl.ConstantFunction;
 import ca.nengo.math.impl.GaussianPDF;
 import ca.nengo.math.impl.LinearCurveFitter;
 import ca.nengo.math.impl.PiecewiseConstantFunction;
+import ca.nengo.model.Ensemble;
 import ca.nengo.model.Network;
+import ca.nengo.model.Node;
+import ca.nengo.model.Origin;
+import ca.nengo.model.Projection;
+import ca.nengo.model.RealOutput;
 import ca.nengo.model.SimulationException;
+import ca.nengo.model.SimulationMode;
 import ca.nengo.model.StructuralException;
 import ca.nengo.model.Termination;
 import ca.nengo.model.Units;
 import ca.nengo.model.impl.FunctionInput;
 import ca.nengo.model.impl.NetworkImpl;
 import ca.nengo.model.nef.NEFEnsemble;
+import ca.nengo.model.nef.impl.DecodedOrigin;
+import ca.nengo.model.nef.impl.DecodedTermination;
+import ca.nengo.model.neuron.Neuron;
+import ca.nengo.model.neuron.impl.ALIFSpikeGenerator;
+import ca.nengo.model.neuron.impl.SpikingNeuron;
 import ca.nengo.util.MU;
 import ca.nengo.util.Probe;
 import ca.nengo.util.TimeSeries;
@@ -34,48 +61,488 @@ public class Util {
 	 * that approximates its negative. NOTE: there can't be any terminations on the ensemble when this
 	 * method is called (add them later). 
 	 * 
+	 * Results are cached (see CompensationCache), so the steady state is only simulated the first time 
+	 * that a given ensemble is compensated with given parameters. Where possible, the steady state is 
+	 * calculated directly rather than simulated (see calculateBiasCompensation(...)). Steady-state 
+	 * simulations of different inputs run in parallel, each on a copy of the ensemble. 
+	 * 
+	 * @param ensemble An ensemble for which bias is to be found
+	 * @param origin Name of DecodedOrigin of interest on given ensemble
+	 * @return A Function that can be added to the output of the given Origin to cancel it at steady state 
+	 * @throws StructuralException
+	 * @throws SimulationException
+	 */
+	public static Function getBiasCompensation(NEFEnsemble ensemble, String origin, float transientTime) throws StructuralException, SimulationException {
+		String key = CompensationCache.getKey(ensemble, origin, transientTime);
+		float[][] curve = CompensationCache.get(key);
+		if (curve == null) {
+			float[] x = MU.makeVector(-1f, .1f, 1f);
+			float[] compensation = calculateBiasCompensation(ensemble, origin, x);
+			if (compensation == null) {
+				compensation = simulateBiasCompensation(ensemble, origin, transientTime, x);
+			}
+			CompensationCache.put(key, x, compensation);
+			curve = new float[][]{x, compensation};
+		}
+		
+		return new LinearCurveFitter().fit(curve[0], curve[1]);
+	}
+	
+	/**
+	 * Calculates bias compensation from the equilibrium of each neuron, without time-stepped simulation. 
+	 * This is supported for one-dimensional ensembles of LIF or adapting LIF (ALIF) neurons, with or 
+	 * without synaptic depression (SynapticDepressionDynamics) on the origin. At a constant input, 
+	 * an ALIF neuron's adaptation current settles at N = incN*tauN*r, where r is the adapted rate, 
+	 * and r is the LIF rate at current J-N. A depressing synapse's pool settles at S = 1/(1+F*tau*r). 
+	 * 
+	 * The LIF time constants of each neuron are inferred from its rates in CONSTANT_RATE mode. 
+	 * 
+	 * Equilibria are those of the neurons, so the ensemble must be in a neuron mode (DEFAULT, RATE, or 
+	 * CONSTANT_RATE). In DIRECT mode the origin's output doesn't depend on neuron rates, and null is 
+	 * returned so that the steady state is simulated. 
+	 * 
+	 * @param ensemble An ensemble for which bias is to be found
+	 * @param origin Name of DecodedOrigin of interest on given ensemble
+	 * @return A Function that can be added to the output of the given Origin to cancel it at steady state, 
+	 * 		or null if the ensemble isn't of a supported type 
+	 * @throws StructuralException
+	 */
+	public static Function calculateBiasCompensation(NEFEnsemble ensemble, String origin) throws StructuralException {
+		float[] x = MU.makeVector(-1f, .1f, 1f);
+		float[] compensation = calculateBiasCompensation(ensemble, origin, x);
+		return compensation == null ? null : new LinearCurveFitter().fit(x, compensation);
+	}
+	
+	//returns negative of calculated steady-state output at each of the given inputs, or null if not supported
+	private static float[] calculateBiasCompensation(NEFEnsemble ensemble, String origin, float[] x) throws StructuralException {
+		if (ensemble.getDimension() != 1 || !(ensemble.getOrigin(origin) instanceof DecodedOrigin)) return null;
+		if (!isNeuronMode(ensemble.getMode())) return null;
+		
+		DecodedOrigin o = (DecodedOrigin) ensemble.getOrigin(origin);
+		float[][] decoders = o.getDecoders();
+		float[][] encoders = ensemble.getEncoders();
+		Node[] nodes = ensemble.getNodes();
+		
+		float[] output = new float[x.length];
+		for (int i = 0; i < nodes.length; i++) {
+			if (!(nodes[i] instanceof SpikingNeuron)) return null;
+			SpikingNeuron neuron = (SpikingNeuron) nodes[i];
+			float[] tau = getLIFTimeConstants(neuron);
+			if (tau == null) return null;
+			
+			float incN = 0, tauN = 0;
+			if (neuron.getGenerator() instanceof ALIFSpikeGenerator) {
+				incN = ((ALIFSpikeGenerator) neuron.getGenerator()).getIncN();
+				tauN = ((ALIFSpikeGenerator) neuron.getGenerator()).getTauN();
+			} else if (neuron.getGenerator() instanceof ALIFPopulation.Generator) {
+				incN = ((ALIFPopulation.Generator) neuron.getGenerator()).getIncN();
+				tauN = ((ALIFPopulation.Generator) neuron.getGenerator()).getTauN();
+			}
+			
+			SynapticDepressionDynamics depression = null;
+			if (o.getSTPDynamics() != null) {
+				DynamicalSystem dynamics = o.getSTPDynamics(i);
+				if (!(dynamics instanceof SynapticDepressionDynamics)) return null;
+				depression = (SynapticDepressionDynamics) dynamics;
+			}
+			
+			for (int j = 0; j < x.length; j++) {
+				float current = neuron.getScale() * encoders[i][0] * x[j] + neuron.getBias();
+				float rate = getAdaptedRate(current, tau[0], tau[1], incN * tauN);
+				if (depression != null) {
+					float S = 1f / (1f + depression.getProportionReleased() * depression.getTau() * rate);
+					int poolSize = depression.getMaxPoolSize();
+					rate *= Math.round((float) poolSize * S) / (float) poolSize;
+				}
+				output[j] += decoders[i][0] * rate;
+			}
+		}
+		
+		return MU.prod(output, -1f);
+	}
+	
+	private static boolean isNeuronMode(SimulationMode mode) {
+		return SimulationMode.DEFAULT.equals(mode) || SimulationMode.RATE.equals(mode) || SimulationMode.CONSTANT_RATE.equals(mode);
+	}
+	
+	//returns [tauRC, tauRef] of an LIF neuron, inferred from CONSTANT_RATE responses, or null if the neuron doesn't look like an LIF neuron
+	private static float[] getLIFTimeConstants(SpikingNeuron neuron) {
+		float[] currents = new float[]{2, 4, 3};
+		float[] rates = new float[currents.length];
+		
+		SimulationMode mode = neuron.getMode();
+		try {
+			neuron.setMode(SimulationMode.CONSTANT_RATE);
+			for (int i = 0; i < currents.length; i++) {
+				neuron.setRadialInput((currents[i] - neuron.getBias()) / neuron.getScale());
+				neuron.run(0, 0);
+				rates[i] = ((RealOutput) neuron.getOrigin(Neuron.AXON).getValues()).getValues()[0];
+			}
+			neuron.setMode(mode);
+		} catch (SimulationException e) {
+			throw new RuntimeException(e);
+		} catch (StructuralException e) {
+			throw new RuntimeException(e);
+		}
+		if (rates[0] <= 0 || rates[1] <= 0) return null;
+		
+		//1/rate = tauRef - tauRC*ln(1-1/J) is linear in the time constants 
+		double l0 = Math.log(1 - 1/currents[0]);
+		double l1 = Math.log(1 - 1/currents[1]);
+		double tauRC = (1/rates[1] - 1/rates[0]) / (l0 - l1);
+		double tauRef = 1/rates[0] + tauRC * l0;
+		
+		float check = getLIFRate(currents[2], (float) tauRC, (float) tauRef);
+		if (Math.abs(check - rates[2]) > .001f * rates[2]) return null;
+		
+		return new float[]{(float) tauRC, (float) tauRef};
+	}
+	
+	private static float getLIFRate(float current, float tauRC, float tauRef) {
+		return current <= 1 ? 0 : 1f / (tauRef - tauRC * (float) Math.log(1 - 1/current));
+	}
+	
+	//solves rate = LIF(current - adaptationGain*rate) by bisection (the right side decreases with rate)
+	private static float getAdaptedRate(float current, float tauRC, float tauRef, float adaptationGain) {
+		float high = getLIFRate(current, tauRC, tauRef);
+		if (adaptationGain == 0 || high == 0) return high;
+		
+		float low = 0;
+		for (int i = 0; i < 30; i++) {
+			float rate = (low + high) / 2;
+			if (getLIFRate(current - adaptationGain * rate, tauRC, tauRef) > rate) {
+				low = rate;
+			} else {
+				high = rate;
+			}
+		}
+		return (low + high) / 2;
+	}
+	
+	/**
+	 * As getBiasCompensation(...) but always simulates (doesn't use CompensationCache or 
+	 * calculateBiasCompensation(...)); useful for validation. Depression held in a SynapticDepressionPopulation 
+	 * is advanced by a SynapticDepressionPopulation.Stepper in each steady-state simulation, as in DepressionNetwork. 
+	 * 
 	 * @param ensemble An ensemble for which bias is to be found
 	 * @param origin Name of DecodedOrigin of interest on given ensemble
 	 * @return A Function that can be added to the output of the given Origin to cancel it at steady state 
 	 * @throws StructuralException
 	 * @throws SimulationException
 	 */
-	public static Function getBiasCompensation(NEFEnsemble ensemble, String origin, float transientTime) throws StructuralException, SimulationException {		
+	public static Function simulateBiasCompensation(NEFEnsemble ensemble, String origin, float transientTime) throws StructuralException, SimulationException {
+		float[] x = MU.makeVector(-1f, .1f, 1f);
+		return new LinearCurveFitter().fit(x, simulateBiasCompensation(ensemble, origin, transientTime, x));
+	}
+
+	/**
+	 * Steady-state simulations stop early when the mean output over successive windows (each 1/4 of the 
+	 * maximum averaging period) changes by less than this amount. 
+	 */
+	public static float COMPENSATION_TOLERANCE = .001f;
+	
+	//returns negative of simulated steady-state output at each of the given inputs (points are simulated in parallel)
+	private static float[] simulateBiasCompensation(NEFEnsemble ensemble, final String origin, final float transientTime, float[] x) throws StructuralException, SimulationException {
+		final byte[] template = serialize(ensemble);
+		
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(x.length, Runtime.getRuntime().availableProcessors()));
+		try {
+			List<Future<Float>> futures = new ArrayList<Future<Float>>(x.length);
+			for (int i = 0; i < x.length; i++) {
+				final float xi = x[i];
+				futures.add(executor.submit(new Callable<Float>() {
+					public Float call() throws Exception {
+						return new Float(simulateSteadyState((NEFEnsemble) deserialize(template), origin, transientTime, xi));
+					}
+				}));
+			}
+			
+			float[] compensation = new float[x.length];
+			for (int i = 0; i < x.length; i++) {
+				compensation[i] = -futures.get(i).get().floatValue();
+			}
+			return compensation;
+		} catch (InterruptedException e) {
+			throw new SimulationException(e);
+		} catch (ExecutionException e) {
+			throw new SimulationException(e);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+	
+	//returns steady-state output of given ensemble (which is modified, so should be a copy) with given input 
+	private static float simulateSteadyState(NEFEnsemble ensemble, String origin, float transientTime, float x) throws StructuralException, SimulationException {
 		float simulationTime = transientTime * 2 + .2f;
 		float endTime = simulationTime * .95f;
+		float window = (endTime - transientTime) / 4f;
 		
 		Network network = new NetworkImpl();
 		Termination t = ensemble.addDecodedTermination("laskdjhcuwyge19238479DLSKFASDKFJH", MU.I(1), .001f, false);
 		network.addNode(ensemble);		
-		FunctionInput input = new FunctionInput("testinput", new Function[]{new ConstantFunction(1, 0f)}, Units.UNK);
+		Function f = new PiecewiseConstantFunction(new float[]{.1f}, new float[]{0, x});
+		FunctionInput input = new FunctionInput("testinput", new Function[]{f}, Units.UNK);
 		network.addNode(input);
 		network.addProjection(input.getOrigin(FunctionInput.ORIGIN_NAME), t);
+		List<SynapticDepressionPopulation> populations = getDepressionPopulations(ensemble);
+		for (int i = 0; i < populations.size(); i++) {
+			network.addNode(new SynapticDepressionPopulation.Stepper("depression dynamics " + i, populations.get(i)));
+		}
 		Probe pOut = network.getSimulator().addProbe(ensemble.getName(), origin, true);
 		
-		float[] x = MU.makeVector(-1f, .1f, 1f);
-		float[] compensation = new float[x.length];
-		for (int i = 0; i < x.length; i++) {
-			Function f = new PiecewiseConstantFunction(new float[]{.1f}, new float[]{0, x[i]});
-			input.setFunctions(new Function[]{f});
-			network.reset(false);
-			network.run(0, simulationTime);
+		network.reset(false);
+		network.run(0, transientTime);
+		pOut.reset();
+		
+		float sum = 0, count = 0;
+		float previousMean = Float.NaN;
+		float time = transientTime;
+		while (time < endTime) {
+			float windowEnd = Math.min(endTime, time + window);
+			network.run(time, windowEnd);
 			TimeSeries output = pOut.getData();
+			pOut.reset();
 			
-			float sum = 0, count = 0;
+			float windowSum = 0, windowCount = 0;
 			for (int j = 0; j < output.getTimes().length; j++) {
 				if (output.getTimes()[j] >= transientTime && output.getTimes()[j] <= endTime) {
-					count++;
-					sum += output.getValues()[j][0];
+					windowCount++;
+					windowSum += output.getValues()[j][0];
 				}
 			}
-			compensation[i] = -sum/count;
+			sum += windowSum;
+			count += windowCount;
 			
-			pOut.reset();
-			network.reset(false);
+			float windowMean = windowSum / windowCount;
+			if (Math.abs(windowMean - previousMean) < COMPENSATION_TOLERANCE) break;
+			previousMean = windowMean;
+			time = windowEnd;
 		}
-		ensemble.removeDecodedTermination(t.getName());
+		
+		return sum/count;
+	}
 
-		return new LinearCurveFitter().fit(x, compensation);
+	//populations that hold the synaptic depression state of an ensemble's origins (these must be stepped by the network)
+	private static List<SynapticDepressionPopulation> getDepressionPopulations(NEFEnsemble ensemble) {
+		List<SynapticDepressionPopulation> result = new ArrayList<SynapticDepressionPopulation>();
+		Origin[] origins = ensemble.getOrigins();
+		for (int i = 0; i < origins.length; i++) {
+			if (origins[i] instanceof DecodedOrigin && ((DecodedOrigin) origins[i]).getSTPDynamics() != null) {
+				for (int j = 0; j < ensemble.getNodes().length; j++) {
+					DynamicalSystem dynamics = ((DecodedOrigin) origins[i]).getSTPDynamics(j);
+					if (dynamics instanceof SynapticDepressionDynamics) {
+						SynapticDepressionPopulation population = ((SynapticDepressionDynamics) dynamics).getPopulation();
+						if (population != null && !result.contains(population)) result.add(population);
+					}
+				}
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Estimates the number of multiply-adds per time step needed to carry a projection between neurons, 
+	 * in factored form (decoding, transform, and encoding, as DecodedTerminations are simulated) and as 
+	 * an explicit weight matrix. For a projection between two ensembles of n neurons with d dimensions, 
+	 * these are O(n*d) and O(n^2) respectively. Parisien conversion keeps the factored form: the bias 
+	 * populations have their own decoded terminations, and the bias termination on the target ensemble 
+	 * is one-dimensional. 
+	 * 
+	 * @param p A projection
+	 * @return [factored cost, dense cost]; the costs are equal if the termination isn't decoded (it 
+	 * 		then already has a weight per presynaptic dimension) or if either end isn't an ensemble
+	 */
+	public static long[] getSynapticCost(Projection p) {
+		long pre = p.getOrigin().getNode() instanceof Ensemble ? ((Ensemble) p.getOrigin().getNode()).getNodes().length : 0;
+		long post = p.getTermination().getNode() instanceof Ensemble ? ((Ensemble) p.getTermination().getNode()).getNodes().length : 0;
+		long from = p.getOrigin().getDimensions();
+		long to = p.getTermination().getDimensions();
+		
+		long factored;
+		if (p.getTermination() instanceof DecodedTermination) {
+			factored = pre*from + from*to + post*to;
+		} else {
+			factored = pre*from + post*to;
+		}
+		long dense = (pre > 0 && post > 0) ? pre*post : factored;
+		return new long[]{factored, dense};
+	}
+
+	/**
+	 * @param object An object to serialize
+	 * @return Serialized form of the object
+	 */
+	public static byte[] serialize(Serializable object) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(object);
+			out.close();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @param bytes Serialized form of an object (see serialize(...))
+	 * @return A new instance of the serialized object
+	 */
+	public static Object deserialize(byte[] bytes) {
+		try {
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes));
+			Object result = in.readObject();
+			in.close();
+			return result;
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		} catch (ClassNotFoundException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * @param file A file
+	 * @return Contents of the file
+	 * @throws IOException
+	 */
+	public static byte[] read(File file) throws IOException {
+		byte[] result = new byte[(int) file.length()];
+		FileInputStream in = new FileInputStream(file);
+		try {
+			int offset = 0;
+			while (offset < result.length) {
+				int n = in.read(result, offset, result.length - offset);
+				if (n < 0) throw new IOException("Unexpected end of file");
+				offset += n;
+			}
+		} finally {
+			in.close();
+		}
+		return result;
+	}
+
+	/**
+	 * Initial value for hash(...)
+	 */
+	public static final long HASH_SEED = 0xcbf29ce484222325L;
+
+	/**
+	 * FNV-1a hash, for keying cached results by content.
+	 *
+	 * @param hash Hash of preceding values (HASH_SEED if there are none)
+	 * @param value A value to add to the hash
+	 * @return Hash of preceding values and the given value
+	 */
+	public static long hash(long hash, float value) {
+		int bits = Float.floatToIntBits(value);
+		for (int i = 0; i < 4; i++) {
+			hash ^= (bits >>> (8*i)) & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * @param hash Hash of preceding values (HASH_SEED if there are none)
+	 * @param value A string to add to the hash
+	 * @return Hash of preceding values and the given string
+	 */
+	public static long hash(long hash, String value) {
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			hash ^= c & 0xff;
+			hash *= 0x100000001b3L;
+			hash ^= c >>> 8;
+			hash *= 0x100000001b3L;
+		}
+		return hash;
+	}
+
+	/**
+	 * @param hash Hash of preceding values (HASH_SEED if there are none)
+	 * @param values Values to add to the hash
+	 * @return Hash of preceding values and the given values
+	 */
+	public static long hash(long hash, float[][] values) {
+		for (int i = 0; i < values.length; i++) {
+			for (int j = 0; j < values[i].length; j++) {
+				hash = hash(hash, values[i][j]);
+			}
+		}
+		return hash;
+	}
+
+	/**
+	 * Makes a deep copy via serialization. This is safer than clone() for DifferentiatorNetworks, 
+	 * because subclasses hold references to their own nodes and projections, which clone() doesn't 
+	 * redirect to the copies.
+	 * 
+	 * @param object An object to copy
+	 * @return A deep copy of the given object
+	 */
+	@SuppressWarnings("unchecked")
+	public static <T extends Serializable> T copy(T object) {
+		return (T) deserialize(serialize(object));
+	}
+
+	/**
+	 * Matrix exponential by scaling and squaring of a truncated Taylor series (intended for the small 
+	 * matrices of linear network models). 
+	 * 
+	 * @param A A square matrix
+	 * @return exp(A)
+	 */
+	public static double[][] expm(double[][] A) {
+		int n = A.length;
+		
+		double norm = 0;
+		for (int i = 0; i < n; i++) {
+			double rowSum = 0;
+			for (int j = 0; j < n; j++) {
+				rowSum += Math.abs(A[i][j]);
+			}
+			norm = Math.max(norm, rowSum);
+		}
+		int squarings = Math.max(0, (int) Math.ceil(Math.log(norm / .5) / Math.log(2)));
+		double scale = Math.pow(2, -squarings);
+		
+		double[][] result = new double[n][n];
+		double[][] term = new double[n][n];
+		for (int i = 0; i < n; i++) {
+			result[i][i] = 1;
+			term[i][i] = 1;
+		}
+		for (int k = 1; k <= 20; k++) {
+			double[][] next = new double[n][n];
+			for (int i = 0; i < n; i++) {
+				for (int j = 0; j < n; j++) {
+					double sum = 0;
+					for (int l = 0; l < n; l++) {
+						sum += term[i][l] * A[l][j];
+					}
+					next[i][j] = sum * scale / k;
+					result[i][j] += next[i][j];
+				}
+			}
+			term = next;
+		}
+		
+		for (int s = 0; s < squarings; s++) {
+			double[][] squared = new double[n][n];
+			for (int i = 0; i < n; i++) {
+				for (int j = 0; j < n; j++) {
+					double sum = 0;
+					for (int l = 0; l < n; l++) {
+						sum += result[i][l] * result[l][j];
+					}
+					squared[i][j] = sum;
+				}
+			}
+			result = squared;
+		}
+		
+		return result;
 	}
 
 	public static Function RAMP = new AbstractFunction(1) {
@@ -1,21 +1,53 @@
 # Loads all of the network models 
 
 from com.bptripp.diff import *
+from java.io import File
+from java.io import IOException
+import hashlib
 
-interneuron = InterneuronNetwork(.1, 2000)
-dualTC = DualTCNetwork(.005, .1, 1)
-interneuronFeedback = FeedbackNetwork([1000, 1000], .1, [[-5, -5], [5, -15]], [[10], [30]], [[10, 0]]) #sinusoidal input
-interneuronFeedback.setName("interneuronFeedback")
-interneuronFeedbackR = FeedbackNetwork([1000, 1000], .1, [[-5, -7.5], [3.3333, -15]], [[10], [20]], [[10, 0]]) #ramp input
-interneuronFeedbackR.setName("interneuronFeedback")
-butterworth = FeedbackNetwork([1000, 1000], .1, [[-8.8858, 8.8858], [-8.8858, -8.8858]], [[27.4892], [-27.4892]], [[5.7446, 0]]) #sinusoidal input
-butterworth.setName("butterworth")
-butterworthR = FeedbackNetwork([1000, 1000], .1, [[-8.8858, 19.9931], [-3.9492, -8.8858]], [[27.4892], [-12.2174]], [[5.7446, 0]]) #ramp input
-butterworthR.setName("butterworth")
-adapting = AdaptingNetwork(1600, 400, .005)
-adapting.setTau(.1)
-depressing = DepressionNetwork(2000)
-depressing.setTau(.1)
+# Built networks are saved as snapshots, which load much faster than the networks can be rebuilt. 
+# Each snapshot file is keyed on a hash of the arguments used to build the network and the snapshot 
+# format version, so changing an argument builds a new network rather than loading a stale one. A 
+# snapshot written before the Java classes changed fails NetworkSnapshot's class check when it is 
+# loaded, and is rebuilt and saved over. Delete the snapshot directory to force the networks to be 
+# rebuilt, or to clear out old snapshots. 
+snapshots = File("network_snapshots")
+
+def load(name, make, *args):
+	key = hashlib.md5(repr(args) + " " + str(NetworkSnapshot.VERSION)).hexdigest()[:12]
+	snapshot = File(snapshots, name + "_" + key + ".snap")
+	if snapshot.exists():
+		try:
+			return NetworkSnapshot.load(snapshot)
+		except IOException, e:
+			print "Rebuilding", name, "-", e.getMessage()
+	network = make(*args)
+	NetworkSnapshot.save(network, snapshot)
+	return network
+
+def makeFeedback(name, numInterneurons, tauPSC, A, B, C):
+	network = FeedbackNetwork(numInterneurons, tauPSC, A, B, C)
+	network.setName(name)
+	return network
+
+def makeAdapting(nAdapting, nCompensating, tauPSC, tau):
+	network = AdaptingNetwork(nAdapting, nCompensating, tauPSC)
+	network.setTau(tau)
+	return network
+
+def makeDepressing(n, tau):
+	network = DepressionNetwork(n)
+	network.setTau(tau)
+	return network
+
+interneuron = load("interneuron", InterneuronNetwork, .1, 2000)
+dualTC = load("dualTC", DualTCNetwork, .005, .1, 1)
+interneuronFeedback = load("interneuronFeedback", makeFeedback, "interneuronFeedback", [1000, 1000], .1, [[-5, -5], [5, -15]], [[10], [30]], [[10, 0]]) #sinusoidal input
+interneuronFeedbackR = load("interneuronFeedbackR", makeFeedback, "interneuronFeedback", [1000, 1000], .1, [[-5, -7.5], [3.3333, -15]], [[10], [20]], [[10, 0]]) #ramp input
+butterworth = load("butterworth", makeFeedback, "butterworth", [1000, 1000], .1, [[-8.8858, 8.8858], [-8.8858, -8.8858]], [[27.4892], [-27.4892]], [[5.7446, 0]]) #sinusoidal input
+butterworthR = load("butterworthR", makeFeedback, "butterworth", [1000, 1000], .1, [[-8.8858, 19.9931], [-3.9492, -8.8858]], [[27.4892], [-12.2174]], [[5.7446, 0]]) #ramp input
+adapting = load("adapting", makeAdapting, 1600, 400, .005, .1)
+depressing = load("depressing", makeDepressing, 2000, .1)
 networks = [interneuron, dualTC, adapting, depressing, butterworth, interneuronFeedback, butterworthR, interneuronFeedbackR]
 
 #dualTCF = DualTCNetwork(.005, .015, 1) #variant on dualTC with faster time constant to make errors clearer 
@@ -15,25 +15,27 @@ nDiff = 1000;
 
 networks = [interneuron, dualTC, adapting, depressing, butterworth, interneuronFeedback]
 
+# Noise realizations are simulated in parallel, and each variance is estimated to within 5% (95% confidence).
+# Realizations must be several times longer than the slowest time constant of the networks (as in the 
+# former single 10 s run), so that slow fluctuations are captured. 
+slowestTau = .5
+transientTime = 2 * slowestTau
+realizationTime = transientTime + 20 * slowestTau
+study = NoisePropagationStudy()
+study.setTiming(.0001, realizationTime, transientTime)
+study.setPrecision(.05, 1.96, 8, 200)
+
 exporter = MatlabExporter()
 for network in networks:
-	network.setInputFunction(ConstantFunction(1, 0));
-	network.setStepSize(.0001)
-	network.setMode(SimulationMode.DIRECT);
-
 	inputVariance = [];
 	outputVariance = [];
 	
 	for n in nInput:
-		network.setNoise(n, nDiff);
-		#network.setDistortion(n, nDiff);
-		network.reset(0)
-		network.run(0, 10);
-		inputVariance.append(MU.variance(MU.prod(network.getInputEnsembleData().getValues(), [1]), 0))
-		outputVariance.append(MU.variance(MU.prod(network.getOutputData().getValues(), [1]), 0))
+		result = study.run(network, n, nDiff)
+		print result
+		inputVariance.append(result.getInputVariance())
+		outputVariance.append(result.getOutputVariance())
 		
-	network.clearErrors();
 	Plotter.plot(nInput, outputVariance, "output")
 	
 exporter.write(File("noise.mat"));		
-	
\ No newline at end of file
@@ -12,11 +12,10 @@ for network in networks:
 	network.setMode(SimulationMode.DEFAULT)
 	network.setInputFunction(ramp)
 	network.setStepSize(.0005)	
-	network.run(-.5, 3)
-	network.exportAll(File("example_"+network.getName()+".mat"))
+	# spikes are streamed as [time, neuron] rows, named e.g. input_rows (see DifferentiatorNetwork.runAndExport)
+	network.runAndExport(-.5, 3, File("example_"+network.getName()+".mat"))
 
 	network.setMode(SimulationMode.DIRECT)
 	PDFTools.setSeed(1)
-	network.run(-.5, 3)
-	network.exportAll(File("example_"+network.getName()+"_direct.mat"))
+	network.runAndExport(-.5, 3, File("example_"+network.getName()+"_direct.mat"))
 	network.disableParisien()
@@ -1,5 +1,6 @@
 % Simulations to verify analytical estimates of error dependencies on network time constants 
 
+from com.bptripp.diff import *
 from ca.nengo.math import Function
 from ca.nengo.math.impl import FourierFunction
 from ca.nengo.math.impl import IndicatorPDF
@@ -19,29 +20,40 @@ signal = FourierFunction(frequencies, MU.uniform(1, len(frequencies), componentR
 
 noiseBandwidth = 500
 
+# Linear networks are run side by side for all time constants on their linear models (equivalent to 
+# DIRECT mode), with the same signal and noise realizations. The bias-compensating origins of the 
+# adapting and depressing networks are nonlinear, so these are simulated as before. 
+sweep = TauSweep()
+sweep.setTiming(.0005, 10, 0)
+
 for network in networks:
-	network.setMode(SimulationMode.DIRECT);
-	network.setStepSize(.0005);	
-	signalPower = []
-	noisePower = []
-	
-	for t in tau:
-		network.setTau(t)
+	if len(network.getLinearModel().getNonlinearOrigins()) == 0:
+		result = sweep.run(network, tau, signal, 1000, 1000)
+		signalPower = result.getSignalPower()
+		noisePower = result.getNoisePower()
+	else:
+		network.setMode(SimulationMode.DIRECT);
+		network.setStepSize(.0005);	
+		signalPower = []
+		noisePower = []
 		
-		network.setInputFunction(signal);
-		network.clearErrors();
-		network.reset(0)
-		network.run(0, 10)
-		signalPower.append(MU.variance(MU.prod(network.getOutputData().getValues(), [1]), 0))
+		for t in tau:
+			network.setTau(t)
+			
+			network.setInputFunction(signal);
+			network.clearErrors();
+			network.reset(0)
+			network.run(0, 10)
+			signalPower.append(MU.variance(MU.prod(network.getOutputData().getValues(), [1]), 0))
+			
+			network.setInputFunction(ConstantFunction(1, 0));
+			network.setNoise(1000, 1000);
+			network.reset(0)
+			network.run(0, 10);
+			network.clearErrors();
+			noisePower.append(MU.variance(MU.prod(network.getOutputData().getValues(), [1]), 0))
 		
-		network.setInputFunction(ConstantFunction(1, 0));
-		network.setNoise(1000, 1000);
-		network.reset(0)
-		network.run(0, 10);
-		network.clearErrors();
-		noisePower.append(MU.variance(MU.prod(network.getOutputData().getValues(), [1]), 0))
+		network.setStepSize(.001);
 
 	Plotter.plot(tau, signalPower, "%s signal power" %network.getName());
 	Plotter.plot(tau, noisePower, "%s noise power" %network.getName());
-	network.setStepSize(.001);
-	
\ No newline at end of file